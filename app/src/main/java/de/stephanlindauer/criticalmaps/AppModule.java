@@ -6,6 +6,7 @@ import android.content.SharedPreferences;
 import com.squareup.picasso.OkHttp3Downloader;
 import com.squareup.picasso.Picasso;
 
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Singleton;
@@ -13,14 +14,22 @@ import javax.inject.Singleton;
 import dagger.Module;
 import dagger.Provides;
 import dagger.Reusable;
+import okhttp3.Cache;
 import okhttp3.OkHttpClient;
 
 @Module
 abstract class AppModule {
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10 MiB
+
     @Provides
     @Singleton
-    static OkHttpClient provideOKHttpClient() {
-        return new OkHttpClient.Builder().connectTimeout(15, TimeUnit.SECONDS).build();
+    static OkHttpClient provideOKHttpClient(App app) {
+        // lets OkHttp revalidate GETs with If-None-Match / If-Modified-Since
+        final Cache cache = new Cache(new File(app.getCacheDir(), "http"), HTTP_CACHE_SIZE);
+        return new OkHttpClient.Builder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .cache(cache)
+                .build();
     }
 
     @Provides
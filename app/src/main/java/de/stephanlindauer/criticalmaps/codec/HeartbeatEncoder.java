@@ -0,0 +1,119 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * Writes the heartbeat JSON straight into a sink, from a template of constant byte fragments
+ * with the values filled in between:
+ * <pre>
+ * {"latitude":"52520008","longitude":"13404954","device":"...","track":"..."}
+ * </pre>
+ * Coordinates are E6 and sent as strings like before; track is optional. Neither encoding nor
+ * {@link #encodedLength} allocate, so a heartbeat doesn't go through GeoPoint, JSONObject or
+ * an intermediate String anymore.
+ */
+public final class HeartbeatEncoder {
+
+    private static final ByteString LATITUDE = ByteString.encodeUtf8("{\"latitude\":\"");
+    private static final ByteString LONGITUDE = ByteString.encodeUtf8("\",\"longitude\":\"");
+    private static final ByteString DEVICE = ByteString.encodeUtf8("\",\"device\":\"");
+    private static final ByteString TRACK = ByteString.encodeUtf8("\",\"track\":\"");
+    private static final ByteString END = ByteString.encodeUtf8("\"}");
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private HeartbeatEncoder() {
+    }
+
+    public static void encode(int latitudeE6, int longitudeE6, @NonNull String device,
+                              @Nullable String track, @NonNull BufferedSink sink)
+            throws IOException {
+        sink.write(LATITUDE).writeDecimalLong(latitudeE6);
+        sink.write(LONGITUDE).writeDecimalLong(longitudeE6);
+        sink.write(DEVICE);
+        writeString(device, sink);
+        if (track != null) {
+            sink.write(TRACK);
+            writeString(track, sink);
+        }
+        sink.write(END);
+    }
+
+    /**
+     * @return the number of bytes {@link #encode} writes for these values
+     */
+    public static long encodedLength(int latitudeE6, int longitudeE6, @NonNull String device,
+                                     @Nullable String track) {
+        long length = LATITUDE.size() + decimalLength(latitudeE6)
+                + LONGITUDE.size() + decimalLength(longitudeE6)
+                + DEVICE.size() + stringLength(device)
+                + END.size();
+        if (track != null) {
+            length += TRACK.size() + stringLength(track);
+        }
+        return length;
+    }
+
+    static int decimalLength(int value) {
+        int length = value < 0 ? 2 : 1;
+        long remaining = Math.abs((long) value);
+        while (remaining >= 10) {
+            remaining /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // escapes what JSON requires, writes runs that need no escaping in one go
+    private static void writeString(String value, BufferedSink sink) throws IOException {
+        int runStart = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            sink.writeUtf8(value, runStart, i);
+            sink.writeByte('\\');
+            if (c == '"' || c == '\\') {
+                sink.writeByte(c);
+            } else {
+                sink.writeByte('u').writeByte('0').writeByte('0')
+                        .writeByte(HEX_DIGITS[c >> 4]).writeByte(HEX_DIGITS[c & 0xF]);
+            }
+            runStart = i + 1;
+        }
+        sink.writeUtf8(value, runStart, value.length());
+    }
+
+    private static long stringLength(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += 6;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // okio replaces unpaired surrogates with '?'
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,131 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Compact binary form of the /locations payload, served instead of JSON when the server
+ * understands {@link #MEDIA_TYPE}. Riders are sorted by latitude, so consecutive coordinates are
+ * close and their deltas fit in a few bytes:
+ * <pre>
+ * 'C' 'M' version
+ * varint                 rider count
+ * per rider:
+ *   int64                device hash, see {@link LocationsJsonDecoder#hashDeviceId(String)}
+ *   zigzag varint        latitude E6, delta to the previous rider
+ *   zigzag varint        longitude E6, delta to the previous rider
+ * </pre>
+ * Instances are not thread-safe.
+ */
+public class LocationsBinaryCodec {
+
+    public static final String MEDIA_TYPE = "application/vnd.criticalmaps.locations";
+
+    static final int VERSION = 1;
+    private static final int MAGIC_0 = 'C';
+    private static final int MAGIC_1 = 'M';
+
+    private final long ownDeviceHash;
+    private final boolean hasOwnDevice;
+
+    private long[] sortKeys = new long[0];
+
+    public LocationsBinaryCodec(String ownDeviceToken) {
+        hasOwnDevice = ownDeviceToken != null;
+        ownDeviceHash = hasOwnDevice ? LocationsJsonDecoder.hashDeviceId(ownDeviceToken) : 0;
+    }
+
+    /**
+     * @return number of locations handed to the callback; our own device is skipped
+     */
+    public int decode(BufferedSource source, LocationsJsonDecoder.Callback callback)
+            throws IOException {
+        if (source.readByte() != MAGIC_0 || source.readByte() != MAGIC_1) {
+            throw new IOException("Not a locations snapshot");
+        }
+        final int version = source.readByte() & 0xff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported locations snapshot version " + version);
+        }
+
+        final long size = readVarint(source);
+        int count = 0;
+        int latitudeE6 = 0;
+        int longitudeE6 = 0;
+        for (long i = 0; i < size; i++) {
+            final long deviceHash = source.readLong();
+            latitudeE6 += decodeZigzag(readVarint(source));
+            longitudeE6 += decodeZigzag(readVarint(source));
+            if (latitudeE6 < -90000000 || latitudeE6 > 90000000
+                    || longitudeE6 < -180000000 || longitudeE6 > 180000000) {
+                throw new IOException("Coordinate out of range");
+            }
+            if (hasOwnDevice && deviceHash == ownDeviceHash) {
+                continue;
+            }
+            callback.onLocation(deviceHash, latitudeE6, longitudeE6);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes the first count entries of the arrays, which are left untouched.
+     */
+    public void encode(long[] deviceHashes, int[] latitudesE6, int[] longitudesE6, int count,
+                       BufferedSink sink) throws IOException {
+        // latitude in the upper half, index in the lower, so a primitive sort does the job
+        if (sortKeys.length < count) {
+            sortKeys = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            sortKeys[i] = ((long) latitudesE6[i] << 32) | i;
+        }
+        Arrays.sort(sortKeys, 0, count);
+
+        sink.writeByte(MAGIC_0).writeByte(MAGIC_1).writeByte(VERSION);
+        writeVarint(sink, count);
+        int previousLatitudeE6 = 0;
+        int previousLongitudeE6 = 0;
+        for (int s = 0; s < count; s++) {
+            final int i = (int) sortKeys[s];
+            sink.writeLong(deviceHashes[i]);
+            writeVarint(sink, encodeZigzag(latitudesE6[i] - previousLatitudeE6));
+            writeVarint(sink, encodeZigzag(longitudesE6[i] - previousLongitudeE6));
+            previousLatitudeE6 = latitudesE6[i];
+            previousLongitudeE6 = longitudesE6[i];
+        }
+    }
+
+    static long encodeZigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+    }
+
+    static int decodeZigzag(long value) {
+        final int unsigned = (int) value;
+        return (unsigned >>> 1) ^ -(unsigned & 1);
+    }
+
+    static void writeVarint(BufferedSink sink, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            sink.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        sink.writeByte((int) value);
+    }
+
+    static long readVarint(BufferedSource source) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = source.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,431 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import okio.BufferedSource;
+
+/**
+ * Streaming decoder for the /locations payload. Reads the response byte by byte and hands
+ * primitive E6 coordinates to a {@link Callback} without building a JSON tree. Entries of our
+ * own device and entries missing one of the required fields are skipped.
+ * <p>
+ * Pushed changes use the same format: entries with coordinates are added or moved riders, an
+ * entry with only a device is a rider that left, see {@link #decodeChanges}.
+ * <p>
+ * Instances keep scratch state and are not thread-safe.
+ */
+public class LocationsJsonDecoder {
+
+    public interface Callback {
+        void onLocation(long deviceHash, int latitudeE6, int longitudeE6);
+    }
+
+    public interface ChangeCallback extends Callback {
+        void onRemoved(long deviceHash);
+    }
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final byte[] KEY_DEVICE = {'d', 'e', 'v', 'i', 'c', 'e'};
+    private static final byte[] KEY_LATITUDE = {'l', 'a', 't', 'i', 't', 'u', 'd', 'e'};
+    private static final byte[] KEY_LONGITUDE = {'l', 'o', 'n', 'g', 'i', 't', 'u', 'd', 'e'};
+
+    private static final int NO_PEEK = -1;
+
+    private final byte[] ownDeviceToken;
+    private final byte[] keyBuffer = new byte[16];
+
+    private BufferedSource source;
+    private ChangeCallback changeCallback;
+    private int peeked = NO_PEEK;
+
+    // per-entry state, reset for every object
+    private long deviceHash;
+    private boolean isOwnDevice;
+    private boolean hasDevice;
+    private boolean hasLatitude;
+    private boolean hasLongitude;
+    private int latitudeE6;
+    private int longitudeE6;
+    private int ownTokenPosition;
+    private boolean ownTokenMatches;
+
+    public LocationsJsonDecoder(String ownDeviceToken) {
+        this.ownDeviceToken = ownDeviceToken == null
+                ? new byte[0] : ownDeviceToken.getBytes(Charset.forName("UTF-8"));
+    }
+
+    public static long hashDeviceId(String deviceId) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : deviceId.getBytes(Charset.forName("UTF-8"))) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return number of locations handed to the callback
+     */
+    public int decode(BufferedSource source, Callback callback) throws IOException {
+        this.source = source;
+        peeked = NO_PEEK;
+        try {
+            return readLocations(callback);
+        } finally {
+            this.source = null;
+        }
+    }
+
+    /**
+     * Decodes changes instead of a whole snapshot: entries without coordinates are handed to
+     * {@link ChangeCallback#onRemoved(long)}.
+     *
+     * @return number of changes handed to the callback
+     */
+    public int decodeChanges(BufferedSource source, ChangeCallback callback) throws IOException {
+        changeCallback = callback;
+        try {
+            return decode(source, callback);
+        } finally {
+            changeCallback = null;
+        }
+    }
+
+    private int readLocations(Callback callback) throws IOException {
+        skipByteOrderMark();
+        expect('[');
+        int count = 0;
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return 0;
+        }
+        pushBack(c);
+
+        while (true) {
+            if (readLocation()) {
+                callback.onLocation(deviceHash, latitudeE6, longitudeE6);
+                count++;
+            } else if (changeCallback != null && isRemoval()) {
+                changeCallback.onRemoved(deviceHash);
+                count++;
+            }
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return count;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']'", c);
+            }
+        }
+    }
+
+    private boolean readLocation() throws IOException {
+        expect('{');
+        hasDevice = false;
+        isOwnDevice = false;
+        hasLatitude = false;
+        hasLongitude = false;
+
+        int c = nextNonWhitespace();
+        if (c != '}') {
+            pushBack(c);
+            while (true) {
+                expect('"');
+                final int keyLength = readKey();
+                expect(':');
+
+                if (keyEquals(keyLength, KEY_DEVICE)) {
+                    readDevice();
+                } else if (keyEquals(keyLength, KEY_LATITUDE)) {
+                    latitudeE6 = readE6();
+                    hasLatitude = true;
+                } else if (keyEquals(keyLength, KEY_LONGITUDE)) {
+                    longitudeE6 = readE6();
+                    hasLongitude = true;
+                } else {
+                    skipValue();
+                }
+
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'", c);
+                }
+            }
+        }
+
+        return hasDevice && hasLatitude && hasLongitude && !isOwnDevice;
+    }
+
+    private boolean isRemoval() {
+        return hasDevice && !hasLatitude && !hasLongitude && !isOwnDevice;
+    }
+
+    /**
+     * Reads the rest of a key after the opening quote into {@link #keyBuffer}.
+     *
+     * @return the key length or -1 if the key can't be one we're interested in
+     */
+    private int readKey() throws IOException {
+        int length = 0;
+        boolean fits = true;
+        while (true) {
+            final int b = nextByte();
+            if (b == '"') {
+                return fits ? length : -1;
+            } else if (b == '\\') {
+                nextByte();
+                fits = false;
+            } else if (length < keyBuffer.length) {
+                keyBuffer[length++] = (byte) b;
+            } else {
+                fits = false;
+            }
+        }
+    }
+
+    private boolean keyEquals(int keyLength, byte[] key) {
+        if (keyLength != key.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (keyBuffer[i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readDevice() throws IOException {
+        final int c = nextNonWhitespace();
+        if (c != '"') {
+            pushBack(c);
+            skipValue();
+            return;
+        }
+
+        deviceHash = FNV_OFFSET_BASIS;
+        ownTokenPosition = 0;
+        ownTokenMatches = true;
+        while (true) {
+            int b = nextByte();
+            if (b == '"') {
+                break;
+            } else if (b == '\\') {
+                b = nextByte();
+                if (b == 'u') {
+                    appendCodeUnit(readHexCodeUnit());
+                    continue;
+                }
+                b = unescape(b);
+            }
+            appendDeviceByte(b);
+        }
+        hasDevice = true;
+        isOwnDevice = ownTokenMatches && ownTokenPosition == ownDeviceToken.length;
+    }
+
+    private void appendDeviceByte(int b) {
+        deviceHash = (deviceHash ^ b) * FNV_PRIME;
+        if (ownTokenMatches) {
+            ownTokenMatches = ownTokenPosition < ownDeviceToken.length
+                    && (ownDeviceToken[ownTokenPosition] & 0xff) == b;
+            ownTokenPosition++;
+        }
+    }
+
+    private void appendCodeUnit(int codeUnit) {
+        // same byte sequence String.getBytes("UTF-8") would produce for BMP characters
+        if (codeUnit < 0x80) {
+            appendDeviceByte(codeUnit);
+        } else if (codeUnit < 0x800) {
+            appendDeviceByte(0xc0 | (codeUnit >> 6));
+            appendDeviceByte(0x80 | (codeUnit & 0x3f));
+        } else {
+            appendDeviceByte(0xe0 | (codeUnit >> 12));
+            appendDeviceByte(0x80 | ((codeUnit >> 6) & 0x3f));
+            appendDeviceByte(0x80 | (codeUnit & 0x3f));
+        }
+    }
+
+    private int readHexCodeUnit() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int b = nextByte();
+            final int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid unicode escape", b);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int unescape(int b) throws IOException {
+        switch (b) {
+            case '"':
+            case '\\':
+            case '/':
+                return b;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                throw syntaxError("Invalid escape sequence", b);
+        }
+    }
+
+    /**
+     * Reads an E6 coordinate which the server sends either as number or as numeric string.
+     * Fractional digits are truncated.
+     */
+    private int readE6() throws IOException {
+        int c = nextNonWhitespace();
+        final boolean isQuoted = c == '"';
+        if (isQuoted) {
+            c = nextByte();
+        }
+
+        boolean isNegative = false;
+        if (c == '-') {
+            isNegative = true;
+            c = nextByte();
+        }
+        if (c < '0' || c > '9') {
+            throw syntaxError("Expected digit", c);
+        }
+
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new IOException("Coordinate out of range");
+            }
+            c = nextByte();
+        }
+        if (c == '.') {
+            do {
+                c = nextByte();
+            } while (c >= '0' && c <= '9');
+        }
+
+        if (isQuoted) {
+            if (c != '"') {
+                throw syntaxError("Expected '\"'", c);
+            }
+        } else {
+            pushBack(c);
+        }
+
+        value = isNegative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Coordinate out of range");
+        }
+        return (int) value;
+    }
+
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            final int c = nextNonWhitespace();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                case ',':
+                case ':':
+                    if (depth == 0) {
+                        throw syntaxError("Expected value", c);
+                    }
+                    break;
+                default:
+                    skipLiteral(c);
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            final int b = nextByte();
+            if (b == '"') {
+                return;
+            } else if (b == '\\') {
+                nextByte();
+            }
+        }
+    }
+
+    private void skipLiteral(int c) throws IOException {
+        while (true) {
+            if (c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+                pushBack(c);
+                return;
+            }
+            c = nextByte();
+        }
+    }
+
+    private void skipByteOrderMark() throws IOException {
+        final int b = nextByte();
+        if (b != 0xef) {
+            pushBack(b);
+        } else if (nextByte() != 0xbb || nextByte() != 0xbf) {
+            throw new IOException("Invalid byte order mark");
+        }
+    }
+
+    private void expect(int expected) throws IOException {
+        final int c = nextNonWhitespace();
+        if (c != expected) {
+            throw syntaxError("Expected '" + (char) expected + "'", c);
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = nextByte();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int nextByte() throws IOException {
+        if (peeked != NO_PEEK) {
+            final int b = peeked;
+            peeked = NO_PEEK;
+            return b;
+        }
+        // throws EOFException on truncated payloads
+        return source.readByte() & 0xff;
+    }
+
+    private void pushBack(int b) {
+        peeked = b;
+    }
+
+    private static IOException syntaxError(String message, int actual) {
+        return new IOException(message + " but was '" + (char) actual + "'");
+    }
+}
@@ -0,0 +1,94 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+import static de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec.decodeZigzag;
+import static de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec.encodeZigzag;
+import static de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec.readVarint;
+import static de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec.writeVarint;
+
+/**
+ * Compact form of our own recent fixes, sent along with the heartbeat. Fixes are oldest first and
+ * only a few seconds and meters apart, so their deltas fit in a byte or two each:
+ * <pre>
+ * 'T' version
+ * varint                 fix count
+ * varint                 time of the first fix, seconds since the epoch
+ * per fix:
+ *   varint               seconds since the previous fix, 0 for the first
+ *   zigzag varint        latitude E6, delta to the previous fix
+ *   zigzag varint        longitude E6, delta to the previous fix
+ * </pre>
+ */
+public final class TrackSegmentCodec {
+
+    public interface Callback {
+        void onFix(long timeMillis, int latitudeE6, int longitudeE6);
+    }
+
+    static final int VERSION = 1;
+    private static final int MAGIC = 'T';
+
+    private TrackSegmentCodec() {
+    }
+
+    /**
+     * Writes the first count fixes, which have to be sorted by time.
+     */
+    public static void encode(long[] timesMillis, int[] latitudesE6, int[] longitudesE6,
+                              int count, BufferedSink sink) throws IOException {
+        sink.writeByte(MAGIC).writeByte(VERSION);
+        writeVarint(sink, count);
+        if (count == 0) {
+            return;
+        }
+        long previousSeconds = timesMillis[0] / 1000;
+        writeVarint(sink, previousSeconds);
+        int previousLatitudeE6 = 0;
+        int previousLongitudeE6 = 0;
+        for (int i = 0; i < count; i++) {
+            final long seconds = timesMillis[i] / 1000;
+            writeVarint(sink, seconds - previousSeconds);
+            writeVarint(sink, encodeZigzag(latitudesE6[i] - previousLatitudeE6));
+            writeVarint(sink, encodeZigzag(longitudesE6[i] - previousLongitudeE6));
+            previousSeconds = seconds;
+            previousLatitudeE6 = latitudesE6[i];
+            previousLongitudeE6 = longitudesE6[i];
+        }
+    }
+
+    /**
+     * @return number of fixes handed to the callback
+     */
+    public static int decode(BufferedSource source, Callback callback) throws IOException {
+        if (source.readByte() != MAGIC) {
+            throw new IOException("Not a track segment");
+        }
+        final int version = source.readByte() & 0xff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported track segment version " + version);
+        }
+
+        final long count = readVarint(source);
+        if (count == 0) {
+            return 0;
+        }
+        long seconds = readVarint(source);
+        int latitudeE6 = 0;
+        int longitudeE6 = 0;
+        for (long i = 0; i < count; i++) {
+            seconds += readVarint(source);
+            latitudeE6 += decodeZigzag(readVarint(source));
+            longitudeE6 += decodeZigzag(readVarint(source));
+            if (latitudeE6 < -90000000 || latitudeE6 > 90000000
+                    || longitudeE6 < -180000000 || longitudeE6 > 180000000) {
+                throw new IOException("Coordinate out of range");
+            }
+            callback.onFix(seconds * 1000, latitudeE6, longitudeE6);
+        }
+        return (int) count;
+    }
+}
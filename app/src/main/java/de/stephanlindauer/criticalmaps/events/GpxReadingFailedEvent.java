@@ -0,0 +1,11 @@
+package de.stephanlindauer.criticalmaps.events;
+
+public final class GpxReadingFailedEvent {
+    public final String uri;
+    public final Exception exception;
+
+    public GpxReadingFailedEvent(String uri, Exception exception) {
+        this.uri = uri;
+        this.exception = exception;
+    }
+}
@@ -0,0 +1,13 @@
+package de.stephanlindauer.criticalmaps.events;
+
+import de.stephanlindauer.criticalmaps.sync.EndpointHealth;
+
+public final class SyncHealthChangedEvent {
+    public final String key;
+    public final EndpointHealth.State state;
+
+    public SyncHealthChangedEvent(String key, EndpointHealth.State state) {
+        this.key = key;
+        this.state = state;
+    }
+}
@@ -13,7 +13,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
-import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -23,12 +22,8 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.squareup.otto.Subscribe;
 
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -42,8 +37,12 @@ import de.stephanlindauer.criticalmaps.events.NewServerResponseEvent;
 import de.stephanlindauer.criticalmaps.handler.GetChatmessagesHandler;
 import de.stephanlindauer.criticalmaps.handler.PostChatmessagesHandler;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.ChatOutbox;
 import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.sync.LiveChannel;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import de.stephanlindauer.criticalmaps.sync.SyncScheduler;
 import de.stephanlindauer.criticalmaps.utils.AxtUtils.SimpleTextWatcher;
 
 
@@ -51,19 +50,31 @@ public class ChatFragment extends Fragment {
     @Inject
     Provider<GetChatmessagesHandler> getChatmessagesHandler;
 
+    @Inject
+    Provider<PostChatmessagesHandler> postChatmessagesHandler;
+
     @Inject
     ChatModel chatModel;
 
+    @Inject
+    ChatOutbox chatOutbox;
+
+    @Inject
+    SyncEngine syncEngine;
+
+    @Inject
+    SyncScheduler syncScheduler;
+
+    @Inject
+    LiveChannel liveChannel;
+
     @Inject
     EventBus eventBus;
 
-    private boolean isTextInputEnabled = true;
+    private boolean isOffline;
     private ChatMessageAdapter chatMessageAdapter;
     private FragmentChatBinding binding;
     // private ObjectAnimator sendingAnimator;
-    private Timer timerGetChatmessages;
-
-    private final int SERVER_SYNC_INTERVAL = 20 * 1000; // 20 sec
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
@@ -145,28 +156,9 @@ public class ChatFragment extends Fragment {
             return;
         }
 
-        // TODO handle UI state while sending, even though it shouldn't be noticeable
-
-        JSONObject messageObject = chatModel.createNewOutgoingMessage(message);
-        new PostChatmessagesHandler(messageObject, new Runnable() {
-            @Override
-            public void run() {
-                // TODO check if still alive; else bail!
-                // TODO reset UI state
-                // clearAnimation();
-
-                // Restart timer task so sent message shows up in list immediately
-                stopGetChatmessagesTimer();
-                startGetChatmessagesTimer();
-            }
-        }, new Runnable() {
-            @Override
-            public void run() {
-                // TODO check if still alive; else bail!
-                // TODO reset UI state
-                Toast.makeText(getContext(), R.string.something_went_wrong, Toast.LENGTH_LONG).show();
-            }
-        }).execute();
+        chatOutbox.add(chatModel.createNewOutgoingMessage(message));
+        // queued messages go out with the next flush once we're back online
+        syncEngine.submit(postChatmessagesHandler.get());
 
         binding.chatMessageEdittext.setText("");
         displayNewData();
@@ -204,13 +196,14 @@ public class ChatFragment extends Fragment {
         super.onResume();
         displayNewData();
         eventBus.register(this);
-        startGetChatmessagesTimer();
+        scheduleGetChatmessages();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        stopGetChatmessagesTimer();
+        unscheduleGetChatmessages();
+        syncEngine.cancel(GetChatmessagesHandler.KEY);
         eventBus.unregister(this);
         hideKeyBoard(binding.chatMessageEdittext);
     }
@@ -234,24 +227,21 @@ public class ChatFragment extends Fragment {
     public void handleNetworkConnectivityChanged(NetworkConnectivityChangedEvent e) {
         setTextInputState(e.isConnected);
 
-        if (e.isConnected && timerGetChatmessages == null) {
-            startGetChatmessagesTimer();
+        if (e.isConnected) {
+            scheduleGetChatmessages();
         } else {
-            stopGetChatmessagesTimer();
+            unscheduleGetChatmessages();
         }
     }
 
     private void setTextInputState(final boolean dataEnabled) {
+        // input stays enabled while offline, messages wait in the outbox
         if (!dataEnabled) {
-            setSendButtonEnabledWithAnimation(false);
-            binding.chatMessageEdittext.setEnabled(false);
-            binding.chatMessageTextinputlayout.setHint(getString(R.string.chat_no_data_connection_hint));
-            isTextInputEnabled = false;
-        } else if (!isTextInputEnabled) {
-            updateSendButtonEnabledState();
-            binding.chatMessageEdittext.setEnabled(true);
+            binding.chatMessageTextinputlayout.setHint(getString(R.string.chat_offline_hint));
+            isOffline = true;
+        } else if (isOffline) {
             binding.chatMessageTextinputlayout.setHint(getString(R.string.chat_text));
-            isTextInputEnabled = true;
+            isOffline = false;
         }
     }
 
@@ -260,24 +250,16 @@ public class ChatFragment extends Fragment {
         setSendButtonEnabledWithAnimation(!message.trim().isEmpty());
     }
 
-    private void startGetChatmessagesTimer() {
-        stopGetChatmessagesTimer();
-
-        timerGetChatmessages = new Timer();
-
-        TimerTask timerTaskPullServer = new TimerTask() {
-            @Override
-            public void run() {
-                getChatmessagesHandler.get().execute();
-            }
-        };
-        timerGetChatmessages.scheduleAtFixedRate(timerTaskPullServer, 0, SERVER_SYNC_INTERVAL);
+    private void scheduleGetChatmessages() {
+        syncScheduler.schedule(GetChatmessagesHandler.KEY, SyncScheduler.Cadence.POLL,
+                () -> {
+                    if (!liveChannel.isLive()) {
+                        syncEngine.submit(getChatmessagesHandler.get());
+                    }
+                });
     }
 
-    private void stopGetChatmessagesTimer() {
-        if (timerGetChatmessages != null) {
-            timerGetChatmessages.cancel();
-            timerGetChatmessages = null;
-        }
+    private void unscheduleGetChatmessages() {
+        syncScheduler.unschedule(GetChatmessagesHandler.KEY);
     }
 }
@@ -27,16 +27,17 @@ import androidx.fragment.app.Fragment;
 
 import com.squareup.otto.Subscribe;
 
+import org.osmdroid.events.DelayedMapListener;
+import org.osmdroid.events.MapListener;
+import org.osmdroid.events.ScrollEvent;
+import org.osmdroid.events.ZoomEvent;
 import org.osmdroid.tileprovider.modules.SqlTileWriter;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
-import org.osmdroid.views.overlay.Overlay;
 import org.osmdroid.views.overlay.gestures.RotationGestureOverlay;
 import org.osmdroid.views.overlay.infowindow.InfoWindow;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import javax.inject.Inject;
 import javax.inject.Provider;
 
@@ -44,17 +45,30 @@ import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.databinding.FragmentMapBinding;
 import de.stephanlindauer.criticalmaps.events.GpsStatusChangedEvent;
+import de.stephanlindauer.criticalmaps.events.GpxReadingFailedEvent;
 import de.stephanlindauer.criticalmaps.events.NetworkConnectivityChangedEvent;
 import de.stephanlindauer.criticalmaps.events.NewLocationEvent;
 import de.stephanlindauer.criticalmaps.events.NewServerResponseEvent;
+import de.stephanlindauer.criticalmaps.events.SyncHealthChangedEvent;
 import de.stephanlindauer.criticalmaps.handler.GetLocationHandler;
+import de.stephanlindauer.criticalmaps.handler.LocationExchangeHandler;
 import de.stephanlindauer.criticalmaps.handler.ShowGpxHandler;
 import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.LocationsRegion;
 import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
 import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.overlays.ClusterMarkerIcons;
 import de.stephanlindauer.criticalmaps.overlays.LocationMarker;
+import de.stephanlindauer.criticalmaps.overlays.RiderOverlay;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.sync.EndpointHealth;
+import de.stephanlindauer.criticalmaps.sync.LiveChannel;
+import de.stephanlindauer.criticalmaps.sync.LocationExchange;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import de.stephanlindauer.criticalmaps.sync.SyncPolicy;
+import de.stephanlindauer.criticalmaps.sync.SyncScheduler;
 import de.stephanlindauer.criticalmaps.utils.AlertBuilder;
 import de.stephanlindauer.criticalmaps.utils.MapViewUtils;
 import info.metadude.android.typedpreferences.BooleanPreference;
@@ -68,11 +82,32 @@ public class MapFragment extends Fragment {
 
     private final static double DEFAULT_ZOOM_LEVEL = 12;
     private final static double NO_GPS_PERMISSION_ZOOM_LEVEL = 3;
-    private final int SERVER_SYNC_INTERVAL = 30 * 1000; // 30 sec
+
+    private final static long QUERY_REGION_DELAY = 500;
+    private final static double QUERY_REGION_MARGIN = 0.5;
+    private final static int QUERY_RADIUS_METERS = 20000;
 
     @Inject
     Provider<GetLocationHandler> getLocationHandler;
 
+    @Inject
+    Provider<LocationExchangeHandler> locationExchangeHandler;
+
+    @Inject
+    LocationExchange locationExchange;
+
+    @Inject
+    LiveChannel liveChannel;
+
+    @Inject
+    SyncEngine syncEngine;
+
+    @Inject
+    SyncScheduler syncScheduler;
+
+    @Inject
+    SyncPolicy syncPolicy;
+
     @Inject
     OwnLocationModel ownLocationModel;
 
@@ -96,6 +131,7 @@ public class MapFragment extends Fragment {
 
     private final GeoPoint defaultGeoPoint = new GeoPoint(52.499571, 13.4140875, 15);
     private boolean isInitialLocationSet = false;
+    private boolean isConnected = true;
     private ObjectAnimator gpsSearchingAnimator;
 
     // cache drawables
@@ -105,13 +141,15 @@ public class MapFragment extends Fragment {
 
     private FragmentMapBinding binding;
 
-    private Timer timerGetLocation;
+    private RiderOverlay riderOverlay;
+    private LocationMarker ownMarker;
 
     private final View.OnClickListener centerLocationOnClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (ownLocationModel.ownLocation != null)
-                animateToLocation(ownLocationModel.ownLocation);
+            final GeoPoint ownLocation = ownLocationModel.getOwnLocation();
+            if (ownLocation != null)
+                animateToLocation(ownLocation);
         }
     };
 
@@ -178,7 +216,7 @@ public class MapFragment extends Fragment {
     private final SharedPreferences.OnSharedPreferenceChangeListener observerModeOnSharedPreferenceChangeListener =
             (sharedPreferences, key) -> {
                 if (SharedPrefsKeys.OBSERVER_MODE_ACTIVE.equals(key)) {
-                    refreshView();
+                    refreshOwnLocation();
                 }
             };
 
@@ -218,9 +256,17 @@ public class MapFragment extends Fragment {
         binding.mapSetCenterFab.setOnClickListener(centerLocationOnClickListener);
         binding.mapSetNorthFab.setOnClickListener(rotationNorthOnClickListener);
 
-        binding.mapNoDataConnectivityFab.setOnClickListener(v -> AlertBuilder.show(getActivity(),
-                R.string.map_no_internet_connection_title,
-                R.string.map_no_internet_connection_text));
+        binding.mapNoDataConnectivityFab.setOnClickListener(v -> {
+            if (isConnected) {
+                AlertBuilder.show(getActivity(),
+                        R.string.map_server_busy_title,
+                        R.string.map_server_busy_text);
+            } else {
+                AlertBuilder.show(getActivity(),
+                        R.string.map_no_internet_connection_title,
+                        R.string.map_no_internet_connection_text);
+            }
+        });
 
         if (new BooleanPreference(sharedPreferences, SharedPrefsKeys.DISABLE_MAP_ROTATION).get()) {
             binding.mapSetNorthFab.setVisibility(View.GONE);
@@ -256,6 +302,23 @@ public class MapFragment extends Fragment {
         binding.mapSetNorthFab.setRotation(mapView.getMapOrientation());
 
         showGpxHandler.showGpx(mapView);
+
+        riderOverlay = new RiderOverlay(locationIcon, new ClusterMarkerIcons(getActivity()));
+        mapView.getOverlays().add(riderOverlay);
+
+        mapView.addMapListener(new DelayedMapListener(new MapListener() {
+            @Override
+            public boolean onScroll(ScrollEvent event) {
+                updateQueryRegion();
+                return false;
+            }
+
+            @Override
+            public boolean onZoom(ZoomEvent event) {
+                updateQueryRegion();
+                return false;
+            }
+        }, QUERY_REGION_DELAY));
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
@@ -276,30 +339,22 @@ public class MapFragment extends Fragment {
         ViewCompat.requestApplyInsets(binding.mapOverlayContainerLayout);
     }
 
-    private void refreshView() {
-        for (Overlay overlay : mapView.getOverlays()) {
-            if (overlay instanceof LocationMarker) {
-                mapView.getOverlays().remove(overlay);
-            }
+    private void refreshOwnLocation() {
+        if (ownMarker != null) {
+            mapView.getOverlays().remove(ownMarker);
+            ownMarker = null;
         }
 
-        for (GeoPoint currentOtherUsersLocation : otherUsersLocationModel.getOtherUsersLocations()) {
-            LocationMarker otherPeoplesMarker = new LocationMarker(mapView);
-            otherPeoplesMarker.setPosition(currentOtherUsersLocation);
-            otherPeoplesMarker.setIcon(locationIcon);
-            mapView.getOverlays().add(otherPeoplesMarker);
-        }
-
-        if (ownLocationModel.ownLocation != null) {
-            GeoPoint currentUserLocation = ownLocationModel.ownLocation;
-            LocationMarker ownMarker = new LocationMarker(mapView);
+        final GeoPoint currentUserLocation = ownLocationModel.getOwnLocation();
+        if (currentUserLocation != null) {
+            ownMarker = new LocationMarker(mapView);
             ownMarker.setPosition(currentUserLocation);
             if (new BooleanPreference(
                     sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get()) {
                 ownMarker.setIcon(ownLocationIconObserver);
                 ownMarker.setInfoWindow(observerInfoWindow);
-                // since we're currently creating new markers on every refresh, this workaround
-                // is needed to update the info window's position if it's open
+                // since we're currently creating a new own marker on every refresh, this
+                // workaround is needed to update the info window's position if it's open
                 if (observerInfoWindow.isOpen()) {
                     ownMarker.showInfoWindow();
                 }
@@ -313,6 +368,16 @@ public class MapFragment extends Fragment {
         mapView.invalidate();
     }
 
+    private void refreshOtherUsersLocations() {
+        final RiderLocations shown = otherUsersLocationModel.getOtherUsersLocations();
+        final boolean hasChanged = riderOverlay.setRiderLocations(shown);
+        // keeps it from being refilled while the overlay still draws it
+        otherUsersLocationModel.setShownLocations(shown);
+        if (hasChanged) {
+            mapView.invalidate();
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -320,6 +385,10 @@ public class MapFragment extends Fragment {
         eventBus.register(this);
         sharedPreferences.registerOnSharedPreferenceChangeListener(
                 observerModeOnSharedPreferenceChangeListener);
+        refreshOtherUsersLocations();
+        syncPolicy.setMapVisible(true);
+        updateQueryRegion();
+        updateConnectivityFab();
 
         if (locationUpdateManager.checkPermission()) {
             locationUpdateManager.startListening();
@@ -327,12 +396,12 @@ public class MapFragment extends Fragment {
             zoomToLocation(defaultGeoPoint, NO_GPS_PERMISSION_ZOOM_LEVEL);
         }
 
-        startGetLocationTimer();
+        scheduleGetLocation();
     }
 
     private void handleFirstLocationUpdate() {
         setGpsStatusFixed();
-        zoomToLocation(ownLocationModel.ownLocation, DEFAULT_ZOOM_LEVEL);
+        zoomToLocation(ownLocationModel.getOwnLocation(), DEFAULT_ZOOM_LEVEL);
         isInitialLocationSet = true;
     }
 
@@ -350,7 +419,10 @@ public class MapFragment extends Fragment {
     public void onPause() {
         super.onPause();
 
-        stopGetLocationTimer();
+        unscheduleGetLocation();
+        syncEngine.cancel(GetLocationHandler.KEY);
+        syncEngine.cancel(LocationExchangeHandler.KEY);
+        syncPolicy.setMapVisible(false);
         eventBus.unregister(this);
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(
                 observerModeOnSharedPreferenceChangeListener);
@@ -359,46 +431,73 @@ public class MapFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        showGpxHandler.cancel();
         // properly closes the cache db since it's stored in a static field in osmdroid...
         try {
             ((SqlTileWriter) mapView.getTileProvider().getTileWriter()).refreshDb();
         } catch (Exception ignored) {
             // nothing we can do
         }
+        otherUsersLocationModel.setShownLocations(null);
+        riderOverlay = null;
+        ownMarker = null;
         mapView = null;
         binding = null;
     }
 
     @Subscribe
     public void handleNewServerData(NewServerResponseEvent e) {
-        refreshView();
+        refreshOtherUsersLocations();
     }
 
     @Subscribe
     public void handleNewLocation(NewLocationEvent e) {
         // if this is the first location update handle it accordingly
-        if (ownLocationModel.ownLocation != null && !isInitialLocationSet) {
+        if (ownLocationModel.hasLocation() && !isInitialLocationSet) {
             handleFirstLocationUpdate();
         }
 
-        refreshView();
+        refreshOwnLocation();
     }
 
     @Subscribe
     public void handleNetworkConnectivityChanged(NetworkConnectivityChangedEvent e) {
+        isConnected = e.isConnected;
+        updateConnectivityFab();
+
         if (e.isConnected) {
-            binding.mapNoDataConnectivityFab.hide();
+            scheduleGetLocation();
         } else {
-            binding.mapNoDataConnectivityFab.show();
+            unscheduleGetLocation();
+        }
+    }
+
+    @Subscribe
+    public void handleGpxReadingFailed(GpxReadingFailedEvent e) {
+        Toast.makeText(getActivity(), R.string.gpx_reading_error, Toast.LENGTH_SHORT).show();
+    }
+
+    @Subscribe
+    public void handleSyncHealthChanged(SyncHealthChangedEvent e) {
+        if (GetLocationHandler.KEY.equals(e.key) || LocationExchangeHandler.KEY.equals(e.key)) {
+            updateConnectivityFab();
         }
+    }
 
-        if (e.isConnected && timerGetLocation == null) {
-            startGetLocationTimer();
+    // also warns while the server is overloaded and location fetches are paused
+    private void updateConnectivityFab() {
+        if (!isConnected || isPaused(GetLocationHandler.KEY)
+                || isPaused(LocationExchangeHandler.KEY)) {
+            binding.mapNoDataConnectivityFab.show();
         } else {
-            stopGetLocationTimer();
+            binding.mapNoDataConnectivityFab.hide();
         }
     }
 
+    private boolean isPaused(String key) {
+        return syncEngine.getEndpointHealth(key).getState() == EndpointHealth.State.OPEN;
+    }
+
     @Subscribe
     public void handleGpsStatusChangedEvent(GpsStatusChangedEvent e) {
         if (e.status == GpsStatusChangedEvent.Status.NONEXISTENT) {
@@ -411,7 +510,7 @@ public class MapFragment extends Fragment {
             setGpsStatusNoPermissions();
         } else if (e.status == GpsStatusChangedEvent.Status.LOW_ACCURACY ||
                 e.status == GpsStatusChangedEvent.Status.HIGH_ACCURACY) {
-            if (ownLocationModel.ownLocation != null) {
+            if (ownLocationModel.hasLocation()) {
                 setGpsStatusFixed();
             } else {
                 setGpsStatusSearching();
@@ -494,24 +593,62 @@ public class MapFragment extends Fragment {
         mapView.getController().setCenter(location);
     }
 
-    private void startGetLocationTimer() {
-        stopGetLocationTimer();
-
-        timerGetLocation = new Timer();
+    // only riders around what's visible get fetched; the next poll picks up a changed region,
+    // it only gets fetched right away if the visible area left what the shown riders cover
+    private void updateQueryRegion() {
+        final LocationsRegion region;
+        final BoundingBox visibleBox;
+        if (mapView.getWidth() > 0 && mapView.getHeight() > 0) {
+            visibleBox = mapView.getBoundingBox();
+            region = LocationsRegion.ofBoundingBox(visibleBox, QUERY_REGION_MARGIN);
+        } else if (ownLocationModel.hasLocation()) {
+            // before the first layout; the poll scheduled on resume runs right away
+            visibleBox = null;
+            final long ownLocationE6 = ownLocationModel.getLocationE6();
+            region = LocationsRegion.around(
+                    OwnLocationModel.latitudeE6(ownLocationE6),
+                    OwnLocationModel.longitudeE6(ownLocationE6),
+                    QUERY_RADIUS_METERS);
+        } else {
+            return;
+        }
 
-        TimerTask timerTaskPullServer = new TimerTask() {
-            @Override
-            public void run() {
-                getLocationHandler.get().execute();
-            }
-        };
-        timerGetLocation.scheduleAtFixedRate(timerTaskPullServer, 0, SERVER_SYNC_INTERVAL);
+        if (region.equals(otherUsersLocationModel.getQueryRegion())) {
+            return;
+        }
+        otherUsersLocationModel.setQueryRegion(region);
+        if (visibleBox != null && isResumed() && !liveChannel.isLive()
+                && !isFetched(visibleBox)) {
+            syncEngine.submit(getLocationHandler.get());
+        }
     }
 
-    private void stopGetLocationTimer() {
-        if (timerGetLocation != null) {
-            timerGetLocation.cancel();
-            timerGetLocation = null;
+    private boolean isFetched(BoundingBox visibleBox) {
+        final RiderLocations shown = otherUsersLocationModel.getOtherUsersLocations();
+        if (shown.getVersion() == 0) {
+            return true; // nothing fetched yet, the first poll is on its way
         }
+        final LocationsRegion fetchedRegion = shown.getRegion();
+        return fetchedRegion == null || fetchedRegion.contains(visibleBox);
+    }
+
+    private void scheduleGetLocation() {
+        syncScheduler.schedule(GetLocationHandler.KEY, SyncScheduler.Cadence.POLL,
+                () -> {
+                    if (liveChannel.isLive()) {
+                        return; // pushed instead
+                    }
+                    // our heartbeat rides along in the windows it is due in
+                    if (locationExchange.shouldExchange(
+                            syncScheduler.getInterval(SyncScheduler.Cadence.HEARTBEAT))) {
+                        syncEngine.submit(locationExchangeHandler.get());
+                    } else {
+                        syncEngine.submit(getLocationHandler.get());
+                    }
+                });
+    }
+
+    private void unscheduleGetLocation() {
+        syncScheduler.unschedule(GetLocationHandler.KEY);
     }
 }
@@ -28,6 +28,7 @@ import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.databinding.FragmentSettingsBinding;
 import de.stephanlindauer.criticalmaps.handler.ChooseGpxFileHandler;
+import de.stephanlindauer.criticalmaps.handler.LiveUpdatesHandler;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.StorageLocationProvider;
 import de.stephanlindauer.criticalmaps.vo.RequestCodes;
@@ -88,6 +89,12 @@ public class SettingsFragment extends Fragment {
         binding.settingsShowGpxCheckbox.setChecked(
                 new BooleanPreference(sharedPreferences, SharedPrefsKeys.SHOW_GPX).get());
 
+        binding.settingsLiveUpdatesCheckbox.setChecked(
+                new BooleanPreference(sharedPreferences, SharedPrefsKeys.LIVE_UPDATES).get());
+
+        binding.settingsUploadTrackCheckbox.setChecked(
+                new BooleanPreference(sharedPreferences, SharedPrefsKeys.UPLOAD_TRACK).get());
+
         binding.settingsClearCacheButton.setOnClickListener(v -> handleClearCacheClicked());
         binding.settingsChooseStorageContainer.setOnClickListener(v -> handleChooseStorageClicked());
 
@@ -97,6 +104,10 @@ public class SettingsFragment extends Fragment {
                 (buttonView, isChecked) -> handleKeepScreenOnChecked(isChecked));
         binding.settingsMapRotationCheckbox.setOnCheckedChangeListener(
                 (buttonView, isChecked) -> handleDisableMapRotationChecked(isChecked));
+        binding.settingsLiveUpdatesCheckbox.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> handleLiveUpdatesChecked(isChecked));
+        binding.settingsUploadTrackCheckbox.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> handleUploadTrackChecked(isChecked));
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             binding.settingsShowGpxCheckbox.setOnCheckedChangeListener(
@@ -106,6 +117,11 @@ public class SettingsFragment extends Fragment {
             binding.settingsShowGpxContainer.setVisibility(View.GONE);
             binding.settingsChooseGpxContainer.setVisibility(View.GONE);
         }
+
+        if (!LiveUpdatesHandler.isAvailable()) {
+            binding.settingsLiveUpdatesContainer.setVisibility(View.GONE);
+            binding.settingsLiveUpdatesDivider.setVisibility(View.GONE);
+        }
     }
 
     @Override
@@ -261,6 +277,16 @@ public class SettingsFragment extends Fragment {
                 sharedPreferences, SharedPrefsKeys.SHOW_GPX).set(isChecked);
     }
 
+    void handleLiveUpdatesChecked(boolean isChecked) {
+        new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.LIVE_UPDATES).set(isChecked);
+    }
+
+    void handleUploadTrackChecked(boolean isChecked) {
+        new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.UPLOAD_TRACK).set(isChecked);
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
     void handleChooseTrackClicked() {
         new ChooseGpxFileHandler(this).openChooser();
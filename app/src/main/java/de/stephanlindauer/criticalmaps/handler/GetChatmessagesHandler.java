@@ -1,58 +1,71 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import android.os.AsyncTask;
+import androidx.annotation.NonNull;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.inject.Inject;
 
 import de.stephanlindauer.criticalmaps.BuildConfig;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.sync.FreshnessStats;
+import de.stephanlindauer.criticalmaps.sync.PayloadHashes;
+import de.stephanlindauer.criticalmaps.sync.SyncTask;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 import okhttp3.Headers;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.ByteString;
 import timber.log.Timber;
 
 
-public class GetChatmessagesHandler extends AsyncTask<Void, Void, String> {
+public class GetChatmessagesHandler extends SyncTask<List<ReceivedChatMessage>> {
+
+    public static final String KEY = "chatmessages-get";
 
-    private final OkHttpClient okHttpClient;
     private final ServerResponseProcessor serverResponseProcessor;
+    private final PayloadHashes payloadHashes;
+    private final FreshnessStats freshnessStats;
+    private ByteString payloadHash;
+    private long roundTripMillis;
 
     @Inject
     public GetChatmessagesHandler(ServerResponseProcessor serverResponseProcessor,
-                                  OkHttpClient okHttpClient
-    ) {
-        this.okHttpClient = okHttpClient;
+                                  PayloadHashes payloadHashes,
+                                  FreshnessStats freshnessStats) {
+        super(KEY);
         this.serverResponseProcessor = serverResponseProcessor;
+        this.payloadHashes = payloadHashes;
+        this.freshnessStats = freshnessStats;
     }
 
     @Override
-    protected String doInBackground(Void... params) {
+    protected Request createRequest() {
         final Headers headers = Headers.of("app-version", BuildConfig.VERSION_NAME);
-        final Request request = new Request.Builder().url(Endpoints.CHAT_GET).get().headers(headers).build();
-
-        String responseString = "";
-        try {
-            final Response response = okHttpClient.newCall(request).execute();
-            if (!response.isSuccessful()) {
-                Timber.d("Get chatmessages unsuccessful with code %d", response.code());
-            }
-            //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
-            responseString = response.body().string();
-            response.body().close();
-        } catch (IOException e) {
-            Timber.e(e);
-        }
-
-        return responseString;
+        return new Request.Builder().url(Endpoints.CHAT_GET).get().headers(headers).build();
     }
 
     @Override
-    protected void onPostExecute(String result) {
-        if (!result.isEmpty()) {
-            serverResponseProcessor.processChatmessages(result);
+    protected List<ReceivedChatMessage> decode(@NonNull Response response) throws IOException {
+        roundTripMillis = getRoundTripMillis(response);
+        final Buffer body = new Buffer();
+        //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
+        payloadHash = PayloadHashes.readAndHash(response.body().source(), body);
+        if (payloadHashes.isPublished(KEY, payloadHash)) {
+            Timber.d("Chatmessages unchanged (%s), skipping",
+                    isFromCache(response) ? "cached" : "same payload");
+            return null;
         }
+        return serverResponseProcessor.decodeChatmessages(body.readUtf8());
+    }
+
+    @Override
+    protected void publish(@NonNull List<ReceivedChatMessage> result) {
+        serverResponseProcessor.processDecodedChatmessages(result);
+        payloadHashes.setPublished(KEY, payloadHash);
+        freshnessStats.onUpdate(FreshnessStats.CHATMESSAGES, FreshnessStats.Transport.POLL,
+                roundTripMillis);
     }
 }
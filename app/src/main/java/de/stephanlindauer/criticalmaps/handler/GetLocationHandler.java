@@ -1,59 +1,143 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import android.os.AsyncTask;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.IOException;
+import java.util.Locale;
 
 import javax.inject.Inject;
 
 import de.stephanlindauer.criticalmaps.BuildConfig;
+import de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec;
+import de.stephanlindauer.criticalmaps.model.LocationsRegion;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.sync.FreshnessStats;
+import de.stephanlindauer.criticalmaps.sync.PayloadHashes;
+import de.stephanlindauer.criticalmaps.sync.SyncTask;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 
 import okhttp3.Headers;
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.ByteString;
 import timber.log.Timber;
 
 
-public class GetLocationHandler extends AsyncTask<Void, Void, String> {
+public class GetLocationHandler extends SyncTask<RiderLocations> {
+
+    public static final String KEY = "locations-get";
+
+    // servers that don't know the binary snapshot keep answering with JSON
+    static final String ACCEPT = LocationsBinaryCodec.MEDIA_TYPE + ", application/json;q=0.5";
 
-    private final OkHttpClient okHttpClient;
     private final ServerResponseProcessor serverResponseProcessor;
+    private final PayloadHashes payloadHashes;
+    private final FreshnessStats freshnessStats;
+    private final OtherUsersLocationModel otherUsersLocationModel;
+    private LocationsRegion region;
+    private ByteString payloadHash;
+    private long roundTripMillis;
 
     @Inject
     public GetLocationHandler(ServerResponseProcessor serverResponseProcessor,
-                              OkHttpClient okHttpClient
-    ) {
-        this.okHttpClient = okHttpClient;
+                              PayloadHashes payloadHashes,
+                              FreshnessStats freshnessStats,
+                              OtherUsersLocationModel otherUsersLocationModel) {
+        super(KEY);
         this.serverResponseProcessor = serverResponseProcessor;
+        this.payloadHashes = payloadHashes;
+        this.freshnessStats = freshnessStats;
+        this.otherUsersLocationModel = otherUsersLocationModel;
     }
 
     @Override
-    protected String doInBackground(Void... params) {
-        final Headers headers = Headers.of("app-version", BuildConfig.VERSION_NAME);
-        final Request request = new Request.Builder().url(Endpoints.LOCATION_GET).get().headers(headers).build();
-
-        String responseString = "";
-        try {
-            final Response response = okHttpClient.newCall(request).execute();
-            if (!response.isSuccessful()) {
-                Timber.d("Get locations unsuccessful with code %d", response.code());
-            }
-            //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
-            responseString = response.body().string();
-            response.body().close();
-        } catch (IOException e) {
-            Timber.e(e);
+    protected Request createRequest() {
+        final Headers headers = Headers.of(
+                "app-version", BuildConfig.VERSION_NAME,
+                "Accept", ACCEPT);
+        return new Request.Builder()
+                .url(withRegion(Endpoints.LOCATION_GET, prepareRegion()))
+                .get()
+                .headers(headers)
+                .build();
+    }
+
+    /**
+     * Picks the region for this run; decoding drops riders outside of it.
+     */
+    @Nullable
+    LocationsRegion prepareRegion() {
+        region = otherUsersLocationModel.getQueryRegion();
+        return region;
+    }
+
+    /**
+     * Adds the region as {@code bbox=west,south,east,north} or as {@code lat}, {@code lon} and
+     * {@code radius} in meters.
+     */
+    @NonNull
+    static HttpUrl withRegion(@NonNull String url, @Nullable LocationsRegion region) {
+        //noinspection ConstantConditions
+        final HttpUrl.Builder builder = HttpUrl.parse(url).newBuilder();
+        if (region == null) {
+            return builder.build();
+        }
+        if (region.isRadius()) {
+            builder.addQueryParameter("lat", formatE6(region.getCenterLatitudeE6()))
+                    .addQueryParameter("lon", formatE6(region.getCenterLongitudeE6()))
+                    .addQueryParameter("radius", Integer.toString(region.getRadiusMeters()));
+        } else {
+            builder.addQueryParameter("bbox", formatE6(region.getWestE6())
+                    + "," + formatE6(region.getSouthE6())
+                    + "," + formatE6(region.getEastE6())
+                    + "," + formatE6(region.getNorthE6()));
         }
+        return builder.build();
+    }
 
-        return responseString;
+    /**
+     * @return true if the server chose the binary snapshot over JSON
+     */
+    static boolean isBinarySnapshot(@NonNull Response response) {
+        //noinspection ConstantConditions
+        final MediaType contentType = response.body().contentType();
+        return contentType != null && LocationsBinaryCodec.MEDIA_TYPE.equals(
+                contentType.type() + "/" + contentType.subtype());
     }
 
     @Override
-    protected void onPostExecute(String result) {
-        if (!result.isEmpty()) {
-            serverResponseProcessor.processLocations(result);
+    protected RiderLocations decode(@NonNull Response response) throws IOException {
+        roundTripMillis = getRoundTripMillis(response);
+        final Buffer body = new Buffer();
+        //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
+        payloadHash = PayloadHashes.readAndHash(response.body().source(), body);
+        if (region != null) {
+            // the same payload filtered for another region is a different snapshot
+            payloadHash = new Buffer().write(payloadHash).writeUtf8(region.toString()).md5();
+        }
+        if (payloadHashes.isPublished(KEY, payloadHash)) {
+            Timber.d("Locations unchanged (%s), skipping",
+                    isFromCache(response) ? "cached" : "same payload");
+            return null;
         }
+        // decode from the buffered bytes instead of converting them into a String first
+        return serverResponseProcessor.decodeLocations(body, isBinarySnapshot(response), region);
+    }
+
+    @Override
+    protected void publish(@NonNull RiderLocations result) {
+        serverResponseProcessor.processDecodedLocations(result);
+        payloadHashes.setPublished(KEY, payloadHash);
+        freshnessStats.onUpdate(FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL,
+                roundTripMillis);
+    }
+
+    private static String formatE6(int e6) {
+        return String.format(Locale.US, "%.6f", e6 / 1e6D);
     }
 }
@@ -0,0 +1,126 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+import dagger.Reusable;
+import de.stephanlindauer.criticalmaps.codec.HeartbeatEncoder;
+import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.model.OwnTrackBuffer;
+import de.stephanlindauer.criticalmaps.model.UserModel;
+import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.sync.HeartbeatDeadBand;
+import info.metadude.android.typedpreferences.BooleanPreference;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import timber.log.Timber;
+
+/**
+ * Builds the body of our own location heartbeat, shared by the plain PUT and the combined
+ * heartbeat + locations exchange.
+ */
+@Reusable
+public class HeartbeatBodyFactory {
+
+    private final OwnLocationModel ownLocationModel;
+    private final UserModel userModel;
+    private final BooleanPreference isObserverModeActive;
+    private final BooleanPreference isUploadTrackActive;
+    private final LocationUpdateManager locationUpdateManager;
+    private final OwnTrackBuffer ownTrackBuffer;
+    private final HeartbeatDeadBand heartbeatDeadBand;
+
+    @Inject
+    public HeartbeatBodyFactory(
+            OwnLocationModel ownLocationModel,
+            UserModel userModel,
+            SharedPreferences sharedPreferences,
+            LocationUpdateManager locationUpdateManager,
+            OwnTrackBuffer ownTrackBuffer,
+            HeartbeatDeadBand heartbeatDeadBand) {
+        this.ownLocationModel = ownLocationModel;
+        this.userModel = userModel;
+        isObserverModeActive = new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE);
+        isUploadTrackActive = new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.UPLOAD_TRACK);
+        this.locationUpdateManager = locationUpdateManager;
+        this.ownTrackBuffer = ownTrackBuffer;
+        this.heartbeatDeadBand = heartbeatDeadBand;
+    }
+
+    /**
+     * @return the body or null if there's nothing to send, e.g. in observer mode
+     */
+    @Nullable
+    public RequestBody create() {
+        if (isObserverModeActive.get() || !ownLocationModel.hasPreciseLocation()
+                || !locationUpdateManager.isUpdating()) {
+            Timber.d("Heartbeat preconditions are not fulfilled.");
+            return null;
+        }
+
+        final long locationE6 = ownLocationModel.getLocationE6();
+        final int latitudeE6 = OwnLocationModel.latitudeE6(locationE6);
+        final int longitudeE6 = OwnLocationModel.longitudeE6(locationE6);
+        if (!heartbeatDeadBand.shouldSend(latitudeE6, longitudeE6)) {
+            Timber.d("Hardly moved since the last heartbeat, skipping: %s", heartbeatDeadBand);
+            return null;
+        }
+
+        final String track = isUploadTrackActive.get()
+                ? ownTrackBuffer.encodePending(System.currentTimeMillis())
+                : null;
+        return new HeartbeatBody(latitudeE6, longitudeE6, userModel.getChangingDeviceToken(),
+                track);
+    }
+
+    /**
+     * Called once the server took the heartbeat built last.
+     */
+    public void onHeartbeatAccepted() {
+        heartbeatDeadBand.onAccepted();
+        ownTrackBuffer.onUploaded();
+    }
+
+    // keeps the primitives, HeartbeatEncoder writes them once OkHttp asks for the bytes
+    private static final class HeartbeatBody extends RequestBody {
+        // what RequestBody.create() made of the JSON String before
+        private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+        private final int latitudeE6;
+        private final int longitudeE6;
+        private final String device;
+        private final String track;
+
+        HeartbeatBody(int latitudeE6, int longitudeE6, String device, @Nullable String track) {
+            this.latitudeE6 = latitudeE6;
+            this.longitudeE6 = longitudeE6;
+            this.device = device;
+            this.track = track;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public long contentLength() {
+            return HeartbeatEncoder.encodedLength(latitudeE6, longitudeE6, device, track);
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            HeartbeatEncoder.encode(latitudeE6, longitudeE6, device, track, sink);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import de.stephanlindauer.criticalmaps.BuildConfig;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.sync.FreshnessStats;
+import de.stephanlindauer.criticalmaps.sync.LiveChannel;
+import de.stephanlindauer.criticalmaps.vo.Endpoints;
+import info.metadude.android.typedpreferences.BooleanPreference;
+import okhttp3.Request;
+import okio.BufferedSource;
+
+/**
+ * Feeds pushed locations and chat messages into the same processing the polls use. Only builds
+ * with an {@link Endpoints#LIVE} offer it, as an opt-in in the settings via
+ * {@link SharedPrefsKeys#LIVE_UPDATES}, read when the sync service starts.
+ * <p>
+ * The server starts each connection with a whole locations snapshot and from then on only pushes
+ * the riders that were added, moved or left, see {@link #LOCATION_CHANGES}. Each change set is
+ * applied to the current snapshot, so the map gets the same {@code RiderLocationsDiff} a poll
+ * produces without the server resending every rider.
+ */
+public class LiveUpdatesHandler {
+
+    /**
+     * Frames with the changes to the last locations snapshot, in the
+     * {@link de.stephanlindauer.criticalmaps.codec.LocationsJsonDecoder#decodeChanges} format.
+     */
+    public static final String LOCATION_CHANGES = "location-changes";
+
+    private final LiveChannel liveChannel;
+    private final ServerResponseProcessor serverResponseProcessor;
+    private final SharedPreferences sharedPreferences;
+
+    @Inject
+    public LiveUpdatesHandler(LiveChannel liveChannel,
+                              ServerResponseProcessor serverResponseProcessor,
+                              SharedPreferences sharedPreferences) {
+        this.liveChannel = liveChannel;
+        this.serverResponseProcessor = serverResponseProcessor;
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    public void start() {
+        if (!isAvailable()
+                || !new BooleanPreference(sharedPreferences, SharedPrefsKeys.LIVE_UPDATES).get()) {
+            return;
+        }
+
+        liveChannel.register(FreshnessStats.LOCATIONS, new LiveChannel.Stream<RiderLocations>() {
+            @Override
+            public RiderLocations decode(@NonNull BufferedSource payload) throws IOException {
+                return serverResponseProcessor.decodeLocations(payload);
+            }
+
+            @Override
+            public void publish(@NonNull RiderLocations result) {
+                serverResponseProcessor.processDecodedLocations(result);
+            }
+        });
+        liveChannel.register(LOCATION_CHANGES, FreshnessStats.LOCATIONS,
+                new LiveChannel.Stream<RiderLocations>() {
+                    @Override
+                    public RiderLocations decode(@NonNull BufferedSource payload)
+                            throws IOException {
+                        return serverResponseProcessor.decodeLocationChanges(payload);
+                    }
+
+                    @Override
+                    public void publish(@NonNull RiderLocations result) {
+                        serverResponseProcessor.processDecodedLocations(result);
+                    }
+                });
+        liveChannel.register(FreshnessStats.CHATMESSAGES,
+                new LiveChannel.Stream<List<ReceivedChatMessage>>() {
+                    @Override
+                    public List<ReceivedChatMessage> decode(@NonNull BufferedSource payload)
+                            throws IOException {
+                        return serverResponseProcessor.decodeChatmessages(payload.readUtf8());
+                    }
+
+                    @Override
+                    public void publish(@NonNull List<ReceivedChatMessage> result) {
+                        serverResponseProcessor.processDecodedChatmessages(result);
+                    }
+                });
+
+        liveChannel.start(new Request.Builder()
+                .url(Endpoints.LIVE)
+                .header("app-version", BuildConfig.VERSION_NAME)
+                .build());
+    }
+
+    /**
+     * @return false as long as no server offers the live channel
+     */
+    public static boolean isAvailable() {
+        return !Endpoints.LIVE.isEmpty();
+    }
+
+    public void stop() {
+        liveChannel.stop();
+    }
+
+    public void onConnectivityChanged(boolean isConnected) {
+        if (isConnected) {
+            liveChannel.reconnectNow();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import de.stephanlindauer.criticalmaps.BuildConfig;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.sync.LocationExchange;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import de.stephanlindauer.criticalmaps.sync.SyncTask;
+import de.stephanlindauer.criticalmaps.vo.Endpoints;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSource;
+import okio.ByteString;
+import timber.log.Timber;
+
+/**
+ * Sends our heartbeat and fetches the other riders' locations in one round-trip, once
+ * {@link PutLocationHandler} probed that the server supports it. Servers that ignore
+ * {@link #INCLUDE_LOCATIONS_HEADER} answer the PUT without locations; then the locations are
+ * fetched with a separate {@link GetLocationHandler} right away and the {@link LocationExchange}
+ * falls back to separate calls.
+ */
+public class LocationExchangeHandler extends SyncTask<RiderLocations> {
+
+    public static final String KEY = "locations-exchange";
+    public static final String INCLUDE_LOCATIONS_HEADER = "include-locations";
+
+    private static final ByteString UTF8_BOM = ByteString.decodeHex("efbbbf");
+
+    private final String url;
+    private final HeartbeatBodyFactory heartbeatBodyFactory;
+    private final GetLocationHandler locationsDecoder;
+    private final Provider<GetLocationHandler> getLocationHandler;
+    private final LocationExchange locationExchange;
+    private final SyncEngine syncEngine;
+
+    @Inject
+    public LocationExchangeHandler(HeartbeatBodyFactory heartbeatBodyFactory,
+                                   GetLocationHandler locationsDecoder,
+                                   Provider<GetLocationHandler> getLocationHandler,
+                                   LocationExchange locationExchange,
+                                   SyncEngine syncEngine) {
+        this(Endpoints.LOCATION_PUT, heartbeatBodyFactory, locationsDecoder, getLocationHandler,
+                locationExchange, syncEngine);
+    }
+
+    LocationExchangeHandler(String url,
+                            HeartbeatBodyFactory heartbeatBodyFactory,
+                            GetLocationHandler locationsDecoder,
+                            Provider<GetLocationHandler> getLocationHandler,
+                            LocationExchange locationExchange,
+                            SyncEngine syncEngine) {
+        super(KEY);
+        this.url = url;
+        this.heartbeatBodyFactory = heartbeatBodyFactory;
+        this.locationsDecoder = locationsDecoder;
+        this.getLocationHandler = getLocationHandler;
+        this.locationExchange = locationExchange;
+        this.syncEngine = syncEngine;
+    }
+
+    @Override
+    protected Request createRequest() {
+        final RequestBody body = heartbeatBodyFactory.create();
+        if (body == null) {
+            // nothing to send, e.g. in observer mode; a plain GET does
+            syncEngine.submit(getLocationHandler.get());
+            return null;
+        }
+
+        final Headers headers = Headers.of(
+                "app-version", BuildConfig.VERSION_NAME,
+                INCLUDE_LOCATIONS_HEADER, "true",
+                "Accept", GetLocationHandler.ACCEPT);
+        return new Request.Builder()
+                .url(GetLocationHandler.withRegion(url, locationsDecoder.prepareRegion()))
+                .put(body)
+                .headers(headers)
+                .build();
+    }
+
+    @Override
+    protected RiderLocations decode(@NonNull Response response) throws IOException {
+        // either way the server took the heartbeat
+        heartbeatBodyFactory.onHeartbeatAccepted();
+        if (!hasLocations(response)) {
+            Timber.d("No locations in heartbeat response (%d), fetching separately",
+                    response.code());
+            locationExchange.setSupported(false);
+            syncEngine.submit(getLocationHandler.get());
+            return null;
+        }
+
+        locationExchange.setSupported(true);
+        locationExchange.onHeartbeatSent();
+        return locationsDecoder.decode(response);
+    }
+
+    /**
+     * Tells locations apart from a plain heartbeat acknowledgement without consuming the body:
+     * a binary snapshot by its Content-Type, JSON by a leading array. Servers don't agree on the
+     * Content-Type of JSON, so the first byte past whitespace and a BOM decides.
+     */
+    static boolean hasLocations(@NonNull Response response) throws IOException {
+        if (GetLocationHandler.isBinarySnapshot(response)) {
+            return true;
+        }
+        //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
+        final BufferedSource source = response.body().source();
+        long offset = source.rangeEquals(0, UTF8_BOM) ? UTF8_BOM.size() : 0;
+        while (source.request(offset + 1)) {
+            final byte b = source.buffer().getByte(offset);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b == '[';
+            }
+            offset++;
+        }
+        return false;
+    }
+
+    @Override
+    protected void publish(@NonNull RiderLocations result) {
+        locationsDecoder.publish(result);
+    }
+}
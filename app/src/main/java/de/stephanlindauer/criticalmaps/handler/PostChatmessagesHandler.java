@@ -1,66 +1,138 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import android.os.AsyncTask;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import org.json.JSONObject;
+import org.json.JSONArray;
 
-import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
 
-import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.BuildConfig;
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.ChatOutbox;
+import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import de.stephanlindauer.criticalmaps.sync.SyncTask;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 import okhttp3.Headers;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import timber.log.Timber;
 
+/**
+ * Flushes the {@link ChatOutbox}: its oldest messages go out in one request, as a JSON array, or
+ * as a plain message object if there's only one. Messages stay queued until the server accepted
+ * them; the server drops repeats by their identifier. Only a single message the server refuses as
+ * malformed is dropped, a refused batch is split up first.
+ */
+public class PostChatmessagesHandler extends SyncTask<List<String>> {
+
+    public static final String KEY = "chatmessages-post";
 
-public class PostChatmessagesHandler extends AsyncTask<Void, Void, Boolean> {
+    private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
 
-    private final OkHttpClient okHttpClient = App.components().okHttpClient();
+    private final ChatOutbox chatOutbox;
+    private final ChatModel chatModel;
+    private final Provider<PostChatmessagesHandler> postChatmessagesHandler;
+    private final Provider<GetChatmessagesHandler> getChatmessagesHandler;
+    private final SyncEngine syncEngine;
 
-    private final JSONObject message;
-    private final Runnable onSuccessCallback;
-    private final Runnable onErrorCallback;
+    // set by createRequest(), used once the response is in
+    private int batchSize;
+    private List<String> identifiers;
 
-    public PostChatmessagesHandler(JSONObject message, Runnable onSuccessCallback, Runnable onErrorCallback) {
-        this.message = message;
-        this.onSuccessCallback = onSuccessCallback;
-        this.onErrorCallback = onErrorCallback;
+    @Inject
+    public PostChatmessagesHandler(ChatOutbox chatOutbox, ChatModel chatModel,
+                                   Provider<PostChatmessagesHandler> postChatmessagesHandler,
+                                   Provider<GetChatmessagesHandler> getChatmessagesHandler,
+                                   SyncEngine syncEngine) {
+        super(KEY);
+        this.chatOutbox = chatOutbox;
+        this.chatModel = chatModel;
+        this.postChatmessagesHandler = postChatmessagesHandler;
+        this.getChatmessagesHandler = getChatmessagesHandler;
+        this.syncEngine = syncEngine;
     }
 
+    @Nullable
     @Override
-    protected Boolean doInBackground(Void... params) {
+    protected Request createRequest() {
+        final List<OutgoingChatMessage> batch = chatOutbox.peekBatch();
+        if (batch.isEmpty()) {
+            return null;
+        }
+        batchSize = batch.size();
+        identifiers = new ArrayList<>(batchSize);
+
+        final String jsonBody;
+        if (batchSize == 1) {
+            jsonBody = chatModel.toJson(batch.get(0)).toString();
+        } else {
+            final JSONArray messages = new JSONArray();
+            for (OutgoingChatMessage message : batch) {
+                messages.put(chatModel.toJson(message));
+            }
+            jsonBody = messages.toString();
+        }
+        for (OutgoingChatMessage message : batch) {
+            identifiers.add(message.getIdentifier());
+        }
 
-        String jsonBody = message.toString();
         final RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
         final Headers headers = Headers.of("app-version", BuildConfig.VERSION_NAME);
-        final Request request = new Request.Builder().url(Endpoints.CHAT_POST).post(body).headers(headers).build();
+        return new Request.Builder().url(Endpoints.CHAT_POST).post(body).headers(headers).build();
+    }
 
-        boolean wasSuccessful = false;
-        try {
-            final Response response = okHttpClient.newCall(request).execute();
-            if (!response.isSuccessful()) {
-                Timber.d("Post chatmessages unsuccessful with code %d", response.code());
-            }
-            wasSuccessful = response.isSuccessful();
-            response.close();
-        } catch (IOException e) {
-            Timber.e(e);
+    @Override
+    protected List<String> decode(@NonNull Response response) {
+        return identifiers;
+    }
+
+    @Override
+    protected void publish(@NonNull List<String> sentIdentifiers) {
+        chatOutbox.onSent(sentIdentifiers);
+        if (!chatOutbox.isEmpty()) {
+            syncEngine.submit(postChatmessagesHandler.get());
         }
 
-        return wasSuccessful;
+        // Fetch right away so sent messages show up in list immediately
+        syncEngine.submit(getChatmessagesHandler.get());
     }
 
     @Override
-    protected void onPostExecute(Boolean success) {
-        if (success) {
-            onSuccessCallback.run();
+    protected void onFailure() {
+        if (batchSize > 0) {
+            chatOutbox.onSendFailed(batchSize);
+        }
+    }
+
+    @Override
+    protected void onRejected(int code) {
+        if (!isAboutTheMessages(code)) {
+            // e.g. a moved endpoint, every message would get dropped
+            onFailure();
+            return;
+        }
+        if (batchSize == 1) {
+            chatOutbox.onRejected(identifiers.get(0));
         } else {
-            onErrorCallback.run();
+            // the server is fine, so narrow it down to the message it refuses right away
+            chatOutbox.onSendFailed(batchSize);
+        }
+        if (!chatOutbox.isEmpty()) {
+            syncEngine.submit(postChatmessagesHandler.get());
         }
     }
+
+    private static boolean isAboutTheMessages(int code) {
+        return code == HttpURLConnection.HTTP_BAD_REQUEST
+                || code == HttpURLConnection.HTTP_ENTITY_TOO_LARGE
+                || code == HTTP_UNPROCESSABLE_ENTITY;
+    }
 }
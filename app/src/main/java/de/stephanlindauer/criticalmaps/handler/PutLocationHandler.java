@@ -1,95 +1,90 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import android.content.SharedPreferences;
-import android.os.AsyncTask;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import androidx.annotation.NonNull;
 
 import java.io.IOException;
 
 import javax.inject.Inject;
 
 import de.stephanlindauer.criticalmaps.BuildConfig;
-import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
-import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
-import de.stephanlindauer.criticalmaps.model.UserModel;
-import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.sync.LocationExchange;
+import de.stephanlindauer.criticalmaps.sync.SyncTask;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
-import info.metadude.android.typedpreferences.BooleanPreference;
 import okhttp3.Headers;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import timber.log.Timber;
 
+/**
+ * Sends our heartbeat. While the {@link LocationExchange} asks for a probe, the heartbeat also
+ * asks for locations to find out whether the server supports the combined round-trip; locations
+ * in the answer aren't used, the polls keep fetching them until the probe succeeded.
+ */
+public class PutLocationHandler extends SyncTask<Void> {
 
-public class PutLocationHandler extends AsyncTask<Void, Void, Void> {
+    public static final String KEY = "locations-put";
 
-    private final OwnLocationModel ownLocationModel;
-    private final UserModel userModel;
-    private final OkHttpClient okHttpClient;
-    private final SharedPreferences sharedPreferences;
-    private final LocationUpdateManager locationUpdateManager;
+    private final HeartbeatBodyFactory heartbeatBodyFactory;
+    private final LocationExchange locationExchange;
+    private final OtherUsersLocationModel otherUsersLocationModel;
+    private boolean isProbe;
 
     @Inject
-    public PutLocationHandler(
-            OwnLocationModel ownLocationModel,
-            UserModel userModel,
-            OkHttpClient okHttpClient,
-            SharedPreferences sharedPreferences,
-            LocationUpdateManager locationUpdateManager) {
-        this.ownLocationModel = ownLocationModel;
-        this.userModel = userModel;
-        this.okHttpClient = okHttpClient;
-        this.sharedPreferences = sharedPreferences;
-        this.locationUpdateManager = locationUpdateManager;
+    public PutLocationHandler(HeartbeatBodyFactory heartbeatBodyFactory,
+                              LocationExchange locationExchange,
+                              OtherUsersLocationModel otherUsersLocationModel) {
+        super(KEY);
+        this.heartbeatBodyFactory = heartbeatBodyFactory;
+        this.locationExchange = locationExchange;
+        this.otherUsersLocationModel = otherUsersLocationModel;
     }
 
     @Override
-    protected Void doInBackground(Void... params) {
-        final boolean isObserverModeActive = new BooleanPreference(
-                sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get();
-
-        if (!isObserverModeActive && ownLocationModel.hasPreciseLocation()
-                && locationUpdateManager.isUpdating()) {
-            Timber.d("Heartbeat preconditions are fulfilled.");
-        } else {
-            Timber.d("Heartbeat preconditions are not fulfilled.");
+    protected Request createRequest() {
+        final RequestBody body = heartbeatBodyFactory.create();
+        if (body == null) {
             return null;
         }
 
-        String jsonPutBody = getJsonObject().toString();
-
-        final RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonPutBody);
-        final Headers headers = Headers.of("app-version", BuildConfig.VERSION_NAME);
-        final Request request = new Request.Builder().url(Endpoints.LOCATION_PUT).put(body).headers(headers).build();
-
-        try {
-            final Response response = okHttpClient.newCall(request).execute();
-            if (!response.isSuccessful()) {
-                //TODO Display error to user
-                Timber.d("Put location unsuccessful with code %d", response.code());
-            }
-            response.close();
-        } catch (IOException e) {
-            Timber.e(e);
+        isProbe = locationExchange.shouldProbe();
+        if (!isProbe) {
+            final Headers headers = Headers.of("app-version", BuildConfig.VERSION_NAME);
+            return new Request.Builder()
+                    .url(Endpoints.LOCATION_PUT)
+                    .put(body)
+                    .headers(headers)
+                    .build();
         }
 
-        return null;
+        final Headers headers = Headers.of(
+                "app-version", BuildConfig.VERSION_NAME,
+                LocationExchangeHandler.INCLUDE_LOCATIONS_HEADER, "true",
+                "Accept", GetLocationHandler.ACCEPT);
+        // the region keeps the answer of a supporting server small
+        return new Request.Builder()
+                .url(GetLocationHandler.withRegion(Endpoints.LOCATION_PUT,
+                        otherUsersLocationModel.getQueryRegion()))
+                .put(body)
+                .headers(headers)
+                .build();
     }
 
-    private JSONObject getJsonObject() {
-        JSONObject jsonObject = ownLocationModel.getLocationJson();
-
-        try {
-            jsonObject.put("device", userModel.getChangingDeviceToken());
-        } catch (JSONException e) {
-            Timber.e(e);
+    @Override
+    protected Void decode(@NonNull Response response) throws IOException {
+        heartbeatBodyFactory.onHeartbeatAccepted();
+        if (isProbe) {
+            final boolean isSupported = LocationExchangeHandler.hasLocations(response);
+            Timber.d("Probed combined heartbeat + locations (%d): %b",
+                    response.code(), isSupported);
+            locationExchange.setSupported(isSupported);
         }
+        return null;
+    }
 
-        return jsonObject;
+    @Override
+    protected void onFailure() {
+        //TODO Display error to user
     }
 }
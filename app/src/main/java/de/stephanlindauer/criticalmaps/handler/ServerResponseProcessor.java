@@ -1,14 +1,24 @@
 package de.stephanlindauer.criticalmaps.handler;
 
+import androidx.annotation.Nullable;
+
 import org.json.JSONArray;
 
+import java.io.IOException;
+import java.util.List;
+
 import javax.inject.Inject;
 
 import dagger.Reusable;
 import de.stephanlindauer.criticalmaps.events.Events;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.LocationsRegion;
 import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.RiderLocationsDiff;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okio.BufferedSource;
 import timber.log.Timber;
 
 @Reusable
@@ -35,6 +45,48 @@ public class ServerResponseProcessor {
         }
     }
 
+    public RiderLocations decodeLocations(final BufferedSource source) throws IOException {
+        return otherUsersLocationModel.decodeFromSource(source);
+    }
+
+    public RiderLocations decodeLocations(final BufferedSource source, final boolean isBinary,
+                                          @Nullable final LocationsRegion region)
+            throws IOException {
+        return otherUsersLocationModel.decodeFromSource(source, isBinary, region);
+    }
+
+    /**
+     * Applies pushed changes to the current snapshot, see
+     * {@link OtherUsersLocationModel#decodeChanges(BufferedSource)}.
+     */
+    public RiderLocations decodeLocationChanges(final BufferedSource source) throws IOException {
+        return otherUsersLocationModel.decodeChanges(source);
+    }
+
+    public void processDecodedLocations(final RiderLocations decodedLocations) {
+        otherUsersLocationModel.setOtherUsersLocations(decodedLocations);
+        final RiderLocationsDiff changes = decodedLocations.getChanges();
+        Timber.d("Riders: %d added, %d moved, %d removed, %d unchanged",
+                changes.getAddedCount(), changes.getMovedCount(),
+                changes.getRemovedCount(), changes.getUnchangedCount());
+        eventBus.post(Events.NEW_SERVER_RESPONSE_EVENT);
+    }
+
+    @Nullable
+    public List<ReceivedChatMessage> decodeChatmessages(final String jsonString) {
+        try {
+            return ChatModel.parseJson(new JSONArray(jsonString));
+        } catch (Exception e) {
+            Timber.d(e);
+            return null;
+        }
+    }
+
+    public void processDecodedChatmessages(final List<ReceivedChatMessage> receivedChatMessages) {
+        chatModel.setReceivedChatMessages(receivedChatMessages);
+        eventBus.post(Events.NEW_SERVER_RESPONSE_EVENT);
+    }
+
     public void processChatmessages(final String jsonString) {
         try {
             final JSONArray jsonArray = new JSONArray(jsonString);
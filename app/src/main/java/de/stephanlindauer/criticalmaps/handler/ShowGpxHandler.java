@@ -3,43 +3,60 @@ package de.stephanlindauer.criticalmaps.handler;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.net.Uri;
-import android.widget.Toast;
+import android.os.AsyncTask;
+
+import androidx.annotation.NonNull;
 
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.Marker;
-import org.osmdroid.views.overlay.Polyline;
+import org.osmdroid.views.overlay.Overlay;
 import org.xml.sax.SAXException;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import javax.inject.Inject;
 import javax.xml.parsers.ParserConfigurationException;
 
 import de.stephanlindauer.criticalmaps.App;
-import de.stephanlindauer.criticalmaps.R;
+import de.stephanlindauer.criticalmaps.events.GpxReadingFailedEvent;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import de.stephanlindauer.criticalmaps.overlays.GpxTrackOverlay;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
 import de.stephanlindauer.criticalmaps.utils.GpxReader;
 import info.metadude.android.typedpreferences.BooleanPreference;
 import info.metadude.android.typedpreferences.StringPreference;
+import timber.log.Timber;
 
+/**
+ * Shows the chosen GPX file on the map. A file that isn't in the {@link GpxModel} yet is read in
+ * the background, its tracks drawn chunk by chunk as they're read; failures are posted as
+ * {@link GpxReadingFailedEvent}.
+ */
 public class ShowGpxHandler {
 
     private final SharedPreferences sharedPreferences;
     private final GpxModel gpxModel;
     private final App app;
     private final GpxReader gpxReader;
-
+    private final EventBus eventBus;
+    private LoadTask loadTask;
 
     @Inject
-    public ShowGpxHandler(SharedPreferences sharedPreferences, GpxModel gpxModel, App app, GpxReader gpxReader) {
+    public ShowGpxHandler(SharedPreferences sharedPreferences, GpxModel gpxModel, App app,
+                          GpxReader gpxReader, EventBus eventBus) {
         this.sharedPreferences = sharedPreferences;
         this.gpxModel = gpxModel;
         this.app = app;
         this.gpxReader = gpxReader;
+        this.eventBus = eventBus;
     }
 
     public void showGpx(MapView mapView) {
@@ -49,44 +66,141 @@ public class ShowGpxHandler {
         }
 
         String gpxUri = new StringPreference(sharedPreferences, SharedPrefsKeys.GPX_FILE).get();
-        if (gpxModel.getUri() == null || !gpxModel.getUri().equals(gpxUri)) {
-            readFile(gpxUri);
+        if (gpxModel.getUri() != null && gpxModel.getUri().equals(gpxUri)) {
+            showModelOnMap(mapView);
+            return;
         }
 
-        showModelOnMap(mapView);
+        cancel();
+        loadTask = new LoadTask(mapView, gpxUri);
+        // not the default serial executor, a long file would hold up the other AsyncTasks
+        loadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    private void readFile(String gpxUri) {
-        try {
-            InputStream gpxInputStream = app.getContentResolver().openInputStream(Uri.parse(gpxUri));
-            gpxReader.readDataFromStream(gpxInputStream, gpxUri);
-        } catch (SecurityException | IOException | SAXException | ParserConfigurationException e) {
-            Toast.makeText(app, R.string.gpx_reading_error, Toast.LENGTH_SHORT).show();
+    /**
+     * Stops reading a file in the background, e.g. once the map view is destroyed.
+     */
+    public void cancel() {
+        if (loadTask != null) {
+            loadTask.cancel(true);
+            loadTask = null;
         }
     }
 
     private void showModelOnMap(MapView mapView) {
+        List<Overlay> overlays = new ArrayList<>();
         for (GpxTrack track : gpxModel.getTracks()) {
-            addTrackToMap(mapView, track);
+            overlays.add(createTrackOverlay(mapView, track));
         }
 
         for (GpxPoi poi : gpxModel.getPoiList()) {
-            addPoiToMap(mapView, poi);
+            overlays.add(createPoiMarker(mapView, poi));
         }
+        addBeneathOtherOverlays(mapView, overlays);
     }
 
-    private void addTrackToMap(MapView mapView, GpxTrack track) {
-        Polyline trackLine = new Polyline(mapView);
-        trackLine.setPoints(track.getWaypoints());
-        trackLine.setTitle(track.getName());
+    private static void addBeneathOtherOverlays(MapView mapView, List<? extends Overlay> overlays) {
+        // the riders may be on the map already by the time a file is read
+        mapView.getOverlayManager().addAll(0, overlays);
+        mapView.invalidate();
+    }
+
+    private static GpxTrackOverlay createTrackOverlay(MapView mapView, GpxTrack track) {
+        // picks the simplified points for the zoom level on its own
+        GpxTrackOverlay trackLine = new GpxTrackOverlay(mapView, track);
         trackLine.getOutlinePaint().setColor(Color.RED);
-        mapView.getOverlayManager().add(trackLine);
+        return trackLine;
     }
 
-    private void addPoiToMap(MapView mapView, GpxPoi poi) {
+    private static Marker createPoiMarker(MapView mapView, GpxPoi poi) {
         Marker marker = new Marker(mapView);
         marker.setPosition(poi.getPosition());
         marker.setTitle(poi.getName());
-        mapView.getOverlayManager().add(marker);
+        return marker;
+    }
+
+    private class LoadTask extends AsyncTask<Void, GpxTrack, GpxModel>
+            implements GpxReader.Listener {
+
+        private final MapView mapView;
+        private final String gpxUri;
+        // shown while reading, replaced by the whole tracks once done
+        private final List<GpxTrackOverlay> chunkOverlays = new ArrayList<>();
+        private Exception exception;
+
+        LoadTask(MapView mapView, String gpxUri) {
+            this.mapView = mapView;
+            this.gpxUri = gpxUri;
+        }
+
+        @Override
+        protected GpxModel doInBackground(Void... params) {
+            try (InputStream gpxInputStream =
+                         app.getContentResolver().openInputStream(Uri.parse(gpxUri))) {
+                if (gpxInputStream == null) {
+                    throw new FileNotFoundException(gpxUri);
+                }
+                GpxModel result = gpxReader.read(gpxInputStream, gpxUri, this);
+                for (GpxTrack track : result.getTracks()) {
+                    // simplified here rather than on the first draw
+                    track.getLevelsOfDetail();
+                }
+                return result;
+            } catch (CancellationException e) {
+                return null;
+            } catch (SecurityException | IOException | SAXException
+                    | ParserConfigurationException e) {
+                exception = e;
+                return null;
+            }
+        }
+
+        @Override
+        public void onTrackChunk(@NonNull GpxTrack chunk) {
+            chunk.getLevelsOfDetail();
+            publishProgress(chunk);
+        }
+
+        @Override
+        protected void onProgressUpdate(GpxTrack... chunks) {
+            if (isCancelled()) {
+                return;
+            }
+            List<GpxTrackOverlay> overlays = new ArrayList<>();
+            for (GpxTrack chunk : chunks) {
+                overlays.add(createTrackOverlay(mapView, chunk));
+            }
+            chunkOverlays.addAll(overlays);
+            addBeneathOtherOverlays(mapView, overlays);
+        }
+
+        @Override
+        protected void onPostExecute(GpxModel result) {
+            if (loadTask == this) {
+                loadTask = null;
+            }
+            removeChunkOverlays();
+
+            if (result == null) {
+                Timber.d(exception, "Reading GPX file %s failed", gpxUri);
+                eventBus.post(new GpxReadingFailedEvent(gpxUri, exception));
+                return;
+            }
+
+            gpxModel.setTracks(result.getTracks());
+            gpxModel.setPoiList(result.getPoiList());
+            gpxModel.setUri(result.getUri());
+            showModelOnMap(mapView);
+        }
+
+        @Override
+        protected void onCancelled() {
+            removeChunkOverlays();
+        }
+
+        private void removeChunkOverlays() {
+            mapView.getOverlayManager().removeAll(chunkOverlays);
+            chunkOverlays.clear();
+        }
     }
-}
\ No newline at end of file
+}
@@ -26,7 +26,7 @@ public class StartCameraHandler {
     }
 
     public void execute() {
-        if (App.components().ownLocationmodel().ownLocation == null) {
+        if (!App.components().ownLocationmodel().hasLocation()) {
             AlertBuilder.show(activity, R.string.something_went_wrong, R.string.camera_no_location);
             return;
         }
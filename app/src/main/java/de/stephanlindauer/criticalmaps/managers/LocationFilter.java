@@ -0,0 +1,227 @@
+package de.stephanlindauer.criticalmaps.managers;
+
+/**
+ * Fuses the fixes of all location providers with a constant velocity Kalman filter. Positions are
+ * kept in meters east and north of an anchor, both axes get filtered independently. Fixes that
+ * would need an implausible speed and lie far outside the filter's uncertainty are rejected as
+ * outliers; after a few rejections in a row the filter assumes it's the one who's wrong and
+ * restarts from the latest fix.
+ * <p>
+ * Has no Android dependencies, so recorded fix streams can be replayed in unit tests. Not
+ * thread-safe.
+ */
+public class LocationFilter {
+
+    public enum Result {
+        // dropped as outlier or because it's older than the current estimate
+        REJECTED,
+        // taken into account, but the estimate didn't change enough to be worth publishing
+        ABSORBED,
+        // the estimate changed noticeably
+        CHANGED
+    }
+
+    static final float MAX_SPEED = 25.0f; // m/s, 90 km/h
+    // chi-square with two degrees of freedom, 99.9 %
+    static final double GATE = 13.8D;
+    static final int MAX_CONSECUTIVE_REJECTIONS = 3;
+    static final long MAX_GAP = 60 * 1000; // 60 sec
+    static final double MIN_PUBLISH_DISTANCE = 3.0D; // meters
+    static final long MAX_PUBLISH_INTERVAL = 30 * 1000; // 30 sec
+
+    // variance of the unknown acceleration, (m/s²)²; cyclists don't change pace abruptly
+    private static final double ACCELERATION_VARIANCE = 0.25D;
+    private static final double INITIAL_VELOCITY_VARIANCE = 100.0D;
+    private static final double METERS_PER_DEGREE = 111195.0D;
+
+    private final Axis east = new Axis();
+    private final Axis north = new Axis();
+    private boolean isInitialized;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private double metersPerDegreeLongitude;
+    private long timeMillis;
+    private int consecutiveRejections;
+    private int rejectedCount;
+
+    private double publishedEast;
+    private double publishedNorth;
+    private double publishedVariance;
+    private long publishedTimeMillis;
+
+    /**
+     * @param accuracy as reported by the provider, the 68 % radius in meters
+     */
+    public Result update(long timeMillis, double latitude, double longitude, float accuracy) {
+        final double variance = Math.max(accuracy, 1.0f) * (double) Math.max(accuracy, 1.0f);
+        if (!isInitialized || timeMillis - this.timeMillis > MAX_GAP) {
+            reset(timeMillis, latitude, longitude, variance);
+            return publish();
+        }
+        if (timeMillis < this.timeMillis) {
+            return Result.REJECTED;
+        }
+
+        final double dt = (timeMillis - this.timeMillis) / 1000.0D;
+        final double measuredEast = toEast(longitude);
+        final double measuredNorth = toNorth(latitude);
+
+        east.predict(dt);
+        north.predict(dt);
+        final double innovationEast = measuredEast - east.position;
+        final double innovationNorth = measuredNorth - north.position;
+        final double mahalanobis = innovationEast * innovationEast / (east.p00 + variance)
+                + innovationNorth * innovationNorth / (north.p00 + variance);
+        final double jump = Math.hypot(innovationEast, innovationNorth);
+        if (mahalanobis > GATE && jump > MAX_SPEED * Math.max(dt, 1.0D)) {
+            // the prediction is kept, so the next fix gets gated against where we are by now
+            rejectedCount++;
+            this.timeMillis = timeMillis;
+            if (++consecutiveRejections >= MAX_CONSECUTIVE_REJECTIONS) {
+                reset(timeMillis, latitude, longitude, variance);
+                return publish();
+            }
+            return Result.REJECTED;
+        }
+        consecutiveRejections = 0;
+
+        east.correct(measuredEast, variance);
+        north.correct(measuredNorth, variance);
+        this.timeMillis = timeMillis;
+
+        final double moved = Math.hypot(east.position - publishedEast,
+                north.position - publishedNorth);
+        final double variance2d = getVariance();
+        // movement well within the uncertainty is most likely noise
+        if (moved >= Math.max(MIN_PUBLISH_DISTANCE, Math.sqrt(variance2d))
+                || variance2d < publishedVariance / 2
+                || timeMillis - publishedTimeMillis >= MAX_PUBLISH_INTERVAL) {
+            return publish();
+        }
+        return Result.ABSORBED;
+    }
+
+    public boolean isInitialized() {
+        return isInitialized;
+    }
+
+    public double getLatitude() {
+        return anchorLatitude + north.position / METERS_PER_DEGREE;
+    }
+
+    public double getLongitude() {
+        return anchorLongitude + east.position / metersPerDegreeLongitude;
+    }
+
+    /**
+     * @return estimated 68 % radius in meters, comparable to the accuracy of a fix
+     */
+    public float getAccuracy() {
+        return (float) Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return estimated speed in m/s
+     */
+    public float getSpeed() {
+        return (float) Math.hypot(east.velocity, north.velocity);
+    }
+
+    public double getVelocityEast() {
+        return east.velocity;
+    }
+
+    public double getVelocityNorth() {
+        return north.velocity;
+    }
+
+    /**
+     * @return time of the latest fix taken into account
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private void reset(long timeMillis, double latitude, double longitude, double variance) {
+        isInitialized = true;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        metersPerDegreeLongitude = METERS_PER_DEGREE
+                * Math.max(Math.cos(Math.toRadians(latitude)), 0.01D);
+        this.timeMillis = timeMillis;
+        consecutiveRejections = 0;
+        east.reset(variance);
+        north.reset(variance);
+    }
+
+    private Result publish() {
+        publishedEast = east.position;
+        publishedNorth = north.position;
+        publishedVariance = getVariance();
+        publishedTimeMillis = timeMillis;
+        return Result.CHANGED;
+    }
+
+    private double getVariance() {
+        return (east.p00 + north.p00) / 2;
+    }
+
+    private double toEast(double longitude) {
+        double delta = longitude - anchorLongitude;
+        if (delta > 180.0D) {
+            delta -= 360.0D;
+        } else if (delta < -180.0D) {
+            delta += 360.0D;
+        }
+        return delta * metersPerDegreeLongitude;
+    }
+
+    private double toNorth(double latitude) {
+        return (latitude - anchorLatitude) * METERS_PER_DEGREE;
+    }
+
+    // position and velocity along one axis with their 2x2 covariance
+    private static class Axis {
+        double position;
+        double velocity;
+        double p00;
+        double p01;
+        double p11;
+
+        void reset(double variance) {
+            position = 0;
+            velocity = 0;
+            p00 = variance;
+            p01 = 0;
+            p11 = INITIAL_VELOCITY_VARIANCE;
+        }
+
+        void predict(double dt) {
+            position += velocity * dt;
+            final double dt2 = dt * dt;
+            // F P F' + Q, with Q for white noise acceleration
+            p00 += 2 * dt * p01 + dt2 * p11 + ACCELERATION_VARIANCE * dt2 * dt2 / 4;
+            p01 += dt * p11 + ACCELERATION_VARIANCE * dt2 * dt / 2;
+            p11 += ACCELERATION_VARIANCE * dt2;
+        }
+
+        void correct(double measurement, double variance) {
+            final double s = p00 + variance;
+            final double k0 = p00 / s;
+            final double k1 = p01 / s;
+            final double innovation = measurement - position;
+            position += k0 * innovation;
+            velocity += k1 * innovation;
+            final double newP00 = (1 - k0) * p00;
+            final double newP01 = (1 - k0) * p01;
+            final double newP11 = p11 - k1 * p01;
+            p00 = newP00;
+            p01 = newP01;
+            p11 = newP11;
+        }
+    }
+}
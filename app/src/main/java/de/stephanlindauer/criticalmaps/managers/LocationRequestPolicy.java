@@ -0,0 +1,171 @@
+package de.stephanlindauer.criticalmaps.managers;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Picks how often the location providers get asked for fixes. Waiting at the meeting point
+ * doesn't need a fix every few seconds, riding fast does; in observer mode nobody sees our
+ * position, so the network provider is enough and GPS stays off.
+ * <p>
+ * Also keeps track of how long GPS was requested and how many fixes came in, so the saving is
+ * measurable. Times are elapsed realtime in ms, passed in by the caller. Not thread-safe.
+ * <p>
+ * Providers only report after the minimum distance, so a rider who stopped gets no more fixes
+ * and the speed estimate stays at its last moving value. Going without fixes for longer than
+ * {@link #NO_FIX_INTERVALS} requested intervals therefore counts as standing still since the
+ * last fix; the caller has to call {@link #decide} periodically for this to be noticed.
+ */
+public class LocationRequestPolicy {
+
+    public enum Profile {
+        OBSERVER(false, 60 * 1000, 50.0f),
+        STATIONARY(true, 30 * 1000, 10.0f),
+        MOVING(true, 10 * 1000, 10.0f),
+        FAST(true, 4 * 1000, 10.0f);
+
+        public final boolean usesGps;
+        public final long interval;
+        public final float minDistance;
+
+        Profile(boolean usesGps, long interval, float minDistance) {
+            this.usesGps = usesGps;
+            this.interval = interval;
+            this.minDistance = minDistance;
+        }
+    }
+
+    static final float STATIONARY_SPEED = 0.5f; // m/s, GPS jitter
+    static final float FAST_SPEED = 7.0f; // m/s, ~25 km/h
+    // a red light shouldn't make us lose track right when it turns green
+    static final long STATIONARY_AFTER = 60 * 1000; // 1 min
+    static final int NO_FIX_INTERVALS = 2;
+
+    private static final long NOT_STATIONARY = -1;
+    private static final long NOT_REQUESTING = -1;
+    private static final long NO_FIX = -1;
+
+    private long stationarySince = NOT_STATIONARY;
+    private long lastFixAt = NO_FIX;
+    private Profile profile;
+
+    private long requestingSince = NOT_REQUESTING;
+    private long requestedMillis;
+    private long gpsRequestedMillis;
+    private int gpsFixCount;
+    private int networkFixCount;
+    private int profileChangeCount;
+
+    /**
+     * @param speed estimated speed in m/s, {@link LocationUpdateManager#UNKNOWN_SPEED} if there's
+     *              none yet
+     * @return the profile to request updates with
+     */
+    @NonNull
+    public Profile decide(float speed, boolean isObserverModeActive, long now) {
+        final boolean isWithoutFixes = isWithoutFixes(now);
+        if (isWithoutFixes
+                || speed != LocationUpdateManager.UNKNOWN_SPEED && speed < STATIONARY_SPEED) {
+            if (stationarySince == NOT_STATIONARY) {
+                stationarySince = isWithoutFixes ? lastFixAt : now;
+            }
+        } else {
+            stationarySince = NOT_STATIONARY;
+        }
+
+        if (isObserverModeActive) {
+            return Profile.OBSERVER;
+        } else if (stationarySince != NOT_STATIONARY && now - stationarySince >= STATIONARY_AFTER) {
+            return Profile.STATIONARY;
+        } else if (!isWithoutFixes && speed >= FAST_SPEED) {
+            return Profile.FAST;
+        }
+        return Profile.MOVING;
+    }
+
+    /**
+     * @return true if no fix came in for {@link #NO_FIX_INTERVALS} requested intervals, so the
+     * last speed estimate is outdated
+     */
+    public boolean isWithoutFixes(long now) {
+        if (requestingSince == NOT_REQUESTING || lastFixAt == NO_FIX) {
+            return false;
+        }
+        // a new request gets some time for its first fix as well
+        return now - Math.max(lastFixAt, requestingSince) > NO_FIX_INTERVALS * profile.interval;
+    }
+
+    /**
+     * @return the profile updates are currently requested with, null if none are
+     */
+    public Profile getProfile() {
+        return requestingSince == NOT_REQUESTING ? null : profile;
+    }
+
+    public void onRequested(@NonNull Profile profile, long now) {
+        onRemoved(now);
+        if (this.profile != null && this.profile != profile) {
+            profileChangeCount++;
+        }
+        this.profile = profile;
+        requestingSince = now;
+    }
+
+    public void onRemoved(long now) {
+        if (requestingSince == NOT_REQUESTING) {
+            return;
+        }
+        final long duration = now - requestingSince;
+        requestedMillis += duration;
+        if (profile.usesGps) {
+            gpsRequestedMillis += duration;
+        }
+        requestingSince = NOT_REQUESTING;
+    }
+
+    public void onFix(boolean isGps, long now) {
+        lastFixAt = now;
+        if (isGps) {
+            gpsFixCount++;
+        } else {
+            networkFixCount++;
+        }
+    }
+
+    /**
+     * @return share of the time updates were requested that GPS was part of it, 0 to 1
+     */
+    public float getGpsDutyCycle(long now) {
+        long requestedMillis = this.requestedMillis;
+        long gpsRequestedMillis = this.gpsRequestedMillis;
+        if (requestingSince != NOT_REQUESTING) {
+            requestedMillis += now - requestingSince;
+            if (profile.usesGps) {
+                gpsRequestedMillis += now - requestingSince;
+            }
+        }
+        return requestedMillis == 0 ? 0.0f : (float) gpsRequestedMillis / requestedMillis;
+    }
+
+    public int getGpsFixCount() {
+        return gpsFixCount;
+    }
+
+    public int getNetworkFixCount() {
+        return networkFixCount;
+    }
+
+    public int getProfileChangeCount() {
+        return profileChangeCount;
+    }
+
+    @NonNull
+    public String toString(long now) {
+        return String.format(Locale.US,
+                "%s, GPS requested %.0f%% of the time, %d GPS fixes, %d network fixes, "
+                        + "%d profile changes",
+                getProfile(), getGpsDutyCycle(now) * 100, gpsFixCount, networkFixCount,
+                profileChangeCount);
+    }
+}
@@ -3,15 +3,17 @@ package de.stephanlindauer.criticalmaps.managers;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.squareup.otto.Produce;
 
-import org.osmdroid.util.GeoPoint;
-
 import java.util.List;
 
 import javax.inject.Inject;
@@ -24,21 +26,25 @@ import de.stephanlindauer.criticalmaps.events.GpsStatusChangedEvent;
 import de.stephanlindauer.criticalmaps.events.NewLocationEvent;
 import de.stephanlindauer.criticalmaps.handler.PermissionCheckHandler;
 import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.model.OwnTrackBuffer;
 import de.stephanlindauer.criticalmaps.model.PermissionRequest;
+import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import info.metadude.android.typedpreferences.BooleanPreference;
+import timber.log.Timber;
 
 @Singleton
 public class LocationUpdateManager {
+    public static final float UNKNOWN_SPEED = -1.0f;
+
     private final OwnLocationModel ownLocationModel;
+    private final OwnTrackBuffer ownTrackBuffer;
     private final EventBus eventBus;
     private final PermissionCheckHandler permissionCheckHandler;
+    private final SharedPreferences sharedPreferences;
     private final App app;
     private boolean isUpdating = false;
 
-    private static final float LOCATION_REFRESH_DISTANCE = 20; //20 meters
-    private static final long LOCATION_REFRESH_TIME = 12 * 1000; //12 seconds
-    private static final int LOCATION_NEW_THRESHOLD = 30 * 1000; //30 seconds
-
     private final String[] USED_PROVIDERS = new String[]{
             LocationManager.GPS_PROVIDER,
             LocationManager.NETWORK_PROVIDER};
@@ -46,15 +52,22 @@ public class LocationUpdateManager {
             Manifest.permission.ACCESS_FINE_LOCATION,
             Manifest.permission.ACCESS_COARSE_LOCATION};
     private final LocationManager locationManager;
-    private Location lastPublishedLocation;
+    // fuses the fixes of all providers, only touched on the main thread
+    private final LocationFilter locationFilter = new LocationFilter();
+    // picks the request intervals, main thread as well
+    private final LocationRequestPolicy locationRequestPolicy = new LocationRequestPolicy();
+    private boolean isListening;
+    private volatile float speed = UNKNOWN_SPEED;
+    // no fix means no call to the listener, so standing still is only noticed by checking
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable reevaluateRunnable = this::reevaluateLocationRequests;
 
     private final LocationListener locationListener = new LocationListener() {
         @Override
         public void onLocationChanged(final Location location) {
-            if (shouldPublishNewLocation(location)) {
-                publishNewLocation(location);
-                lastPublishedLocation = location;
-            }
+            final boolean isGps = LocationManager.GPS_PROVIDER.equals(location.getProvider());
+            locationRequestPolicy.onFix(isGps, SystemClock.elapsedRealtime());
+            handleLocation(location);
         }
 
         @Override
@@ -77,15 +90,26 @@ public class LocationUpdateManager {
         }
     };
 
+    private final SharedPreferences.OnSharedPreferenceChangeListener
+            observerModeOnSharedPreferenceChangeListener = (sharedPreferences, key) -> {
+                if (SharedPrefsKeys.OBSERVER_MODE_ACTIVE.equals(key)) {
+                    updateLocationRequests();
+                }
+            };
+
     @Inject
     public LocationUpdateManager(App app,
                                  OwnLocationModel ownLocationModel,
+                                 OwnTrackBuffer ownTrackBuffer,
                                  EventBus eventBus,
-                                 PermissionCheckHandler permissionCheckHandler) {
+                                 PermissionCheckHandler permissionCheckHandler,
+                                 SharedPreferences sharedPreferences) {
         this.app = app;
         this.ownLocationModel = ownLocationModel;
+        this.ownTrackBuffer = ownTrackBuffer;
         this.eventBus = eventBus;
         this.permissionCheckHandler = permissionCheckHandler;
+        this.sharedPreferences = sharedPreferences;
         locationManager = (LocationManager) app.getSystemService(Context.LOCATION_SERVICE);
     }
 
@@ -143,6 +167,21 @@ public class LocationUpdateManager {
         return isUpdating;
     }
 
+    /**
+     * @return filtered speed in m/s, 0 once the providers went quiet for a while or
+     * {@link #UNKNOWN_SPEED} before the first fix
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return how updates are requested and what that cost so far
+     */
+    public String getLocationRequestStats() {
+        return locationRequestPolicy.toString(SystemClock.elapsedRealtime());
+    }
+
     public void initializeAndStartListening() {
         boolean noProviderExists = !checkIfAtLeastOneProviderExits();
         boolean noPermission = !checkPermission();
@@ -180,25 +219,87 @@ public class LocationUpdateManager {
             @SuppressLint("MissingPermission")
             Location location = locationManager.getLastKnownLocation(provider);
             if (location != null) {
-                locationListener.onLocationChanged(location);
+                handleLocation(location);
             }
         }
 
-        registerLocationListeners();
+        if (!isListening) {
+            isListening = true;
+            sharedPreferences.registerOnSharedPreferenceChangeListener(
+                    observerModeOnSharedPreferenceChangeListener);
+        }
+        registerLocationListeners(decideProfile());
+    }
+
+    private void handleLocation(Location location) {
+        final LocationFilter.Result result = locationFilter.update(location.getTime(),
+                location.getLatitude(), location.getLongitude(), location.getAccuracy());
+        if (result == LocationFilter.Result.REJECTED) {
+            return;
+        }
+        speed = locationFilter.getSpeed();
+        if (result == LocationFilter.Result.CHANGED) {
+            publishNewLocation();
+        }
+        updateLocationRequests();
+    }
+
+    private LocationRequestPolicy.Profile decideProfile() {
+        final boolean isObserverModeActive = new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get();
+        return locationRequestPolicy.decide(
+                speed, isObserverModeActive, SystemClock.elapsedRealtime());
+    }
+
+    private void updateLocationRequests() {
+        if (!isListening) {
+            return;
+        }
+        final LocationRequestPolicy.Profile profile = decideProfile();
+        if (profile != locationRequestPolicy.getProfile()) {
+            registerLocationListeners(profile);
+        }
+    }
+
+    private void reevaluateLocationRequests() {
+        if (!isListening) {
+            return;
+        }
+        if (locationRequestPolicy.isWithoutFixes(SystemClock.elapsedRealtime())) {
+            speed = 0.0f;
+        }
+        updateLocationRequests();
+        scheduleReevaluation(locationRequestPolicy.getProfile());
     }
 
-    private void registerLocationListeners() {
+    private void scheduleReevaluation(LocationRequestPolicy.Profile profile) {
+        handler.removeCallbacks(reevaluateRunnable);
+        handler.postDelayed(reevaluateRunnable, profile.interval);
+    }
+
+    private void registerLocationListeners(LocationRequestPolicy.Profile profile) {
+        // replaces whatever was requested before, e.g. GPS isn't part of every profile
+        locationManager.removeUpdates(locationListener);
+
         // register existing providers; if one isn't enabled, the listener will take care of that
-        requestLocationUpdatesIfProviderExists(LocationManager.GPS_PROVIDER);
-        requestLocationUpdatesIfProviderExists(LocationManager.NETWORK_PROVIDER);
+        if (profile.usesGps) {
+            requestLocationUpdatesIfProviderExists(LocationManager.GPS_PROVIDER, profile);
+        }
+        requestLocationUpdatesIfProviderExists(LocationManager.NETWORK_PROVIDER, profile);
+
+        final long now = SystemClock.elapsedRealtime();
+        locationRequestPolicy.onRequested(profile, now);
+        scheduleReevaluation(profile);
+        Timber.d("Location requests: %s", locationRequestPolicy.toString(now));
     }
 
     @SuppressLint("MissingPermission")
-    private void requestLocationUpdatesIfProviderExists(String provider) {
+    private void requestLocationUpdatesIfProviderExists(String provider,
+                                                        LocationRequestPolicy.Profile profile) {
         if (locationManager.getProvider(provider) != null) {
             locationManager.requestLocationUpdates(provider,
-                    LOCATION_REFRESH_TIME,
-                    LOCATION_REFRESH_DISTANCE,
+                    profile.interval,
+                    profile.minDistance,
                     locationListener);
         }
     }
@@ -219,6 +320,15 @@ public class LocationUpdateManager {
 
     public void handleShutdown() {
         locationManager.removeUpdates(locationListener);
+        handler.removeCallbacks(reevaluateRunnable);
+        if (isListening) {
+            isListening = false;
+            sharedPreferences.unregisterOnSharedPreferenceChangeListener(
+                    observerModeOnSharedPreferenceChangeListener);
+            final long now = SystemClock.elapsedRealtime();
+            locationRequestPolicy.onRemoved(now);
+            Timber.d("Location requests stopped: %s", locationRequestPolicy.toString(now));
+        }
         try {
             eventBus.unregister(this);
         } catch (IllegalArgumentException ignored) {
@@ -226,42 +336,12 @@ public class LocationUpdateManager {
         }
     }
 
-    private void publishNewLocation(Location location) {
-        GeoPoint newLocation = new GeoPoint(location.getLatitude(), location.getLongitude());
-        ownLocationModel.setLocation(newLocation, location.getAccuracy());
+    private void publishNewLocation() {
+        final int latitudeE6 = (int) Math.round(locationFilter.getLatitude() * 1000000.0D);
+        final int longitudeE6 = (int) Math.round(locationFilter.getLongitude() * 1000000.0D);
+        final float accuracy = locationFilter.getAccuracy();
+        ownLocationModel.setLocation(latitudeE6, longitudeE6, accuracy);
+        ownTrackBuffer.add(locationFilter.getTimeMillis(), latitudeE6, longitudeE6, accuracy);
         eventBus.post(Events.NEW_LOCATION_EVENT);
     }
-
-    private boolean shouldPublishNewLocation(Location location) {
-        // Any location is better than no location
-        if (lastPublishedLocation == null) {
-            return true;
-        }
-
-        // Average speed of the CM is ~4 m/s so anything over 30 seconds old, may already
-        // be well over 120m off. So a newer fix is assumed to be always better.
-        long timeDelta = location.getTime() - lastPublishedLocation.getTime();
-        boolean isSignificantlyNewer = timeDelta > LOCATION_NEW_THRESHOLD;
-        boolean isSignificantlyOlder = timeDelta < -LOCATION_NEW_THRESHOLD;
-        boolean isNewer = timeDelta > 0;
-
-        if (isSignificantlyNewer) {
-            return true;
-        } else if (isSignificantlyOlder) {
-            return false;
-        }
-
-        int accuracyDelta = (int) (location.getAccuracy() - lastPublishedLocation.getAccuracy());
-        boolean isLessAccurate = accuracyDelta > 0;
-        boolean isMoreAccurate = accuracyDelta < 0;
-        boolean isSignificantlyLessAccurate = accuracyDelta > 120;
-
-        boolean isFromSameProvider = location.getProvider().equals(lastPublishedLocation.getProvider());
-
-        if (isMoreAccurate) {
-            return true;
-        } else if (isNewer && !isLessAccurate) {
-            return true;
-        } else return isNewer && !isSignificantlyLessAccurate && isFromSameProvider;
-    }
 }
@@ -18,6 +18,7 @@ import java.util.List;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
 import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.utils.AeSimpleSHA1;
 import okhttp3.internal.Util;
@@ -44,7 +45,18 @@ public class ChatModel {
 
     public void setFromJson(JSONArray jsonArray) throws JSONException,
             UnsupportedEncodingException {
-        receivedChatMessages = new ArrayList<>(jsonArray.length());
+        setReceivedChatMessages(parseJson(jsonArray));
+    }
+
+    public void setReceivedChatMessages(@NonNull List<ReceivedChatMessage> receivedChatMessages) {
+        this.receivedChatMessages = receivedChatMessages;
+    }
+
+    // Doesn't touch the model, so it can be called off the main thread
+    @NonNull
+    public static List<ReceivedChatMessage> parseJson(JSONArray jsonArray) throws JSONException,
+            UnsupportedEncodingException {
+        final List<ReceivedChatMessage> receivedChatMessages = new ArrayList<>(jsonArray.length());
 
         for (int i = 0; i < jsonArray.length(); i++) {
             JSONObject jsonObject = jsonArray.getJSONObject(i);
@@ -59,13 +71,21 @@ public class ChatModel {
 
         Collections.sort(receivedChatMessages,
                 (oneChatMessages, otherChatMessage) -> oneChatMessages.getTimestamp().compareTo(otherChatMessage.getTimestamp()));
+        return Collections.unmodifiableList(receivedChatMessages);
     }
 
-    public JSONObject createNewOutgoingMessage(String message) {
+    @NonNull
+    public OutgoingChatMessage createNewOutgoingMessage(String message) {
+        return new OutgoingChatMessage(AeSimpleSHA1.SHA1(message + Math.random()), message,
+                System.currentTimeMillis());
+    }
+
+    @NonNull
+    public JSONObject toJson(@NonNull OutgoingChatMessage message) {
         JSONObject messageObject = new JSONObject();
         try {
-            messageObject.put("text", urlEncodeMessage(message));
-            messageObject.put("identifier", AeSimpleSHA1.SHA1(message + Math.random()));
+            messageObject.put("text", urlEncodeMessage(message.getMessage()));
+            messageObject.put("identifier", message.getIdentifier());
             messageObject.put("device", userModel.getChangingDeviceToken());
         } catch (JSONException e) {
             Timber.d(e);
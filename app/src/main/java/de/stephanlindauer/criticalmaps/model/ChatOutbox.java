@@ -0,0 +1,246 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
+import okhttp3.internal.Util;
+import timber.log.Timber;
+
+/**
+ * Chat messages that haven't reached the server yet, oldest first. Survives restarts in a small
+ * file with one tab separated line per message. Messages are keyed by their identifier, so
+ * queueing one twice is a no-op. Messages older than {@link #MAX_AGE} are dropped instead of
+ * being posted into a chat that has long moved on.
+ * <p>
+ * The file is only touched on a background thread: it is read right after creation and every
+ * change writes a copy of the messages, so the main thread can queue messages without disk I/O.
+ */
+@Singleton
+public class ChatOutbox {
+
+    static final String FILE_NAME = "chat_outbox";
+    public static final int MAX_BATCH_SIZE = 20;
+    // the server deletes messages after 30 minutes anyway, this only bounds the file
+    static final int MAX_PENDING = 100;
+    // by then the server deleted whatever the message was answering
+    static final long MAX_AGE = 30 * 60 * 1000; // 30 min
+
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private final File file;
+    private final Executor diskExecutor;
+    private final Clock clock;
+    // guarded by this; null until first read from disk
+    private LinkedHashMap<String, OutgoingChatMessage> pending;
+    private int batchSize = MAX_BATCH_SIZE;
+
+    @Inject
+    public ChatOutbox(App app) {
+        this(new File(app.getFilesDir(), FILE_NAME),
+                Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "chat-outbox")), System::currentTimeMillis);
+    }
+
+    ChatOutbox(File file, Clock clock) {
+        this(file, Runnable::run, clock);
+    }
+
+    ChatOutbox(File file, Executor diskExecutor, Clock clock) {
+        this.file = file;
+        this.diskExecutor = diskExecutor;
+        this.clock = clock;
+        // usually done before anyone asks, otherwise they wait for it
+        diskExecutor.execute(this::size);
+    }
+
+    /**
+     * @return false if a message with the same identifier is already queued
+     */
+    public synchronized boolean add(@NonNull OutgoingChatMessage message) {
+        final Map<String, OutgoingChatMessage> pending = getPending();
+        if (pending.containsKey(message.getIdentifier())) {
+            return false;
+        }
+        pending.put(message.getIdentifier(), message);
+        final Iterator<String> oldest = pending.keySet().iterator();
+        while (pending.size() > MAX_PENDING) {
+            oldest.next();
+            oldest.remove();
+        }
+        scheduleWrite();
+        return true;
+    }
+
+    /**
+     * @return the oldest messages that should go out together in the next request
+     */
+    @NonNull
+    public synchronized List<OutgoingChatMessage> peekBatch() {
+        dropExpired();
+        final List<OutgoingChatMessage> batch = new ArrayList<>(batchSize);
+        for (OutgoingChatMessage message : getPending().values()) {
+            if (batch.size() == batchSize) {
+                break;
+            }
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    /**
+     * Drops messages the server accepted.
+     */
+    public synchronized void onSent(@NonNull Collection<String> identifiers) {
+        batchSize = MAX_BATCH_SIZE;
+        if (getPending().keySet().removeAll(identifiers)) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Halves the next batch, so a batch the server chokes on can't block the outbox; a batch of
+     * one goes out in the plain single message format. Halving down to the oldest message also
+     * singles out one the server rejects, see {@link #onRejected(String)}.
+     */
+    public synchronized void onSendFailed(int failedBatchSize) {
+        batchSize = Math.max(1, Math.min(batchSize, failedBatchSize) / 2);
+    }
+
+    /**
+     * Drops a message the server refused on its own, so it can't hold up the ones behind it.
+     */
+    public synchronized void onRejected(@NonNull String identifier) {
+        batchSize = MAX_BATCH_SIZE;
+        if (getPending().remove(identifier) != null) {
+            Timber.w("Dropping chat message %s the server rejected", identifier);
+            scheduleWrite();
+        }
+    }
+
+    public synchronized int size() {
+        return getPending().size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return getPending().isEmpty();
+    }
+
+    private void dropExpired() {
+        final long now = clock.currentTimeMillis();
+        boolean hasDropped = false;
+        // oldest first, so the expired ones are at the head
+        final Iterator<OutgoingChatMessage> oldest = getPending().values().iterator();
+        while (oldest.hasNext() && isExpired(oldest.next(), now)) {
+            oldest.remove();
+            hasDropped = true;
+        }
+        if (hasDropped) {
+            Timber.d("Dropped expired chat messages");
+            scheduleWrite();
+        }
+    }
+
+    private static boolean isExpired(OutgoingChatMessage message, long now) {
+        return now - message.getCreatedAtMillis() > MAX_AGE;
+    }
+
+    private LinkedHashMap<String, OutgoingChatMessage> getPending() {
+        if (pending == null) {
+            pending = new LinkedHashMap<>();
+            read();
+        }
+        return pending;
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        final long now = clock.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), Util.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 3) {
+                    Timber.w("Skipping malformed outbox line");
+                    continue;
+                }
+                try {
+                    final OutgoingChatMessage message = new OutgoingChatMessage(fields[0],
+                            URLDecoder.decode(fields[2], Util.UTF_8.name()),
+                            Long.parseLong(fields[1]));
+                    if (!isExpired(message, now)) {
+                        pending.put(message.getIdentifier(), message);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Timber.w(e, "Skipping malformed outbox line");
+                }
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    private void scheduleWrite() {
+        // the executor runs one write after another, so the last snapshot ends up on disk
+        final List<OutgoingChatMessage> messages = new ArrayList<>(pending.values());
+        diskExecutor.execute(() -> write(messages));
+    }
+
+    private void write(List<OutgoingChatMessage> messages) {
+        // write a copy and swap it in, so a crash mid-write can't lose the whole outbox
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), Util.UTF_8)) {
+            for (OutgoingChatMessage message : messages) {
+                writer.write(message.getIdentifier());
+                writer.write('\t');
+                writer.write(Long.toString(message.getCreatedAtMillis()));
+                writer.write('\t');
+                writer.write(encode(message.getMessage()));
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Timber.e("Couldn't replace %s", file);
+        }
+    }
+
+    // URL encoding keeps tabs and line breaks out of the fields
+    private static String encode(String message) throws UnsupportedEncodingException {
+        return URLEncoder.encode(message, Util.UTF_8.name());
+    }
+}
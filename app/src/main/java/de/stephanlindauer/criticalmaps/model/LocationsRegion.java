@@ -0,0 +1,221 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.NonNull;
+
+import org.osmdroid.util.BoundingBox;
+
+import java.util.Locale;
+
+/**
+ * Part of the world riders get fetched for, either a bounding box or a circle around a point.
+ * Boxes crossing the antimeridian have west > east. Boxes are snapped outwards to a
+ * {@link #GRID_E6} grid, so small pans keep the same region and with it the same request.
+ */
+public final class LocationsRegion {
+
+    static final int GRID_E6 = 50000; // 0.05°
+    private static final int MAX_LATITUDE_E6 = 90000000;
+    private static final int MAX_LONGITUDE_E6 = 180000000;
+    private static final double METERS_PER_DEGREE = 111195.0D;
+    private static final int NO_RADIUS = 0;
+
+    private final int southE6;
+    private final int northE6;
+    private final int westE6;
+    private final int eastE6;
+    private final int centerLatitudeE6;
+    private final int centerLongitudeE6;
+    private final int radiusMeters;
+
+    private LocationsRegion(int southE6, int northE6, int westE6, int eastE6,
+                            int centerLatitudeE6, int centerLongitudeE6, int radiusMeters) {
+        this.southE6 = southE6;
+        this.northE6 = northE6;
+        this.westE6 = westE6;
+        this.eastE6 = eastE6;
+        this.centerLatitudeE6 = centerLatitudeE6;
+        this.centerLongitudeE6 = centerLongitudeE6;
+        this.radiusMeters = radiusMeters;
+    }
+
+    /**
+     * @param margin fraction of the box's size added on every side, so riders just outside the
+     *               viewport are there when panning
+     */
+    @NonNull
+    public static LocationsRegion ofBoundingBox(@NonNull BoundingBox box, double margin) {
+        final double latitudeMargin = box.getLatitudeSpan() * margin;
+        final double longitudeSpan = box.getLonWest() <= box.getLonEast()
+                ? box.getLonEast() - box.getLonWest()
+                : box.getLonEast() - box.getLonWest() + 360.0D;
+        final double longitudeMargin = longitudeSpan * margin;
+
+        final int southE6 = Math.max(-MAX_LATITUDE_E6,
+                snapDown(toE6(box.getLatSouth() - latitudeMargin)));
+        final int northE6 = Math.min(MAX_LATITUDE_E6,
+                snapUp(toE6(box.getLatNorth() + latitudeMargin)));
+        if (longitudeSpan + 2 * longitudeMargin >= 360.0D) {
+            return new LocationsRegion(southE6, northE6, -MAX_LONGITUDE_E6, MAX_LONGITUDE_E6,
+                    0, 0, NO_RADIUS);
+        }
+        final int westE6 = wrapLongitude(snapDown(toE6(box.getLonWest() - longitudeMargin)));
+        final int eastE6 = wrapLongitude(snapUp(toE6(box.getLonEast() + longitudeMargin)));
+        return new LocationsRegion(southE6, northE6, westE6, eastE6, 0, 0, NO_RADIUS);
+    }
+
+    @NonNull
+    public static LocationsRegion around(int latitudeE6, int longitudeE6, int radiusMeters) {
+        final double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        final double longitudeDelta = latitudeDelta
+                / Math.max(Math.cos(Math.toRadians(latitudeE6 / 1e6D)), 0.01D);
+        final int southE6 = Math.max(-MAX_LATITUDE_E6, latitudeE6 - toE6(latitudeDelta));
+        final int northE6 = Math.min(MAX_LATITUDE_E6, latitudeE6 + toE6(latitudeDelta));
+        if (longitudeDelta >= 180.0D) {
+            return new LocationsRegion(southE6, northE6, -MAX_LONGITUDE_E6, MAX_LONGITUDE_E6,
+                    latitudeE6, longitudeE6, radiusMeters);
+        }
+        return new LocationsRegion(southE6, northE6,
+                wrapLongitude(longitudeE6 - toE6(longitudeDelta)),
+                wrapLongitude(longitudeE6 + toE6(longitudeDelta)),
+                latitudeE6, longitudeE6, radiusMeters);
+    }
+
+    public boolean contains(int latitudeE6, int longitudeE6) {
+        if (latitudeE6 < southE6 || latitudeE6 > northE6) {
+            return false;
+        }
+        final boolean isInLongitudeRange = westE6 <= eastE6
+                ? longitudeE6 >= westE6 && longitudeE6 <= eastE6
+                : longitudeE6 >= westE6 || longitudeE6 <= eastE6;
+        if (!isInLongitudeRange) {
+            return false;
+        }
+        if (!isRadius()) {
+            return true;
+        }
+
+        final double dy = (latitudeE6 - centerLatitudeE6) / 1e6D * METERS_PER_DEGREE;
+        double dLongitudeE6 = Math.abs(longitudeE6 - centerLongitudeE6);
+        if (dLongitudeE6 > MAX_LONGITUDE_E6) {
+            dLongitudeE6 = 2.0D * MAX_LONGITUDE_E6 - dLongitudeE6;
+        }
+        final double dx = dLongitudeE6 / 1e6D * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(centerLatitudeE6 / 1e6D));
+        return dx * dx + dy * dy <= (double) radiusMeters * radiusMeters;
+    }
+
+    /**
+     * @return true if the whole box lies within the region
+     */
+    public boolean contains(@NonNull BoundingBox box) {
+        final int southE6 = toE6(box.getLatSouth());
+        final int northE6 = toE6(box.getLatNorth());
+        final int westE6 = toE6(box.getLonWest());
+        final int eastE6 = toE6(box.getLonEast());
+        // the corners don't tell if one of both wraps around the other side of the world
+        final boolean isBoxCrossing = westE6 > eastE6;
+        final boolean isRegionCrossing = this.westE6 > this.eastE6;
+        if (isBoxCrossing && !isRegionCrossing) {
+            return this.westE6 == -MAX_LONGITUDE_E6 && this.eastE6 == MAX_LONGITUDE_E6
+                    && contains(southE6, 0) && contains(northE6, 0);
+        }
+        if (!isBoxCrossing && isRegionCrossing
+                && westE6 <= this.eastE6 && eastE6 >= this.westE6) {
+            return false;
+        }
+        return contains(southE6, westE6) && contains(southE6, eastE6)
+                && contains(northE6, westE6) && contains(northE6, eastE6);
+    }
+
+    public boolean isRadius() {
+        return radiusMeters != NO_RADIUS;
+    }
+
+    public int getSouthE6() {
+        return southE6;
+    }
+
+    public int getNorthE6() {
+        return northE6;
+    }
+
+    public int getWestE6() {
+        return westE6;
+    }
+
+    public int getEastE6() {
+        return eastE6;
+    }
+
+    public int getCenterLatitudeE6() {
+        return centerLatitudeE6;
+    }
+
+    public int getCenterLongitudeE6() {
+        return centerLongitudeE6;
+    }
+
+    public int getRadiusMeters() {
+        return radiusMeters;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LocationsRegion)) {
+            return false;
+        }
+        final LocationsRegion other = (LocationsRegion) o;
+        return southE6 == other.southE6 && northE6 == other.northE6
+                && westE6 == other.westE6 && eastE6 == other.eastE6
+                && centerLatitudeE6 == other.centerLatitudeE6
+                && centerLongitudeE6 == other.centerLongitudeE6
+                && radiusMeters == other.radiusMeters;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = southE6;
+        result = 31 * result + northE6;
+        result = 31 * result + westE6;
+        result = 31 * result + eastE6;
+        result = 31 * result + centerLatitudeE6;
+        result = 31 * result + centerLongitudeE6;
+        result = 31 * result + radiusMeters;
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        if (isRadius()) {
+            return String.format(Locale.US, "%d m around %d,%d",
+                    radiusMeters, centerLatitudeE6, centerLongitudeE6);
+        }
+        return String.format(Locale.US, "%d,%d,%d,%d", westE6, southE6, eastE6, northE6);
+    }
+
+    private static int snapDown(int e6) {
+        return (int) Math.floor((double) e6 / GRID_E6) * GRID_E6;
+    }
+
+    private static int snapUp(int e6) {
+        return (int) Math.ceil((double) e6 / GRID_E6) * GRID_E6;
+    }
+
+    private static int wrapLongitude(int longitudeE6) {
+        if (longitudeE6 > MAX_LONGITUDE_E6) {
+            return longitudeE6 - 2 * MAX_LONGITUDE_E6;
+        }
+        if (longitudeE6 < -MAX_LONGITUDE_E6) {
+            return longitudeE6 + 2 * MAX_LONGITUDE_E6;
+        }
+        return longitudeE6;
+    }
+
+    private static int toE6(double degrees) {
+        return (int) Math.round(degrees * 1e6D);
+    }
+}
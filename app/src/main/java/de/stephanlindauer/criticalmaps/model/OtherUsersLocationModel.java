@@ -1,23 +1,43 @@
 package de.stephanlindauer.criticalmaps.model;
 
+import androidx.annotation.Nullable;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.osmdroid.util.GeoPoint;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.Arrays;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec;
+import de.stephanlindauer.criticalmaps.codec.LocationsJsonDecoder;
+import okio.BufferedSource;
+
 @Singleton
 public class OtherUsersLocationModel {
 
-    private ArrayList<GeoPoint> otherUsersLocations = new ArrayList<>();
+    private RiderLocations otherUsersLocations = new RiderLocations();
+    // the snapshot the map draws, which must not be refilled while it's on screen; guarded by this
+    private RiderLocations shownLocations;
+    // a snapshot nobody reads anymore, its arrays are refilled by the next decode
+    private RiderLocations recycledLocations;
+    private int version;
+    private volatile int maxClusterZoom = RiderClusters.DEFAULT_MAX_ZOOM;
+    private volatile LocationsRegion queryRegion;
 
     private final UserModel userModel;
+    private final Object decoderLock = new Object();
+    private LocationsJsonDecoder locationsJsonDecoder;
+    private LocationsBinaryCodec locationsBinaryCodec;
+    // device hashes a change set touched, guarded by decoderLock
+    private long[] changedDevices = new long[64];
+    private int changedDeviceCount;
+    // last snapshot decoded from changes; the next changes build on it even before it's
+    // published, guarded by this
+    private RiderLocations latestFromChanges;
 
     @Inject
     public OtherUsersLocationModel(UserModel userModel) {
@@ -26,21 +46,236 @@ public class OtherUsersLocationModel {
 
 
     public void setFromJson(JSONArray jsonArray) throws JSONException {
-        otherUsersLocations = new ArrayList<>(jsonArray.length());
-        for (int i = 0; i < jsonArray.length(); i++) {
-            JSONObject locationObject = jsonArray.getJSONObject(i);
-            if (locationObject.getString("device").equals(userModel.getChangingDeviceToken())) {
-                continue; // Ignore own location
+        final RiderLocations locations;
+        synchronized (decoderLock) {
+            locations = obtainRiderLocations();
+            for (int i = 0; i < jsonArray.length(); i++) {
+                JSONObject locationObject = jsonArray.getJSONObject(i);
+                final String device = locationObject.getString("device");
+                if (device.equals(userModel.getChangingDeviceToken())) {
+                    continue; // Ignore own location
+                }
+                int latitudeE6 = Integer.parseInt(locationObject.getString("latitude"));
+                int longitudeE6 = Integer.parseInt(locationObject.getString("longitude"));
+
+                locations.add(LocationsJsonDecoder.hashDeviceId(device), latitudeE6, longitudeE6);
+            }
+            prepare(locations);
+        }
+        setOtherUsersLocations(locations);
+    }
+
+    public RiderLocations decodeFromSource(BufferedSource source) throws IOException {
+        return decodeFromSource(source, false, queryRegion);
+    }
+
+    /**
+     * Called off the main thread; the result is applied with setOtherUsersLocations()
+     *
+     * @param isBinary true if the source holds a {@link LocationsBinaryCodec} snapshot instead
+     *                 of JSON
+     * @param region   riders outside are dropped, in case the server ignored the region; null
+     *                 keeps all
+     */
+    public RiderLocations decodeFromSource(BufferedSource source, boolean isBinary,
+                                           @Nullable LocationsRegion region) throws IOException {
+        synchronized (decoderLock) {
+            final RiderLocations decodedLocations = obtainRiderLocations();
+            final LocationsJsonDecoder.Callback callback = region == null
+                    ? decodedLocations::add
+                    : (deviceHash, latitudeE6, longitudeE6) -> {
+                        if (region.contains(latitudeE6, longitudeE6)) {
+                            decodedLocations.add(deviceHash, latitudeE6, longitudeE6);
+                        }
+                    };
+            try {
+                if (isBinary) {
+                    if (locationsBinaryCodec == null) {
+                        locationsBinaryCodec =
+                                new LocationsBinaryCodec(userModel.getChangingDeviceToken());
+                    }
+                    locationsBinaryCodec.decode(source, callback);
+                } else {
+                    if (locationsJsonDecoder == null) {
+                        locationsJsonDecoder =
+                                new LocationsJsonDecoder(userModel.getChangingDeviceToken());
+                    }
+                    locationsJsonDecoder.decode(source, callback);
+                }
+            } catch (IOException e) {
+                recycle(decodedLocations);
+                throw e;
             }
-            int latitudeE6 = Integer.parseInt(locationObject.getString("latitude"));
-            int longitudeE6 = Integer.parseInt(locationObject.getString("longitude"));
 
-            otherUsersLocations.add(
-                    new GeoPoint(latitudeE6 / 1000000.0D, longitudeE6 / 1000000.0D));
+            decodedLocations.setRegion(region);
+            prepare(decodedLocations);
+            return decodedLocations;
         }
     }
 
-    public ArrayList<GeoPoint> getOtherUsersLocations() {
+    /**
+     * Applies pushed changes in the {@link LocationsJsonDecoder#decodeChanges} format to the
+     * current snapshot. Called off the main thread like decodeFromSource(); the result is a new
+     * snapshot to apply with setOtherUsersLocations(), its diff holds just these changes.
+     */
+    public RiderLocations decodeChanges(BufferedSource source) throws IOException {
+        final LocationsRegion region = queryRegion;
+        synchronized (decoderLock) {
+            final RiderLocations decodedLocations = obtainRiderLocations();
+            changedDeviceCount = 0;
+            final LocationsJsonDecoder.ChangeCallback callback =
+                    new LocationsJsonDecoder.ChangeCallback() {
+                        @Override
+                        public void onLocation(long deviceHash, int latitudeE6,
+                                               int longitudeE6) {
+                            addChangedDevice(deviceHash);
+                            // a rider moving out of the region is removed as well
+                            if (region == null || region.contains(latitudeE6, longitudeE6)) {
+                                decodedLocations.add(deviceHash, latitudeE6, longitudeE6);
+                            }
+                        }
+
+                        @Override
+                        public void onRemoved(long deviceHash) {
+                            addChangedDevice(deviceHash);
+                        }
+                    };
+            try {
+                if (locationsJsonDecoder == null) {
+                    locationsJsonDecoder =
+                            new LocationsJsonDecoder(userModel.getChangingDeviceToken());
+                }
+                locationsJsonDecoder.decodeChanges(source, callback);
+            } catch (IOException e) {
+                recycle(decodedLocations);
+                throw e;
+            }
+
+            // everyone the changes didn't touch stays where they are
+            Arrays.sort(changedDevices, 0, changedDeviceCount);
+            final RiderLocations base = changesBase();
+            for (int i = 0; i < base.size(); i++) {
+                final long deviceHash = base.getDeviceHash(i);
+                if (Arrays.binarySearch(changedDevices, 0, changedDeviceCount, deviceHash) < 0) {
+                    decodedLocations.add(deviceHash,
+                            base.getLatitudeE6(i), base.getLongitudeE6(i));
+                }
+            }
+
+            decodedLocations.setFromChanges(true);
+            decodedLocations.setRegion(region);
+            prepare(decodedLocations);
+            setLatestFromChanges(decodedLocations);
+            return decodedLocations;
+        }
+    }
+
+    private synchronized RiderLocations changesBase() {
+        // the previous changes may still be on their way to the main thread
+        return latestFromChanges != null ? latestFromChanges : otherUsersLocations;
+    }
+
+    private synchronized void setLatestFromChanges(RiderLocations locations) {
+        latestFromChanges = locations;
+    }
+
+    private void addChangedDevice(long deviceHash) {
+        if (changedDeviceCount == changedDevices.length) {
+            changedDevices = Arrays.copyOf(changedDevices, changedDeviceCount * 2);
+        }
+        changedDevices[changedDeviceCount++] = deviceHash;
+    }
+
+    public synchronized void setOtherUsersLocations(RiderLocations otherUsersLocations) {
+        if (this.otherUsersLocations == otherUsersLocations) {
+            return;
+        }
+
+        final RiderLocationsDiff changes = otherUsersLocations.getChanges();
+        if (changes.getBaseVersion() != this.otherUsersLocations.getVersion()) {
+            // another snapshot got published in between
+            changes.compute(this.otherUsersLocations, otherUsersLocations);
+        }
+        otherUsersLocations.setVersion(++version);
+        if (!otherUsersLocations.isFromChanges() || otherUsersLocations == latestFromChanges) {
+            // the pending changes are published, or a whole snapshot superseded them
+            latestFromChanges = null;
+        }
+
+        final RiderLocations previousLocations = this.otherUsersLocations;
+        this.otherUsersLocations = otherUsersLocations;
+        if (previousLocations != shownLocations) {
+            recycledLocations = previousLocations;
+        }
+    }
+
+    /**
+     * Tells which snapshot the map is drawing, so it isn't reused until the map moved on to
+     * another one. Called on the main thread; null once the map is gone.
+     */
+    public synchronized void setShownLocations(@Nullable RiderLocations shownLocations) {
+        final RiderLocations previousLocations = this.shownLocations;
+        this.shownLocations = shownLocations;
+        if (previousLocations != null && previousLocations != shownLocations
+                && previousLocations != otherUsersLocations) {
+            recycledLocations = previousLocations;
+        }
+    }
+
+    /**
+     * The returned snapshot is only valid until the next call to
+     * {@link #setOtherUsersLocations(RiderLocations)}; don't hold on to it unless it's passed
+     * to {@link #setShownLocations(RiderLocations)}.
+     */
+    public RiderLocations getOtherUsersLocations() {
+        return otherUsersLocations;
+    }
+
+    /**
+     * @return the region riders get fetched for, null for the whole world
+     */
+    @Nullable
+    public LocationsRegion getQueryRegion() {
+        return queryRegion;
+    }
+
+    public void setQueryRegion(@Nullable LocationsRegion queryRegion) {
+        this.queryRegion = queryRegion;
+    }
+
+    public int getMaxClusterZoom() {
+        return maxClusterZoom;
+    }
+
+    /**
+     * Takes effect with the next snapshot.
+     */
+    public void setMaxClusterZoom(int maxClusterZoom) {
+        this.maxClusterZoom = maxClusterZoom;
+    }
+
+    // everything derived from a snapshot is computed here, while we're still off the main thread
+    private void prepare(RiderLocations locations) {
+        locations.getChanges().compute(currentLocations(), locations);
+        locations.getSpatialIndex().rebuild(locations);
+        locations.getClusters().rebuild(locations, maxClusterZoom);
+    }
+
+    private synchronized RiderLocations currentLocations() {
         return otherUsersLocations;
     }
+
+    private synchronized void recycle(RiderLocations locations) {
+        recycledLocations = locations;
+    }
+
+    private synchronized RiderLocations obtainRiderLocations() {
+        RiderLocations locations = recycledLocations;
+        recycledLocations = null;
+        if (locations == null) {
+            locations = new RiderLocations();
+        }
+        locations.clear();
+        return locations;
+    }
 }
@@ -1,6 +1,7 @@
 package de.stephanlindauer.criticalmaps.model;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -14,30 +15,72 @@ import timber.log.Timber;
 @Singleton
 public class OwnLocationModel {
 
-    private static final float ACCURACY_PRECISE_THRESHOLD = 50.0f; //meters
+    static final float ACCURACY_PRECISE_THRESHOLD = 50.0f; //meters
 
-    public GeoPoint ownLocation;
-    private boolean isLocationPrecise;
+    // not a valid latitude, so it can't collide with a real location
+    private static final long NO_LOCATION = Long.MIN_VALUE;
+
+    // latitude E6 in the upper, longitude E6 in the lower 32 bits, so the heartbeat built on
+    // another thread always reads both of the same fix
+    private volatile long locationE6 = NO_LOCATION;
+    private volatile boolean isLocationPrecise;
 
     @Inject
     public OwnLocationModel() {
     }
 
-    public void setLocation(@NonNull GeoPoint location, float accuracy) {
-        ownLocation = location;
+    public void setLocation(int latitudeE6, int longitudeE6, float accuracy) {
         isLocationPrecise = accuracy < ACCURACY_PRECISE_THRESHOLD;
+        locationE6 = ((long) latitudeE6 << 32) | (longitudeE6 & 0xFFFFFFFFL);
+    }
+
+    public boolean hasLocation() {
+        return locationE6 != NO_LOCATION;
     }
 
     public boolean hasPreciseLocation() {
-        return ownLocation != null && isLocationPrecise;
+        return hasLocation() && isLocationPrecise;
+    }
+
+    /**
+     * @return both coordinates packed into one value, unpack with {@link #latitudeE6(long)} and
+     * {@link #longitudeE6(long)}; only valid if {@link #hasLocation()}
+     */
+    public long getLocationE6() {
+        return locationE6;
+    }
+
+    public static int latitudeE6(long locationE6) {
+        return (int) (locationE6 >> 32);
+    }
+
+    public static int longitudeE6(long locationE6) {
+        return (int) locationE6;
+    }
+
+    /**
+     * @return a new GeoPoint for the map or null if there's no location yet
+     */
+    @Nullable
+    public GeoPoint getOwnLocation() {
+        final long locationE6 = this.locationE6;
+        if (locationE6 == NO_LOCATION) {
+            return null;
+        }
+        return new GeoPoint(latitudeE6(locationE6) / 1000000.0D,
+                longitudeE6(locationE6) / 1000000.0D);
     }
 
     @NonNull
     public JSONObject getLocationJson() {
+        final long locationE6 = this.locationE6;
+        if (locationE6 == NO_LOCATION) {
+            throw new NullPointerException("No location yet");
+        }
         JSONObject locationObject = new JSONObject();
         try {
-            locationObject.put("longitude", Integer.toString((int) (ownLocation.getLongitude() * 1000000.0D)));
-            locationObject.put("latitude", Integer.toString((int) (ownLocation.getLatitude() * 1000000.0D)));
+            locationObject.put("longitude", Integer.toString(longitudeE6(locationE6)));
+            locationObject.put("latitude", Integer.toString(latitudeE6(locationE6)));
         } catch (JSONException e) {
             Timber.e(e);
         }
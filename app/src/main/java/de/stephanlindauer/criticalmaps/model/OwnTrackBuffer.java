@@ -0,0 +1,106 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.codec.TrackSegmentCodec;
+import okio.Buffer;
+import timber.log.Timber;
+
+/**
+ * Our own precise fixes since the last heartbeat, so the server gets the path between two
+ * heartbeats instead of only their end points. Bounded by {@link #MAX_BATCH_SIZE} fixes, the
+ * oldest get dropped first, and {@link #MAX_AGE}.
+ */
+@Singleton
+public class OwnTrackBuffer {
+
+    public static final int MAX_BATCH_SIZE = 20;
+    public static final long MAX_AGE = 2 * 60 * 1000; // 2 min
+    private static final long NONE_PENDING = Long.MIN_VALUE;
+
+    // all guarded by this
+    private final long[] timesMillis = new long[MAX_BATCH_SIZE];
+    private final int[] latitudesE6 = new int[MAX_BATCH_SIZE];
+    private final int[] longitudesE6 = new int[MAX_BATCH_SIZE];
+    private int size;
+    private long pendingUntil = NONE_PENDING;
+
+    @Inject
+    public OwnTrackBuffer() {
+    }
+
+    public synchronized void add(long timeMillis, int latitudeE6, int longitudeE6,
+                                 float accuracy) {
+        if (accuracy >= OwnLocationModel.ACCURACY_PRECISE_THRESHOLD
+                || (size > 0 && timeMillis <= timesMillis[size - 1])) {
+            return;
+        }
+        if (size == MAX_BATCH_SIZE) {
+            removeFirst(1);
+        }
+        timesMillis[size] = timeMillis;
+        latitudesE6[size] = latitudeE6;
+        longitudesE6[size] = longitudeE6;
+        size++;
+    }
+
+    /**
+     * Encodes the buffered fixes as a {@link TrackSegmentCodec} segment. They stay buffered
+     * until {@link #onUploaded()}, so a failed heartbeat sends them again with the next one.
+     *
+     * @return the segment as URL safe base64 or null if there are less than two fixes
+     */
+    @Nullable
+    public synchronized String encodePending(long nowMillis) {
+        int expired = 0;
+        while (expired < size && timesMillis[expired] < nowMillis - MAX_AGE) {
+            expired++;
+        }
+        removeFirst(expired);
+        if (size < 2) {
+            return null;
+        }
+
+        final Buffer buffer = new Buffer();
+        try {
+            TrackSegmentCodec.encode(timesMillis, latitudesE6, longitudesE6, size, buffer);
+        } catch (IOException e) {
+            // can't happen, a Buffer doesn't do I/O
+            Timber.e(e);
+            return null;
+        }
+        pendingUntil = timesMillis[size - 1];
+        return buffer.readByteString().base64Url();
+    }
+
+    /**
+     * Drops the fixes of the last encoded segment, the server has them now.
+     */
+    public synchronized void onUploaded() {
+        int uploaded = 0;
+        while (uploaded < size && timesMillis[uploaded] <= pendingUntil) {
+            uploaded++;
+        }
+        removeFirst(uploaded);
+        pendingUntil = NONE_PENDING;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void removeFirst(int count) {
+        if (count == 0) {
+            return;
+        }
+        size -= count;
+        System.arraycopy(timesMillis, count, timesMillis, 0, size);
+        System.arraycopy(latitudesE6, count, latitudesE6, 0, size);
+        System.arraycopy(longitudesE6, count, longitudesE6, 0, size);
+    }
+}
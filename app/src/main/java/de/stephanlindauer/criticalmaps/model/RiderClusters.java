@@ -0,0 +1,224 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.utils.WebMercator;
+
+/**
+ * Cluster hierarchy over one {@link RiderLocations} snapshot, one level per zoom level up to a
+ * maximum zoom (supercluster style). Each level greedily merges the clusters of the level below
+ * it that lie within {@link #RADIUS_PIXELS} of each other at that zoom. Coordinates are kept in
+ * normalized Web Mercator space [0, 1].
+ */
+public class RiderClusters {
+
+    public static final int DEFAULT_MAX_ZOOM = 10;
+    public static final int NO_RIDER = -1;
+
+    static final double RADIUS_PIXELS = 40.0D;
+    private static final double TILE_SIZE = 256.0D;
+
+    private Level[] levels = new Level[0];
+    private int maxZoom = -1;
+
+    // scratch space for the grid used to find neighbours
+    private int bucketMask;
+    private long[] cellKeys = new long[0];
+    private int[] bucketStarts = new int[0];
+    private int[] sortedIndices = new int[0];
+    private boolean[] processed = new boolean[0];
+    private final Level riderLevel = new Level();
+
+    /**
+     * @return the highest zoom level clusters exist for, -1 if never built
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * @param zoom is clamped to [0, {@link #getMaxZoom()}]; if never built an empty level is
+     *             returned
+     */
+    @NonNull
+    public Level getLevel(int zoom) {
+        if (maxZoom < 0) {
+            return riderLevel;
+        }
+        return levels[Math.max(0, Math.min(zoom, maxZoom))];
+    }
+
+    void rebuild(RiderLocations locations, int maxZoom) {
+        if (levels.length < maxZoom + 1) {
+            final Level[] newLevels = Arrays.copyOf(levels, maxZoom + 1);
+            for (int i = levels.length; i < newLevels.length; i++) {
+                newLevels[i] = new Level();
+            }
+            levels = newLevels;
+        }
+        this.maxZoom = maxZoom;
+
+        riderLevel.clear();
+        for (int i = 0; i < locations.size(); i++) {
+            riderLevel.add(WebMercator.longitudeToX(locations.getLongitude(i)),
+                    WebMercator.latitudeToY(locations.getLatitude(i)), 1, i);
+        }
+
+        Level input = riderLevel;
+        for (int zoom = maxZoom; zoom >= 0; zoom--) {
+            cluster(input, levels[zoom], RADIUS_PIXELS / (TILE_SIZE * Math.pow(2, zoom)));
+            input = levels[zoom];
+        }
+    }
+
+    private void cluster(Level input, Level output, double radius) {
+        output.clear();
+        final int size = input.size;
+        final long cellsPerAxis = (long) Math.ceil(1.0D / radius) + 1;
+        buildGrid(input, radius, cellsPerAxis);
+
+        if (processed.length < size) {
+            processed = new boolean[size];
+        } else {
+            Arrays.fill(processed, 0, size, false);
+        }
+
+        final double radiusSquared = radius * radius;
+        for (int i = 0; i < size; i++) {
+            if (processed[i]) {
+                continue;
+            }
+            processed[i] = true;
+
+            final double x = input.x[i];
+            final double y = input.y[i];
+            double weightedX = x * input.counts[i];
+            double weightedY = y * input.counts[i];
+            int count = input.counts[i];
+
+            final long cellX = (long) (x / radius);
+            final long cellY = (long) (y / radius);
+            for (long neighbourY = cellY - 1; neighbourY <= cellY + 1; neighbourY++) {
+                for (long neighbourX = cellX - 1; neighbourX <= cellX + 1; neighbourX++) {
+                    if (neighbourX < 0 || neighbourY < 0
+                            || neighbourX >= cellsPerAxis || neighbourY >= cellsPerAxis) {
+                        continue;
+                    }
+                    final long cellKey = neighbourY * cellsPerAxis + neighbourX;
+                    final int bucket = bucket(cellKey);
+                    for (int s = bucketStarts[bucket]; s < bucketStarts[bucket + 1]; s++) {
+                        final int j = sortedIndices[s];
+                        if (processed[j] || cellKeys[j] != cellKey) {
+                            continue;
+                        }
+                        final double dx = input.x[j] - x;
+                        final double dy = input.y[j] - y;
+                        if (dx * dx + dy * dy <= radiusSquared) {
+                            processed[j] = true;
+                            weightedX += input.x[j] * input.counts[j];
+                            weightedY += input.y[j] * input.counts[j];
+                            count += input.counts[j];
+                        }
+                    }
+                }
+            }
+
+            if (count == input.counts[i]) {
+                output.add(x, y, count, input.riderIndices[i]);
+            } else {
+                output.add(weightedX / count, weightedY / count, count, NO_RIDER);
+            }
+        }
+    }
+
+    private void buildGrid(Level input, double radius, long cellsPerAxis) {
+        final int size = input.size;
+        final int bucketCount = Integer.highestOneBit(Math.max(size, 8) * 2 - 1);
+        if (bucketStarts.length < bucketCount + 1) {
+            bucketStarts = new int[bucketCount + 1];
+        } else {
+            Arrays.fill(bucketStarts, 0, bucketCount + 1, 0);
+        }
+        bucketMask = bucketCount - 1;
+        if (cellKeys.length < size) {
+            cellKeys = new long[size];
+            sortedIndices = new int[size];
+        }
+
+        for (int i = 0; i < size; i++) {
+            final long cellKey = (long) (input.y[i] / radius) * cellsPerAxis
+                    + (long) (input.x[i] / radius);
+            cellKeys[i] = cellKey;
+            bucketStarts[bucket(cellKey) + 1]++;
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+        for (int i = 0; i < size; i++) {
+            sortedIndices[bucketStarts[bucket(cellKeys[i])]++] = i;
+        }
+        System.arraycopy(bucketStarts, 0, bucketStarts, 1, bucketCount);
+        bucketStarts[0] = 0;
+    }
+
+    private int bucket(long cellKey) {
+        final int hash = (int) (cellKey ^ (cellKey >>> 32)) * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & bucketMask;
+    }
+
+    /**
+     * Clusters of one zoom level. A cluster with a count of one is a single rider, its index into
+     * the snapshot is available through {@link #getRiderIndex(int)}.
+     */
+    public static class Level {
+        private int size;
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+        private int[] counts = new int[0];
+        private int[] riderIndices = new int[0];
+
+        public int size() {
+            return size;
+        }
+
+        public int getCount(int i) {
+            return counts[i];
+        }
+
+        /**
+         * @return index into the snapshot or {@link #NO_RIDER} for clusters
+         */
+        public int getRiderIndex(int i) {
+            return riderIndices[i];
+        }
+
+        public double getLatitude(int i) {
+            return WebMercator.yToLatitude(y[i]);
+        }
+
+        public double getLongitude(int i) {
+            return WebMercator.xToLongitude(x[i]);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(double x, double y, int count, int riderIndex) {
+            if (size == this.x.length) {
+                final int newCapacity = Math.max(16, size * 2);
+                this.x = Arrays.copyOf(this.x, newCapacity);
+                this.y = Arrays.copyOf(this.y, newCapacity);
+                counts = Arrays.copyOf(counts, newCapacity);
+                riderIndices = Arrays.copyOf(riderIndices, newCapacity);
+            }
+            this.x[size] = x;
+            this.y[size] = y;
+            counts[size] = count;
+            riderIndices[size] = riderIndex;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.osmdroid.util.GeoPoint;
+
+import java.util.Arrays;
+
+/**
+ * Packed, column-oriented store for one snapshot of other riders' locations. Consumers only get
+ * read access by index; the backing arrays are reused by {@link OtherUsersLocationModel} for
+ * subsequent snapshots.
+ */
+public class RiderLocations {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final RiderLocationsDiff changes = new RiderLocationsDiff();
+    private final RiderSpatialIndex spatialIndex = new RiderSpatialIndex();
+    private final RiderClusters clusters = new RiderClusters();
+    private int version;
+    // built from pushed changes to another snapshot rather than decoded as a whole
+    private boolean isFromChanges;
+    private LocationsRegion region;
+    private int size;
+    private long[] deviceHashes = new long[INITIAL_CAPACITY];
+    private int[] latitudesE6 = new int[INITIAL_CAPACITY];
+    private int[] longitudesE6 = new int[INITIAL_CAPACITY];
+
+    /**
+     * @return increasing number assigned when the snapshot got published, 0 if it never was
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the region the riders were fetched for, null for the whole world
+     */
+    @Nullable
+    public LocationsRegion getRegion() {
+        return region;
+    }
+
+    /**
+     * @return changes relative to the snapshot published before this one
+     */
+    @NonNull
+    public RiderLocationsDiff getChanges() {
+        return changes;
+    }
+
+    @NonNull
+    public RiderSpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    @NonNull
+    public RiderClusters getClusters() {
+        return clusters;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getDeviceHash(int index) {
+        return deviceHashes[checkIndex(index)];
+    }
+
+    public int getLatitudeE6(int index) {
+        return latitudesE6[checkIndex(index)];
+    }
+
+    public int getLongitudeE6(int index) {
+        return longitudesE6[checkIndex(index)];
+    }
+
+    public double getLatitude(int index) {
+        return getLatitudeE6(index) / 1000000.0D;
+    }
+
+    public double getLongitude(int index) {
+        return getLongitudeE6(index) / 1000000.0D;
+    }
+
+    @NonNull
+    public GeoPoint getGeoPoint(int index) {
+        return new GeoPoint(getLatitude(index), getLongitude(index));
+    }
+
+    void clear() {
+        size = 0;
+        version = 0;
+        isFromChanges = false;
+        region = null;
+    }
+
+    boolean isFromChanges() {
+        return isFromChanges;
+    }
+
+    void setFromChanges(boolean isFromChanges) {
+        this.isFromChanges = isFromChanges;
+    }
+
+    void setRegion(@Nullable LocationsRegion region) {
+        this.region = region;
+    }
+
+    void setVersion(int version) {
+        this.version = version;
+    }
+
+    void add(long deviceHash, int latitudeE6, int longitudeE6) {
+        if (size == deviceHashes.length) {
+            final int newCapacity = size * 2;
+            deviceHashes = Arrays.copyOf(deviceHashes, newCapacity);
+            latitudesE6 = Arrays.copyOf(latitudesE6, newCapacity);
+            longitudesE6 = Arrays.copyOf(longitudesE6, newCapacity);
+        }
+        deviceHashes[size] = deviceHash;
+        latitudesE6[size] = latitudeE6;
+        longitudesE6[size] = longitudeE6;
+        size++;
+    }
+
+    private int checkIndex(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return index;
+    }
+}
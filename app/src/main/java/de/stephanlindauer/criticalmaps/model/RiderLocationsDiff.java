@@ -0,0 +1,160 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import java.util.Arrays;
+
+/**
+ * Changes of a {@link RiderLocations} snapshot relative to the snapshot published before it,
+ * keyed by device hash. Added and moved riders are reported as indices into the new snapshot,
+ * removed riders by their device hash since the previous snapshot's storage gets reused.
+ */
+public class RiderLocationsDiff {
+
+    private static final int NO_INDEX = -1;
+
+    private int baseVersion;
+
+    private int[] addedIndices = new int[0];
+    private int addedCount;
+    private int[] movedIndices = new int[0];
+    private int movedCount;
+    private long[] removedDeviceHashes = new long[0];
+    private int removedCount;
+    private int unchangedCount;
+
+    // open addressing table from device hash to index into the previous snapshot
+    private long[] tableKeys = new long[0];
+    private int[] tableIndices = new int[0];
+    private boolean[] previousSeen = new boolean[0];
+
+    /**
+     * @return version of the snapshot this diff was computed against
+     */
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    public int getAddedIndex(int i) {
+        return addedIndices[i];
+    }
+
+    public int getMovedCount() {
+        return movedCount;
+    }
+
+    public int getMovedIndex(int i) {
+        return movedIndices[i];
+    }
+
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    public long getRemovedDeviceHash(int i) {
+        return removedDeviceHashes[i];
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    public int getChangedCount() {
+        return addedCount + movedCount + removedCount;
+    }
+
+    public boolean isEmpty() {
+        return getChangedCount() == 0;
+    }
+
+    void compute(RiderLocations previous, RiderLocations current) {
+        baseVersion = previous.getVersion();
+        addedCount = 0;
+        movedCount = 0;
+        removedCount = 0;
+        unchangedCount = 0;
+
+        final int previousSize = previous.size();
+        final int currentSize = current.size();
+        if (previousSeen.length < previousSize) {
+            previousSeen = new boolean[previousSize];
+        } else {
+            Arrays.fill(previousSeen, 0, previousSize, false);
+        }
+        buildTable(previous);
+        if (addedIndices.length < currentSize) {
+            addedIndices = new int[currentSize];
+            movedIndices = new int[currentSize];
+        }
+        if (removedDeviceHashes.length < previousSize) {
+            removedDeviceHashes = new long[previousSize];
+        }
+
+        for (int i = 0; i < currentSize; i++) {
+            final int previousIndex = lookup(current.getDeviceHash(i));
+            if (previousIndex == NO_INDEX) {
+                addedIndices[addedCount++] = i;
+                continue;
+            }
+
+            previousSeen[previousIndex] = true;
+            if (previous.getLatitudeE6(previousIndex) != current.getLatitudeE6(i)
+                    || previous.getLongitudeE6(previousIndex) != current.getLongitudeE6(i)) {
+                movedIndices[movedCount++] = i;
+            } else {
+                unchangedCount++;
+            }
+        }
+
+        for (int i = 0; i < previousSize; i++) {
+            if (!previousSeen[i]) {
+                removedDeviceHashes[removedCount++] = previous.getDeviceHash(i);
+            }
+        }
+    }
+
+    private void buildTable(RiderLocations previous) {
+        int capacity = Integer.highestOneBit(Math.max(previous.size(), 8) * 2 - 1) << 1;
+        if (tableKeys.length < capacity) {
+            tableKeys = new long[capacity];
+            tableIndices = new int[capacity];
+        } else {
+            capacity = tableKeys.length;
+        }
+        Arrays.fill(tableIndices, NO_INDEX);
+
+        final int mask = capacity - 1;
+        for (int i = 0; i < previous.size(); i++) {
+            final long key = previous.getDeviceHash(i);
+            int slot = slot(key, mask);
+            while (tableIndices[slot] != NO_INDEX && tableKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (tableIndices[slot] != NO_INDEX) {
+                // duplicate device: the last entry wins, the shadowed one isn't a removal
+                previousSeen[tableIndices[slot]] = true;
+            }
+            tableKeys[slot] = key;
+            tableIndices[slot] = i;
+        }
+    }
+
+    private int lookup(long key) {
+        final int mask = tableKeys.length - 1;
+        int slot = slot(key, mask);
+        while (tableIndices[slot] != NO_INDEX) {
+            if (tableKeys[slot] == key) {
+                return tableIndices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_INDEX;
+    }
+
+    private static int slot(long key, int mask) {
+        final int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
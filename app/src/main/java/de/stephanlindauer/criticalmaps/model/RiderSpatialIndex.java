@@ -0,0 +1,247 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.NonNull;
+
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.Arrays;
+
+/**
+ * Hashed uniform grid over the riders of one {@link RiderLocations} snapshot. Riders are bucketed
+ * by their 0.01° cell with a counting sort, so a rebuild is linear and reuses its arrays.
+ */
+public class RiderSpatialIndex {
+
+    public interface Visitor {
+        void visit(int index);
+    }
+
+    // ~1.1 km north-south; a city sized viewport covers a few hundred cells
+    static final int CELL_SIZE_E6 = 10000;
+    private static final int CELLS_X = 360 * 1000000 / CELL_SIZE_E6 + 1;
+    private static final int CELLS_Y = 180 * 1000000 / CELL_SIZE_E6 + 1;
+    private static final double METERS_PER_DEGREE = 111195.0D;
+
+    private RiderLocations locations;
+    private int size;
+    private int bucketMask;
+    private int[] bucketStarts = new int[0];
+    private int[] sortedIndices = new int[0];
+    private int[] cellKeys = new int[0];
+
+    void rebuild(RiderLocations locations) {
+        this.locations = locations;
+        size = locations.size();
+
+        final int bucketCount = Integer.highestOneBit(Math.max(size, 8) * 2 - 1);
+        bucketMask = bucketCount - 1;
+        if (bucketStarts.length < bucketCount + 1) {
+            bucketStarts = new int[bucketCount + 1];
+        } else {
+            Arrays.fill(bucketStarts, 0, bucketCount + 1, 0);
+        }
+        if (sortedIndices.length < size) {
+            sortedIndices = new int[size];
+            cellKeys = new int[size];
+        }
+
+        // counting sort by bucket: count, prefix sum, then place
+        for (int i = 0; i < size; i++) {
+            final int cellKey = cellKey(cellX(locations.getLongitudeE6(i)),
+                    cellY(locations.getLatitudeE6(i)));
+            cellKeys[i] = cellKey;
+            bucketStarts[bucket(cellKey) + 1]++;
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+        for (int i = 0; i < size; i++) {
+            sortedIndices[bucketStarts[bucket(cellKeys[i])]++] = i;
+        }
+        // placing shifted every start to the next bucket's start, shift back
+        System.arraycopy(bucketStarts, 0, bucketStarts, 1, bucketCount);
+        bucketStarts[0] = 0;
+    }
+
+    /**
+     * Visits the index of every rider inside the given box. Boxes crossing the antimeridian
+     * (west > east) are supported.
+     *
+     * @return number of visited riders
+     */
+    public int queryBoundingBox(@NonNull BoundingBox boundingBox, @NonNull Visitor visitor) {
+        if (size == 0) {
+            return 0;
+        }
+
+        final int southE6 = toE6(boundingBox.getLatSouth());
+        final int northE6 = toE6(boundingBox.getLatNorth());
+        final int westE6 = toE6(boundingBox.getLonWest());
+        final int eastE6 = toE6(boundingBox.getLonEast());
+
+        if (westE6 <= eastE6) {
+            return query(southE6, northE6, westE6, eastE6, visitor);
+        }
+        return query(southE6, northE6, westE6, 180000000, visitor)
+                + query(southE6, northE6, -180000000, eastE6, visitor);
+    }
+
+    private int query(int southE6, int northE6, int westE6, int eastE6, Visitor visitor) {
+        final int minX = cellX(westE6);
+        final int maxX = cellX(eastE6);
+        final int minY = cellY(southE6);
+        final int maxY = cellY(northE6);
+        final long cellCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+
+        int visited = 0;
+        if (cellCount > size) {
+            // walking the cells would be more work than checking every rider
+            for (int i = 0; i < size; i++) {
+                if (contains(i, southE6, northE6, westE6, eastE6)) {
+                    visitor.visit(i);
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                final int cellKey = cellKey(x, y);
+                final int bucket = bucket(cellKey);
+                for (int s = bucketStarts[bucket]; s < bucketStarts[bucket + 1]; s++) {
+                    final int i = sortedIndices[s];
+                    // buckets are shared by several cells; only take riders of this cell
+                    if (cellKeys[i] == cellKey && contains(i, southE6, northE6, westE6, eastE6)) {
+                        visitor.visit(i);
+                        visited++;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * @return indices of the (at most) k riders closest to center, nearest first
+     */
+    @NonNull
+    public int[] nearest(@NonNull GeoPoint center, int k) {
+        final int count = Math.min(k, size);
+        final int[] nearestIndices = new int[count];
+        if (count == 0) {
+            return nearestIndices;
+        }
+        final double[] nearestDistances = new double[count];
+        Arrays.fill(nearestDistances, Double.MAX_VALUE);
+
+        final int centerLatitudeE6 = toE6(center.getLatitude());
+        final int centerLongitudeE6 = toE6(center.getLongitude());
+        final double longitudeScale = Math.cos(Math.toRadians(center.getLatitude()));
+        final int centerX = cellX(centerLongitudeE6);
+        final int centerY = cellY(centerLatitudeE6);
+        // lower bound for the distance to anything outside the rings searched so far
+        final double ringDistance = CELL_SIZE_E6 / 1000000.0D * METERS_PER_DEGREE
+                * Math.max(longitudeScale, 0.01D);
+
+        int found = 0;
+        for (int ring = 0; ; ring++) {
+            final long ringCells = (long) (2 * ring + 1) * (2 * ring + 1);
+            if (ringCells > size || ring > CELLS_X / 2) {
+                // the rings got too large, finish with a full scan
+                found = 0;
+                Arrays.fill(nearestDistances, Double.MAX_VALUE);
+                for (int i = 0; i < size; i++) {
+                    found = offer(i, centerLatitudeE6, centerLongitudeE6, longitudeScale,
+                            nearestIndices, nearestDistances, found);
+                }
+                return nearestIndices;
+            }
+
+            for (int y = centerY - ring; y <= centerY + ring; y++) {
+                if (y < 0 || y >= CELLS_Y) {
+                    continue;
+                }
+                final boolean isEdgeRow = y == centerY - ring || y == centerY + ring;
+                // inner rows only have their two edge cells on this ring
+                final int step = isEdgeRow ? 1 : Math.max(2 * ring, 1);
+                for (int x = centerX - ring; x <= centerX + ring; x += step) {
+                    final int cellKey = cellKey((x % CELLS_X + CELLS_X) % CELLS_X, y);
+                    final int bucket = bucket(cellKey);
+                    for (int s = bucketStarts[bucket]; s < bucketStarts[bucket + 1]; s++) {
+                        final int i = sortedIndices[s];
+                        if (cellKeys[i] == cellKey) {
+                            found = offer(i, centerLatitudeE6, centerLongitudeE6,
+                                    longitudeScale, nearestIndices, nearestDistances, found);
+                        }
+                    }
+                }
+            }
+
+            final double bound = ring * ringDistance;
+            if (found == count && nearestDistances[count - 1] <= bound * bound) {
+                return nearestIndices;
+            }
+        }
+    }
+
+    // keeps the arrays sorted by distance, returns the new number of filled entries
+    private int offer(int index, int centerLatitudeE6, int centerLongitudeE6,
+                      double longitudeScale, int[] indices, double[] distances, int found) {
+        final double dy = (locations.getLatitudeE6(index) - centerLatitudeE6)
+                / 1000000.0D * METERS_PER_DEGREE;
+        double dLongitudeE6 = Math.abs(locations.getLongitudeE6(index) - centerLongitudeE6);
+        if (dLongitudeE6 > 180000000) {
+            dLongitudeE6 = 360000000 - dLongitudeE6;
+        }
+        final double dx = dLongitudeE6 / 1000000.0D * METERS_PER_DEGREE * longitudeScale;
+        final double distance = dx * dx + dy * dy;
+
+        final int capacity = indices.length;
+        if (found == capacity && distance >= distances[capacity - 1]) {
+            return found;
+        }
+        int position = found == capacity ? capacity - 1 : found;
+        while (position > 0 && distances[position - 1] > distance) {
+            distances[position] = distances[position - 1];
+            indices[position] = indices[position - 1];
+            position--;
+        }
+        distances[position] = distance;
+        indices[position] = index;
+        return Math.min(found + 1, capacity);
+    }
+
+    private boolean contains(int index, int southE6, int northE6, int westE6, int eastE6) {
+        final int latitudeE6 = locations.getLatitudeE6(index);
+        final int longitudeE6 = locations.getLongitudeE6(index);
+        return latitudeE6 >= southE6 && latitudeE6 <= northE6
+                && longitudeE6 >= westE6 && longitudeE6 <= eastE6;
+    }
+
+    private int bucket(int cellKey) {
+        final int hash = cellKey * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & bucketMask;
+    }
+
+    private static int cellKey(int cellX, int cellY) {
+        return cellY * CELLS_X + cellX;
+    }
+
+    private static int cellX(int longitudeE6) {
+        return clamp((longitudeE6 + 180000000) / CELL_SIZE_E6, CELLS_X);
+    }
+
+    private static int cellY(int latitudeE6) {
+        return clamp((latitudeE6 + 90000000) / CELL_SIZE_E6, CELLS_Y);
+    }
+
+    private static int clamp(int cell, int cellCount) {
+        return Math.max(0, Math.min(cell, cellCount - 1));
+    }
+
+    private static int toE6(double degrees) {
+        return (int) Math.round(degrees * 1000000.0D);
+    }
+}
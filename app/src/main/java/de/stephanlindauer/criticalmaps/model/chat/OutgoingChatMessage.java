@@ -0,0 +1,27 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+
+public class OutgoingChatMessage {
+
+    private final String identifier;
+    private final String message;
+    private final long createdAtMillis;
+
+    public OutgoingChatMessage(String identifier, String message, long createdAtMillis) {
+        this.identifier = identifier;
+        this.message = message;
+        this.createdAtMillis = createdAtMillis;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+}
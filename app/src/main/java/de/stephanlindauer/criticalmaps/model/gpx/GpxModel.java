@@ -41,6 +41,14 @@ public class GpxModel {
         this.poiList = poiList;
     }
 
+    public int getTrackPointCount() {
+        int count = 0;
+        for (GpxTrack track : tracks) {
+            count += track.size();
+        }
+        return count;
+    }
+
     public void clear() {
         tracks.clear();
         poiList.clear();
@@ -1,24 +1,193 @@
 package de.stephanlindauer.criticalmaps.model.gpx;
 
+import androidx.annotation.NonNull;
+
 import org.osmdroid.util.GeoPoint;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * A track's points packed into primitive arrays, E6 coordinates plus an optional elevation,
+ * instead of one GeoPoint per point. Long multi-day routes have hundreds of thousands of points.
+ */
 public class GpxTrack {
 
     private final String name;
-    private final List<GeoPoint> waypoints;
+    private final int size;
+    private final int[] latitudesE6;
+    private final int[] longitudesE6;
+    // NaN for points without elevation, null if none has one
+    private final float[] altitudes;
+    private GpxTrackLod levelsOfDetail;
 
-    public GpxTrack(String name, List<GeoPoint> waypoints) {
+    private GpxTrack(String name, int size, int[] latitudesE6, int[] longitudesE6,
+                     float[] altitudes) {
         this.name = name;
-        this.waypoints = waypoints;
+        this.size = size;
+        this.latitudesE6 = latitudesE6;
+        this.longitudesE6 = longitudesE6;
+        this.altitudes = altitudes;
     }
 
     public String getName() {
         return name;
     }
 
-    public List<GeoPoint> getWaypoints() {
-        return waypoints;
+    public int size() {
+        return size;
+    }
+
+    public int getLatitudeE6(int index) {
+        checkIndex(index);
+        return latitudesE6[index];
+    }
+
+    public int getLongitudeE6(int index) {
+        checkIndex(index);
+        return longitudesE6[index];
+    }
+
+    public boolean hasAltitude(int index) {
+        checkIndex(index);
+        return altitudes != null && !Float.isNaN(altitudes[index]);
+    }
+
+    /**
+     * @return elevation in meters, NaN if the point has none
+     */
+    public float getAltitude(int index) {
+        checkIndex(index);
+        return altitudes == null ? Float.NaN : altitudes[index];
+    }
+
+    /**
+     * @return a new GeoPoint for the point at index
+     */
+    @NonNull
+    public GeoPoint getPoint(int index) {
+        checkIndex(index);
+        final double latitude = latitudesE6[index] / 1000000.0D;
+        final double longitude = longitudesE6[index] / 1000000.0D;
+        return hasAltitude(index)
+                ? new GeoPoint(latitude, longitude, altitudes[index])
+                : new GeoPoint(latitude, longitude);
+    }
+
+    /**
+     * @return simplified versions of this track per zoom level, computed on first call
+     */
+    @NonNull
+    public synchronized GpxTrackLod getLevelsOfDetail() {
+        if (levelsOfDetail == null) {
+            levelsOfDetail = new GpxTrackLod(this);
+        }
+        return levelsOfDetail;
+    }
+
+    /**
+     * @return a read-only view that creates the GeoPoints on access, for APIs that insist on a
+     * list; nothing is copied up front
+     */
+    @NonNull
+    public List<GeoPoint> asGeoPoints() {
+        return new GeoPointView();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+
+    private class GeoPointView extends AbstractList<GeoPoint> implements RandomAccess {
+        @Override
+        public GeoPoint get(int index) {
+            return getPoint(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    public static class Builder {
+        private static final int INITIAL_CAPACITY = 256;
+
+        private int size;
+        private int[] latitudesE6 = new int[INITIAL_CAPACITY];
+        private int[] longitudesE6 = new int[INITIAL_CAPACITY];
+        private float[] altitudes;
+
+        public Builder addPoint(double latitude, double longitude) {
+            ensureCapacity();
+            latitudesE6[size] = toE6(latitude);
+            longitudesE6[size] = toE6(longitude);
+            if (altitudes != null) {
+                altitudes[size] = Float.NaN;
+            }
+            size++;
+            return this;
+        }
+
+        public Builder addPoint(double latitude, double longitude, double altitude) {
+            if (altitudes == null) {
+                altitudes = new float[latitudesE6.length];
+                Arrays.fill(altitudes, 0, size, Float.NaN);
+            }
+            addPoint(latitude, longitude);
+            altitudes[size - 1] = (float) altitude;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Trims the arrays to size; the builder must not be used afterwards.
+         */
+        @NonNull
+        public GpxTrack build(String name) {
+            return new GpxTrack(name, size,
+                    Arrays.copyOf(latitudesE6, size),
+                    Arrays.copyOf(longitudesE6, size),
+                    altitudes == null ? null : Arrays.copyOf(altitudes, size));
+        }
+
+        /**
+         * @return a track of the points added so far from index from (inclusive) to index to
+         * (exclusive); the builder can be used further
+         */
+        @NonNull
+        public GpxTrack build(String name, int from, int to) {
+            if (from < 0 || to > size || from > to) {
+                throw new IndexOutOfBoundsException(
+                        "Range " + from + " to " + to + ", size " + size);
+            }
+            return new GpxTrack(name, to - from,
+                    Arrays.copyOfRange(latitudesE6, from, to),
+                    Arrays.copyOfRange(longitudesE6, from, to),
+                    altitudes == null ? null : Arrays.copyOfRange(altitudes, from, to));
+        }
+
+        private void ensureCapacity() {
+            if (size < latitudesE6.length) {
+                return;
+            }
+            final int capacity = latitudesE6.length * 2;
+            latitudesE6 = Arrays.copyOf(latitudesE6, capacity);
+            longitudesE6 = Arrays.copyOf(longitudesE6, capacity);
+            if (altitudes != null) {
+                altitudes = Arrays.copyOf(altitudes, capacity);
+            }
+        }
+
+        private static int toE6(double degrees) {
+            return (int) Math.round(degrees * 1000000.0D);
+        }
     }
 }
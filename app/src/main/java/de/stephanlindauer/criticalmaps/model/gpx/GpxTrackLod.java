@@ -0,0 +1,150 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.utils.WebMercator;
+
+/**
+ * Douglas–Peucker levels of detail for a {@link GpxTrack}, one per zoom level up to
+ * {@link #MAX_ZOOM}. A single Douglas–Peucker run records for every point the largest tolerance
+ * it would still be kept at, in normalized Web Mercator space [0, 1]. A zoom level then consists
+ * of the points whose tolerance exceeds {@link #TOLERANCE_PIXELS} at that zoom, which is exactly
+ * what Douglas–Peucker would keep. Levels are built on first use and cached.
+ */
+public class GpxTrackLod {
+
+    public static final int MAX_ZOOM = 20;
+
+    static final double TOLERANCE_PIXELS = 0.5D;
+    private static final double TILE_SIZE = 256.0D;
+
+    private final int size;
+    // largest tolerance each point survives, infinite for the end points
+    private final float[] tolerances;
+    private final int[][] levels = new int[MAX_ZOOM + 1][];
+    private int[] allPoints;
+
+    public GpxTrackLod(@NonNull GpxTrack track) {
+        size = track.size();
+        tolerances = computeTolerances(track);
+    }
+
+    /**
+     * @return indices of the points to draw at this zoom level, ascending; above
+     * {@link #MAX_ZOOM} all points
+     */
+    @NonNull
+    public synchronized int[] getLevel(int zoom) {
+        if (zoom > MAX_ZOOM) {
+            if (allPoints == null) {
+                allPoints = new int[size];
+                for (int i = 0; i < size; i++) {
+                    allPoints[i] = i;
+                }
+            }
+            return allPoints;
+        }
+        zoom = Math.max(zoom, 0);
+        if (levels[zoom] == null) {
+            levels[zoom] = buildLevel(TOLERANCE_PIXELS / (TILE_SIZE * Math.pow(2, zoom)));
+        }
+        return levels[zoom];
+    }
+
+    private int[] buildLevel(double tolerance) {
+        int count = 0;
+        for (float pointTolerance : tolerances) {
+            if (pointTolerance > tolerance) {
+                count++;
+            }
+        }
+        final int[] level = new int[count];
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            if (tolerances[i] > tolerance) {
+                level[next++] = i;
+            }
+        }
+        return level;
+    }
+
+    // iterative, so a long track can't overflow the stack
+    private static float[] computeTolerances(GpxTrack track) {
+        final int size = track.size();
+        final float[] tolerances = new float[size];
+        if (size == 0) {
+            return tolerances;
+        }
+        final double[] x = new double[size];
+        final double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = WebMercator.longitudeToX(track.getLongitudeE6(i) / 1000000.0D);
+            y[i] = WebMercator.latitudeToY(track.getLatitudeE6(i) / 1000000.0D);
+        }
+        tolerances[0] = Float.POSITIVE_INFINITY;
+        tolerances[size - 1] = Float.POSITIVE_INFINITY;
+
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        // a point can't survive a larger tolerance than the split that made its segment
+        double[] caps = new double[64];
+        int stackSize = 0;
+        starts[stackSize] = 0;
+        ends[stackSize] = size - 1;
+        caps[stackSize] = Double.POSITIVE_INFINITY;
+        stackSize++;
+
+        while (stackSize > 0) {
+            stackSize--;
+            final int start = starts[stackSize];
+            final int end = ends[stackSize];
+            final double cap = caps[stackSize];
+            if (end - start < 2) {
+                continue;
+            }
+
+            int farthest = start + 1;
+            double maxDistance = -1.0D;
+            for (int i = start + 1; i < end; i++) {
+                final double distance = segmentDistance(x[i], y[i],
+                        x[start], y[start], x[end], y[end]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            final double tolerance = Math.min(maxDistance, cap);
+            tolerances[farthest] = (float) tolerance;
+
+            if (stackSize + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                ends = Arrays.copyOf(ends, ends.length * 2);
+                caps = Arrays.copyOf(caps, caps.length * 2);
+            }
+            starts[stackSize] = start;
+            ends[stackSize] = farthest;
+            caps[stackSize] = tolerance;
+            stackSize++;
+            starts[stackSize] = farthest;
+            ends[stackSize] = end;
+            caps[stackSize] = tolerance;
+            stackSize++;
+        }
+        return tolerances;
+    }
+
+    static double segmentDistance(double x, double y,
+                                  double startX, double startY, double endX, double endY) {
+        final double dx = endX - startX;
+        final double dy = endY - startY;
+        final double lengthSquared = dx * dx + dy * dy;
+        double t = 0.0D;
+        if (lengthSquared > 0.0D) {
+            t = Math.max(0.0D, Math.min(1.0D,
+                    ((x - startX) * dx + (y - startY) * dy) / lengthSquared));
+        }
+        return Math.hypot(x - (startX + t * dx), y - (startY + t * dy));
+    }
+}
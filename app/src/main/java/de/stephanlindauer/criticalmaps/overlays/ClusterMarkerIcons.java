@@ -0,0 +1,77 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.SparseArray;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.Locale;
+
+import de.stephanlindauer.criticalmaps.R;
+
+/**
+ * Renders and caches the count badges shown for rider clusters.
+ */
+public class ClusterMarkerIcons {
+
+    private static final int MAX_CACHED_ICONS = 256;
+
+    private final SparseArray<Bitmap> icons = new SparseArray<>();
+    private final Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float density;
+
+    public ClusterMarkerIcons(Context context) {
+        density = context.getResources().getDisplayMetrics().density;
+
+        backgroundPaint.setColor(ContextCompat.getColor(context, R.color.map_marker_background));
+        borderPaint.setColor(ContextCompat.getColor(context, R.color.map_marker_foreground));
+        borderPaint.setStyle(Paint.Style.STROKE);
+        borderPaint.setStrokeWidth(2 * density);
+        textPaint.setColor(ContextCompat.getColor(context, R.color.map_marker_foreground));
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setTypeface(Typeface.DEFAULT_BOLD);
+        textPaint.setTextSize(12 * density);
+    }
+
+    public Bitmap getIcon(int count) {
+        Bitmap icon = icons.get(count);
+        if (icon == null) {
+            if (icons.size() >= MAX_CACHED_ICONS) {
+                icons.clear();
+            }
+            icon = render(formatCount(count));
+            icons.put(count, icon);
+        }
+        return icon;
+    }
+
+    private Bitmap render(String text) {
+        final float textWidth = textPaint.measureText(text);
+        final int size = (int) Math.ceil(Math.max(28 * density, textWidth + 14 * density));
+        final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+
+        final float center = size / 2.0f;
+        final float radius = center - borderPaint.getStrokeWidth() / 2;
+        canvas.drawCircle(center, center, radius, backgroundPaint);
+        canvas.drawCircle(center, center, radius, borderPaint);
+        final float baseline = center - (textPaint.descent() + textPaint.ascent()) / 2;
+        canvas.drawText(text, center, baseline, textPaint);
+        return bitmap;
+    }
+
+    static String formatCount(int count) {
+        if (count < 1000) {
+            return Integer.toString(count);
+        } else if (count < 10000) {
+            return String.format(Locale.US, "%.1fk", count / 1000.0f);
+        }
+        return (count / 1000) + "k";
+    }
+}
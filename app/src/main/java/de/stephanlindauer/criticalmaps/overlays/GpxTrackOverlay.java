@@ -0,0 +1,82 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import android.graphics.Canvas;
+
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Polyline;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxTrackLod;
+import timber.log.Timber;
+
+/**
+ * A GPX track as polyline that only holds the points of its {@link GpxTrackLod} level for the
+ * current zoom, so panning a long route at city zoom doesn't walk every single point each frame.
+ * The level is switched while drawing whenever the zoom changed.
+ */
+public class GpxTrackOverlay extends Polyline {
+
+    private static final int NO_ZOOM = -1;
+
+    private final GpxTrack track;
+    private final GpxTrackLod levelsOfDetail;
+    private int zoom = NO_ZOOM;
+    private int drawnPointCount;
+
+    public GpxTrackOverlay(MapView mapView, GpxTrack track) {
+        super(mapView);
+        this.track = track;
+        levelsOfDetail = track.getLevelsOfDetail();
+        setTitle(track.getName());
+    }
+
+    @Override
+    public void draw(Canvas canvas, Projection projection) {
+        // rounding up, a fractional zoom rather gets too many points than visible corners
+        final int zoom = (int) Math.ceil(projection.getZoomLevel());
+        if (zoom != this.zoom) {
+            this.zoom = zoom;
+            final int[] level = levelsOfDetail.getLevel(zoom);
+            setPoints(new LevelView(level));
+            drawnPointCount = level.length;
+            Timber.d("GPX track %s at zoom %d: %d of %d points",
+                    track.getName(), zoom, drawnPointCount, track.size());
+        }
+        super.draw(canvas, projection);
+    }
+
+    /**
+     * @return points the polyline walks per frame at the current zoom
+     */
+    public int getDrawnPointCount() {
+        return drawnPointCount;
+    }
+
+    public GpxTrack getTrack() {
+        return track;
+    }
+
+    // Polyline copies the points it's given, so the GeoPoints only exist for the current level
+    private class LevelView extends AbstractList<GeoPoint> implements RandomAccess {
+        private final int[] level;
+
+        LevelView(int[] level) {
+            this.level = level;
+        }
+
+        @Override
+        public GeoPoint get(int index) {
+            return track.getPoint(level[index]);
+        }
+
+        @Override
+        public int size() {
+            return level.length;
+        }
+    }
+}
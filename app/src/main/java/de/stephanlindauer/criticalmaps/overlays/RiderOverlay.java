@@ -0,0 +1,129 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.drawable.Drawable;
+
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import de.stephanlindauer.criticalmaps.model.RiderClusters;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.RiderLocationsDiff;
+import de.stephanlindauer.criticalmaps.model.RiderSpatialIndex;
+
+/**
+ * Draws all other riders in one pass: only riders inside the visible area are projected, each
+ * exactly once, and the pre-rasterised icon is blitted at the projected position. Below the
+ * snapshot's max cluster zoom the clusters of the current zoom level are drawn instead.
+ * A new snapshot only causes a redraw if its {@link RiderLocationsDiff} has riders that were
+ * added, moved or removed.
+ */
+public class RiderOverlay extends Overlay {
+
+    // riders right outside the screen still reach into it with half their icon
+    private static final float VISIBLE_AREA_MARGIN_SCALE = 1.2f;
+
+    private final Bitmap riderIcon;
+    private final ClusterMarkerIcons clusterMarkerIcons;
+    private RiderLocations riderLocations;
+
+    // reused while drawing to not allocate per rider and frame
+    private final GeoPoint projectedGeoPoint = new GeoPoint(0.0D, 0.0D);
+    private final Point projectedPoint = new Point();
+    private final RiderSpatialIndex.Visitor drawRiderVisitor = this::drawRider;
+    private Canvas canvas;
+    private Projection projection;
+
+    public RiderOverlay(Drawable riderIcon, ClusterMarkerIcons clusterMarkerIcons) {
+        this.riderIcon = rasterise(riderIcon);
+        this.clusterMarkerIcons = clusterMarkerIcons;
+    }
+
+    /**
+     * Needs to be called on the main thread. The snapshot must not be refilled while it's set,
+     * see {@link de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel#setShownLocations}.
+     *
+     * @return true if the map needs to be invalidated; false if the snapshot's diff against the
+     * one drawn so far is empty, so drawing it would give the same picture
+     */
+    public boolean setRiderLocations(RiderLocations riderLocations) {
+        final RiderLocations drawnLocations = this.riderLocations;
+        this.riderLocations = riderLocations;
+        return !isUnchanged(drawnLocations, riderLocations);
+    }
+
+    private static boolean isUnchanged(RiderLocations drawn, RiderLocations next) {
+        if (drawn == next) {
+            return true;
+        }
+        // the diff only says something if it's against what's on screen, e.g. not after a pause
+        final RiderLocationsDiff changes = next.getChanges();
+        return drawn != null
+                && changes.getBaseVersion() == drawn.getVersion()
+                && changes.isEmpty()
+                && next.getClusters().getMaxZoom() == drawn.getClusters().getMaxZoom();
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || riderLocations == null || riderLocations.isEmpty()) {
+            return;
+        }
+
+        this.canvas = canvas;
+        projection = mapView.getProjection();
+        final BoundingBox visibleBoundingBox =
+                projection.getBoundingBox().increaseByScale(VISIBLE_AREA_MARGIN_SCALE);
+
+        final RiderClusters clusters = riderLocations.getClusters();
+        final int zoom = (int) projection.getZoomLevel();
+        if (zoom <= clusters.getMaxZoom()) {
+            drawClusters(clusters.getLevel(zoom), visibleBoundingBox);
+        } else {
+            riderLocations.getSpatialIndex().queryBoundingBox(visibleBoundingBox, drawRiderVisitor);
+        }
+
+        this.canvas = null;
+        projection = null;
+    }
+
+    private void drawRider(int index) {
+        drawIcon(riderIcon,
+                riderLocations.getLatitude(index), riderLocations.getLongitude(index));
+    }
+
+    private void drawClusters(RiderClusters.Level level, BoundingBox visibleBoundingBox) {
+        for (int i = 0; i < level.size(); i++) {
+            final double latitude = level.getLatitude(i);
+            final double longitude = level.getLongitude(i);
+            if (visibleBoundingBox.contains(latitude, longitude)) {
+                final int count = level.getCount(i);
+                drawIcon(count == 1 ? riderIcon : clusterMarkerIcons.getIcon(count),
+                        latitude, longitude);
+            }
+        }
+    }
+
+    private void drawIcon(Bitmap icon, double latitude, double longitude) {
+        projectedGeoPoint.setCoords(latitude, longitude);
+        projection.toPixels(projectedGeoPoint, projectedPoint);
+        canvas.drawBitmap(icon,
+                projectedPoint.x - icon.getWidth() / 2.0f,
+                projectedPoint.y - icon.getHeight() / 2.0f,
+                null);
+    }
+
+    private static Bitmap rasterise(Drawable drawable) {
+        final Bitmap bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(),
+                drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
@@ -21,4 +21,8 @@ public interface SharedPrefsKeys {
             BuildConfig.APPLICATION_ID + ".SHOW_GPX";
     String GPX_FILE =
             BuildConfig.APPLICATION_ID + ".GPX_FILE";
+    String LIVE_UPDATES =
+            BuildConfig.APPLICATION_ID + ".LIVE_UPDATES";
+    String UPLOAD_TRACK =
+            BuildConfig.APPLICATION_ID + ".UPLOAD_TRACK";
 }
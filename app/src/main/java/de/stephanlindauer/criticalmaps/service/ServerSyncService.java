@@ -8,27 +8,26 @@ import androidx.core.content.ContextCompat;
 
 import com.squareup.otto.Subscribe;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import javax.inject.Inject;
 import javax.inject.Provider;
 
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.events.NetworkConnectivityChangedEvent;
+import de.stephanlindauer.criticalmaps.handler.LiveUpdatesHandler;
 import de.stephanlindauer.criticalmaps.handler.NetworkConnectivityChangeHandler;
+import de.stephanlindauer.criticalmaps.handler.PostChatmessagesHandler;
 import de.stephanlindauer.criticalmaps.handler.PutLocationHandler;
 import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.ChatOutbox;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.sync.LocationExchange;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import de.stephanlindauer.criticalmaps.sync.SyncPolicy;
+import de.stephanlindauer.criticalmaps.sync.SyncScheduler;
 import de.stephanlindauer.criticalmaps.utils.TrackingInfoNotificationBuilder;
 
 public class ServerSyncService extends Service {
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int SERVER_SYNC_INTERVAL = 30 * 1000; // 30 sec
-
-    private Timer timerPullServer;
-
     @Inject
     LocationUpdateManager locationUpdateManager;
 
@@ -38,6 +37,27 @@ public class ServerSyncService extends Service {
     @Inject
     Provider<PutLocationHandler> putLocationHandler;
 
+    @Inject
+    Provider<PostChatmessagesHandler> postChatmessagesHandler;
+
+    @Inject
+    ChatOutbox chatOutbox;
+
+    @Inject
+    SyncEngine syncEngine;
+
+    @Inject
+    SyncScheduler syncScheduler;
+
+    @Inject
+    SyncPolicy syncPolicy;
+
+    @Inject
+    LocationExchange locationExchange;
+
+    @Inject
+    LiveUpdatesHandler liveUpdatesHandler;
+
     @Inject
     EventBus eventBus;
 
@@ -57,26 +77,36 @@ public class ServerSyncService extends Service {
 
         networkConnectivityChangeHandler.start();
 
+        syncPolicy.start();
+
+        liveUpdatesHandler.start();
+
         eventBus.register(this);
     }
 
-    private void startPullServerTimer() {
-        timerPullServer = new Timer();
+    private void schedulePutLocation() {
+        syncScheduler.schedule(PutLocationHandler.KEY, SyncScheduler.Cadence.HEARTBEAT,
+                () -> {
+                    final long interval =
+                            syncScheduler.getInterval(SyncScheduler.Cadence.HEARTBEAT);
+                    if (!locationExchange.isHeartbeatCovered(interval)) {
+                        syncEngine.submit(putLocationHandler.get());
+                    }
+                });
+    }
 
-        TimerTask timerTaskPullServer = new TimerTask() {
-            @Override
-            public void run() {
-                putLocationHandler.get().execute();
-            }
-        };
-        timerPullServer.scheduleAtFixedRate(timerTaskPullServer, 0, SERVER_SYNC_INTERVAL);
+    private void unschedulePutLocation() {
+        syncScheduler.unschedule(PutLocationHandler.KEY);
     }
 
-    private void stopPullServerTimer() {
-        if (timerPullServer != null) {
-            timerPullServer.cancel();
-            timerPullServer = null;
-        }
+    private void scheduleChatOutboxFlush() {
+        // retries messages the server didn't take right after reconnecting
+        syncScheduler.schedule(PostChatmessagesHandler.KEY, SyncScheduler.Cadence.HEARTBEAT,
+                () -> {
+                    if (!chatOutbox.isEmpty()) {
+                        syncEngine.submit(postChatmessagesHandler.get());
+                    }
+                });
     }
 
     @Override
@@ -84,7 +114,10 @@ public class ServerSyncService extends Service {
         eventBus.unregister(this);
         locationUpdateManager.handleShutdown();
         networkConnectivityChangeHandler.stop();
-        stopPullServerTimer();
+        syncPolicy.stop();
+        liveUpdatesHandler.stop();
+        unschedulePutLocation();
+        syncScheduler.unschedule(PostChatmessagesHandler.KEY);
     }
 
     @Override
@@ -95,10 +128,17 @@ public class ServerSyncService extends Service {
 
     @Subscribe
     public void handleNetworkConnectivityChanged(NetworkConnectivityChangedEvent e) {
-        if (e.isConnected && timerPullServer == null) {
-            startPullServerTimer();
+        liveUpdatesHandler.onConnectivityChanged(e.isConnected);
+        if (e.isConnected) {
+            syncEngine.onConnectivityRegained();
+            schedulePutLocation();
+            scheduleChatOutboxFlush();
+            if (!chatOutbox.isEmpty()) {
+                syncEngine.submit(postChatmessagesHandler.get());
+            }
         } else {
-            stopPullServerTimer();
+            unschedulePutLocation();
+            syncScheduler.unschedule(PostChatmessagesHandler.KEY);
         }
     }
 
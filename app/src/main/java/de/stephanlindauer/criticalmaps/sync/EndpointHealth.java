@@ -0,0 +1,209 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+
+import java.net.HttpURLConnection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import okhttp3.Response;
+import okhttp3.internal.http.HttpDate;
+
+/**
+ * Failure tracking for one endpoint, i.e. one {@link SyncTask} key. After a failure the endpoint
+ * backs off exponentially with jitter, or as long as the server's Retry-After asks for. After
+ * {@link #OPEN_THRESHOLD} failures in a row the circuit opens and the endpoint pauses for longer;
+ * once that's over a single trial request decides whether it closes again.
+ */
+public class EndpointHealth {
+
+    public enum State {
+        HEALTHY,
+        BACKING_OFF,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final long NOT_BLOCKED = 0;
+
+    static final long MIN_BACKOFF = 2 * 1000; // 2 sec
+    static final long MAX_BACKOFF = 5 * 60 * 1000; // 5 min
+    static final long MIN_OPEN_DURATION = 60 * 1000; // 1 min
+    static final long MAX_RETRY_AFTER = 15 * 60 * 1000; // 15 min
+    static final int OPEN_THRESHOLD = 5;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String key;
+
+    // all guarded by this
+    private State state = State.HEALTHY;
+    private int consecutiveFailures;
+    private long blockedUntil = NOT_BLOCKED;
+    private long openDuration = MIN_OPEN_DURATION;
+    private boolean isServerFailure;
+    private int failureCount;
+    private int openCount;
+    private int rejectedCount;
+
+    EndpointHealth(@NonNull String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return true if the status code means the server is struggling rather than the request
+     * being wrong, so retrying right away would only add load
+     */
+    public static boolean isServerFailure(int code) {
+        return code >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || code == HTTP_TOO_MANY_REQUESTS
+                || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+    }
+
+    /**
+     * @return ms the response's Retry-After header asks to wait, capped to
+     * {@link #MAX_RETRY_AFTER}; 0 if there's none or it can't be parsed
+     */
+    static long getRetryAfterMillis(@NonNull Response response, long nowMillis) {
+        final String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        long millis = 0;
+        try {
+            millis = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            final Date date = HttpDate.parse(retryAfter);
+            if (date != null) {
+                millis = date.getTime() - nowMillis;
+            }
+        }
+        return Math.max(0, Math.min(millis, MAX_RETRY_AFTER));
+    }
+
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return elapsed realtime until which requests get rejected, {@link #NOT_BLOCKED} if none
+     */
+    public synchronized long getBlockedUntil() {
+        return blockedUntil;
+    }
+
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return how often the circuit opened
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return requests that weren't sent because the endpoint was backing off or open
+     */
+    public synchronized int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return true if a request may go out now; an open circuit lets exactly one through once
+     * its pause is over
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (now < blockedUntil) {
+            rejectedCount++;
+            return false;
+        }
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the state changed
+     */
+    synchronized boolean onSuccess() {
+        final State previousState = state;
+        state = State.HEALTHY;
+        consecutiveFailures = 0;
+        blockedUntil = NOT_BLOCKED;
+        openDuration = MIN_OPEN_DURATION;
+        return previousState != state;
+    }
+
+    /**
+     * @param retryAfterMillis what the server asked for, 0 if nothing
+     * @param isServerFailure  false if the request didn't reach the server, e.g. while offline
+     * @return true if the state changed
+     */
+    synchronized boolean onFailure(long now, long retryAfterMillis, boolean isServerFailure,
+                                   @NonNull Random random) {
+        final State previousState = state;
+        failureCount++;
+        consecutiveFailures++;
+        this.isServerFailure = isServerFailure;
+
+        long delay;
+        if (previousState == State.HALF_OPEN || consecutiveFailures >= OPEN_THRESHOLD) {
+            if (previousState == State.HALF_OPEN) {
+                // the trial failed, stay away longer this time
+                openDuration = Math.min(openDuration * 2, MAX_RETRY_AFTER);
+            }
+            if (previousState != State.OPEN) {
+                openCount++;
+            }
+            state = State.OPEN;
+            delay = equalJitter(openDuration, random);
+        } else {
+            state = State.BACKING_OFF;
+            final long backoff = Math.min(MIN_BACKOFF << (consecutiveFailures - 1), MAX_BACKOFF);
+            delay = equalJitter(backoff, random);
+        }
+        delay = Math.max(delay, retryAfterMillis);
+        blockedUntil = now + delay;
+        return previousState != state;
+    }
+
+    /**
+     * Failures that never reached the server say nothing about its health, so these stop
+     * counting once we're back online. Pauses the server asked for stay.
+     *
+     * @return true if the state changed
+     */
+    synchronized boolean onConnectivityRegained() {
+        if (isServerFailure || state == State.HEALTHY) {
+            return false;
+        }
+        return onSuccess();
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: %s, %d failures in a row, %d total, "
+                        + "opened %d times, %d rejected",
+                key, state, consecutiveFailures, failureCount, openCount, rejectedCount);
+    }
+
+    // clients failing together don't come back together
+    private static long equalJitter(long delay, Random random) {
+        return delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+}
@@ -0,0 +1,100 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * How fresh the data is that reaches the UI, per stream and transport. A polled position changed
+ * on the server at some point during the poll interval, so on average it is half an update
+ * interval plus the delivery latency old when shown. Pushed data is only as old as its delivery
+ * latency.
+ */
+@Singleton
+public class FreshnessStats {
+
+    public static final String LOCATIONS = "locations";
+    public static final String CHATMESSAGES = "chatmessages";
+
+    public enum Transport {
+        POLL,
+        PUSH
+    }
+
+    private final SyncScheduler.Clock clock;
+
+    // guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    @Inject
+    public FreshnessStats() {
+        this(SystemClock::elapsedRealtime);
+    }
+
+    FreshnessStats(SyncScheduler.Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param deliveryMillis time from the server sending the data to receiving it
+     */
+    public synchronized void onUpdate(@NonNull String stream, @NonNull Transport transport,
+                                      long deliveryMillis) {
+        final Entry entry = getEntry(stream, transport);
+        final long now = clock.elapsedRealtime();
+        if (entry.lastUpdateTime != Entry.NEVER) {
+            entry.updateIntervals.record(now - entry.lastUpdateTime);
+        }
+        entry.lastUpdateTime = now;
+        entry.deliveryLatencies.record(Math.max(0, deliveryMillis));
+    }
+
+    @NonNull
+    public synchronized LatencyStats getDeliveryLatencies(@NonNull String stream,
+                                                          @NonNull Transport transport) {
+        return getEntry(stream, transport).deliveryLatencies;
+    }
+
+    @NonNull
+    public synchronized LatencyStats getUpdateIntervals(@NonNull String stream,
+                                                        @NonNull Transport transport) {
+        return getEntry(stream, transport).updateIntervals;
+    }
+
+    /**
+     * @return mean age of the data when it is shown, 0 without updates
+     */
+    public synchronized long getExpectedAgeMillis(@NonNull String stream,
+                                                  @NonNull Transport transport) {
+        final Entry entry = getEntry(stream, transport);
+        final long deliveryMillis = entry.deliveryLatencies.getMeanMillis();
+        if (transport == Transport.PUSH) {
+            return deliveryMillis;
+        }
+        return entry.updateIntervals.getMeanMillis() / 2 + deliveryMillis;
+    }
+
+    private Entry getEntry(String stream, Transport transport) {
+        final String key = stream + "-" + transport;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static class Entry {
+        static final long NEVER = -1;
+
+        final LatencyStats deliveryLatencies = new LatencyStats();
+        final LatencyStats updateIntervals = new LatencyStats();
+        long lastUpdateTime = NEVER;
+    }
+}
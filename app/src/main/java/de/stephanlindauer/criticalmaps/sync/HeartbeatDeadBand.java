@@ -0,0 +1,124 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Suppresses heartbeats while we stay within {@link #DEAD_BAND_METERS} of the last
+ * position the server accepted, e.g. while waiting at the meeting point. A keep-alive still goes
+ * out every {@link #KEEP_ALIVE_INTERVAL}, so the server doesn't expire us.
+ */
+@Singleton
+public class HeartbeatDeadBand {
+
+    public static final float DEAD_BAND_METERS = 15.0f;
+    public static final long KEEP_ALIVE_INTERVAL = 2 * 60 * 1000; // 2 min
+
+    private static final double METERS_PER_DEGREE_E6 = 111195.0D / 1000000.0D;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final SyncScheduler.Clock clock;
+
+    // all guarded by this
+    private boolean hasSent;
+    private int sentLatitudeE6;
+    private int sentLongitudeE6;
+    private long sentAt = NEVER;
+    private boolean hasPending;
+    private int pendingLatitudeE6;
+    private int pendingLongitudeE6;
+    private boolean isPendingKeepAlive;
+    private int sentCount;
+    private int keepAliveCount;
+    private int suppressedCount;
+
+    @Inject
+    public HeartbeatDeadBand() {
+        this(SystemClock::elapsedRealtime);
+    }
+
+    HeartbeatDeadBand(SyncScheduler.Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return false if the heartbeat for this position should be skipped; if true, call
+     * {@link #onAccepted()} once the server took it
+     */
+    public synchronized boolean shouldSend(int latitudeE6, int longitudeE6) {
+        final boolean isKeepAliveDue = sentAt == NEVER
+                || clock.elapsedRealtime() - sentAt >= KEEP_ALIVE_INTERVAL;
+        final boolean hasMoved = !hasSent
+                || distanceMeters(sentLatitudeE6, sentLongitudeE6, latitudeE6, longitudeE6)
+                >= DEAD_BAND_METERS;
+        if (!hasMoved && !isKeepAliveDue) {
+            suppressedCount++;
+            return false;
+        }
+        hasPending = true;
+        pendingLatitudeE6 = latitudeE6;
+        pendingLongitudeE6 = longitudeE6;
+        isPendingKeepAlive = !hasMoved;
+        return true;
+    }
+
+    public synchronized void onAccepted() {
+        if (!hasPending) {
+            return;
+        }
+        hasPending = false;
+        hasSent = true;
+        sentLatitudeE6 = pendingLatitudeE6;
+        sentLongitudeE6 = pendingLongitudeE6;
+        sentAt = clock.elapsedRealtime();
+        sentCount++;
+        if (isPendingKeepAlive) {
+            keepAliveCount++;
+        }
+    }
+
+    /**
+     * @return heartbeats the server accepted, keep-alives included
+     */
+    public synchronized int getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * @return accepted heartbeats that only went out to keep us from expiring
+     */
+    public synchronized int getKeepAliveCount() {
+        return keepAliveCount;
+    }
+
+    /**
+     * @return heartbeat attempts skipped because we hardly moved
+     */
+    public synchronized int getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d heartbeats sent (%d keep-alives), %d suppressed",
+                sentCount, keepAliveCount, suppressedCount);
+    }
+
+    // equirectangular, plenty for a few meters
+    static double distanceMeters(int fromLatitudeE6, int fromLongitudeE6,
+                                 int toLatitudeE6, int toLongitudeE6) {
+        final double longitudeScale = Math.cos(Math.toRadians(
+                (fromLatitudeE6 + (double) toLatitudeE6) / 2 / 1000000.0D));
+        final double dy = (toLatitudeE6 - (double) fromLatitudeE6) * METERS_PER_DEGREE_E6;
+        final double dx = (toLongitudeE6 - (double) fromLongitudeE6) * METERS_PER_DEGREE_E6
+                * longitudeScale;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
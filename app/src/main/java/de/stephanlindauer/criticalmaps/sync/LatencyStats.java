@@ -0,0 +1,47 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Round-trip latencies of one kind of request, from sending the request to receiving the
+ * response headers.
+ */
+public class LatencyStats {
+
+    private int count;
+    private long totalMillis;
+    private long lastMillis;
+    private long maxMillis;
+
+    synchronized void record(long millis) {
+        count++;
+        totalMillis += millis;
+        lastMillis = millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public synchronized long getLastMillis() {
+        return lastMillis;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d requests, mean %d ms, last %d ms, max %d ms",
+                count, getMeanMillis(), lastMillis, maxMillis);
+    }
+}
@@ -0,0 +1,315 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import timber.log.Timber;
+
+/**
+ * Optional WebSocket the server pushes updates through as they happen, instead of us polling for
+ * them. Each frame is a UTF-8 header line with the stream name and optionally the server time it
+ * was sent at in milliseconds, followed by the same payload the stream's GET endpoint returns:
+ * <pre>
+ * locations 1700000000000
+ * [{"device":"...","latitude":"52512345","longitude":"13412345"}, ...]
+ * </pre>
+ * Besides whole snapshots a stream can carry just the changes to the last one, e.g. riders that
+ * moved or left since; those frames have a stream name of their own.
+ * Frames should be binary, so the payload is decoded straight from the frame's bytes; text frames
+ * are accepted as well but get re-encoded first.
+ * Lost connections are retried with exponential backoff and jitter. While the channel isn't
+ * {@link State#LIVE} the callers keep polling.
+ */
+@Singleton
+public class LiveChannel {
+
+    static final long MIN_RECONNECT_DELAY = 1000; // 1 sec
+    static final long MAX_RECONNECT_DELAY = 5 * 60 * 1000; // 5 min
+
+    private static final long PING_INTERVAL = 30; // sec
+    private static final int NORMAL_CLOSURE = 1000;
+    private static final long NO_TIMESTAMP = -1;
+
+    public enum State {
+        STOPPED,
+        CONNECTING,
+        LIVE,
+        WAITING_TO_RECONNECT
+    }
+
+    /**
+     * One kind of pushed data. Decoded on the socket's thread, published on the main thread.
+     */
+    public interface Stream<T> {
+        @Nullable
+        T decode(@NonNull BufferedSource payload) throws IOException;
+
+        void publish(@NonNull T result);
+    }
+
+    private final OkHttpClient okHttpClient;
+    private final ScheduledExecutorService scheduler;
+    private final Executor mainThreadExecutor;
+    private final FreshnessStats freshnessStats;
+    private final Random random = new Random();
+
+    // all guarded by this
+    private final Map<String, Registration> streams = new HashMap<>();
+    private Request request;
+    private WebSocket webSocket;
+    private ScheduledFuture<?> reconnectFuture;
+    private State state = State.STOPPED;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+    private int reconnectCount;
+
+    @Inject
+    public LiveChannel(OkHttpClient okHttpClient, FreshnessStats freshnessStats) {
+        this(okHttpClient.newBuilder().pingInterval(PING_INTERVAL, TimeUnit.SECONDS).build(),
+                Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "live-channel")),
+                new SyncEngine.MainThreadExecutor(), freshnessStats);
+    }
+
+    LiveChannel(OkHttpClient okHttpClient, ScheduledExecutorService scheduler,
+                Executor mainThreadExecutor, FreshnessStats freshnessStats) {
+        this.okHttpClient = okHttpClient;
+        this.scheduler = scheduler;
+        this.mainThreadExecutor = mainThreadExecutor;
+        this.freshnessStats = freshnessStats;
+    }
+
+    public synchronized void register(@NonNull String name, @NonNull Stream<?> stream) {
+        register(name, name, stream);
+    }
+
+    /**
+     * @param statsStream the {@link FreshnessStats} stream deliveries count for, e.g. the
+     *                    snapshot stream for frames with changes to it
+     */
+    public synchronized void register(@NonNull String name, @NonNull String statsStream,
+                                      @NonNull Stream<?> stream) {
+        streams.put(name, new Registration(statsStream, stream));
+    }
+
+    /**
+     * Connects and keeps reconnecting until {@link #stop()}. No-op if already started.
+     */
+    public synchronized void start(@NonNull Request request) {
+        if (this.request != null) {
+            return;
+        }
+        this.request = request;
+        reconnectDelay = MIN_RECONNECT_DELAY;
+        connect();
+    }
+
+    public synchronized void stop() {
+        request = null;
+        cancelReconnect();
+        if (webSocket != null) {
+            webSocket.close(NORMAL_CLOSURE, null);
+            webSocket = null;
+        }
+        state = State.STOPPED;
+    }
+
+    /**
+     * Skips a pending backoff, e.g. once connectivity is back.
+     */
+    public synchronized void reconnectNow() {
+        if (state != State.WAITING_TO_RECONNECT) {
+            return;
+        }
+        cancelReconnect();
+        reconnectDelay = MIN_RECONNECT_DELAY;
+        connect();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true while updates are pushed, so polling can pause
+     */
+    public synchronized boolean isLive() {
+        return state == State.LIVE;
+    }
+
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    private void connect() {
+        state = State.CONNECTING;
+        webSocket = okHttpClient.newWebSocket(request, new Listener());
+    }
+
+    private void cancelReconnect() {
+        if (reconnectFuture != null) {
+            reconnectFuture.cancel(false);
+            reconnectFuture = null;
+        }
+    }
+
+    private synchronized void onDisconnected(WebSocket webSocket) {
+        if (webSocket != this.webSocket) {
+            return;
+        }
+        this.webSocket = null;
+
+        // equal jitter, so clients losing the connection together don't come back together
+        final long delay = reconnectDelay / 2 + (long) (random.nextDouble() * reconnectDelay / 2);
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+        Timber.d("Live channel lost, reconnecting in %d ms", delay);
+        state = State.WAITING_TO_RECONNECT;
+        reconnectFuture = scheduler.schedule(this::onReconnectDue, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onReconnectDue() {
+        reconnectFuture = null;
+        if (state == State.WAITING_TO_RECONNECT) {
+            reconnectCount++;
+            connect();
+        }
+    }
+
+    private synchronized boolean isCurrent(WebSocket webSocket) {
+        return webSocket == this.webSocket;
+    }
+
+    private void dispatch(WebSocket webSocket, Buffer frame) {
+        final String header;
+        try {
+            header = frame.readUtf8LineStrict();
+        } catch (EOFException e) {
+            Timber.d("Malformed live frame");
+            return;
+        }
+        final int separator = header.indexOf(' ');
+        final String name = separator < 0 ? header : header.substring(0, separator);
+        long sentAt = NO_TIMESTAMP;
+        if (separator >= 0) {
+            try {
+                sentAt = Long.parseLong(header.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                Timber.d("Malformed live frame timestamp");
+            }
+        }
+
+        final Registration registration;
+        synchronized (this) {
+            registration = streams.get(name);
+        }
+        if (registration == null) {
+            Timber.d("Unknown live stream %s", name);
+            return;
+        }
+        deliver(webSocket, registration.statsStream, registration.stream, frame, sentAt);
+    }
+
+    private <T> void deliver(WebSocket webSocket, String statsStream, Stream<T> stream,
+                             BufferedSource payload, long sentAt) {
+        final T result;
+        try {
+            result = stream.decode(payload);
+        } catch (IOException | RuntimeException e) {
+            Timber.e(e);
+            return;
+        }
+        if (result == null) {
+            return;
+        }
+
+        final long deliveryMillis = sentAt == NO_TIMESTAMP
+                ? 0 : System.currentTimeMillis() - sentAt;
+        mainThreadExecutor.execute(() -> {
+            if (!isCurrent(webSocket)) {
+                return;
+            }
+            stream.publish(result);
+            freshnessStats.onUpdate(statsStream, FreshnessStats.Transport.PUSH, deliveryMillis);
+        });
+    }
+
+    private static final class Registration {
+        final String statsStream;
+        final Stream<?> stream;
+
+        Registration(String statsStream, Stream<?> stream) {
+            this.statsStream = statsStream;
+            this.stream = stream;
+        }
+    }
+
+    private class Listener extends WebSocketListener {
+        @Override
+        public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+            synchronized (LiveChannel.this) {
+                if (webSocket != LiveChannel.this.webSocket) {
+                    return;
+                }
+                Timber.d("Live channel open");
+                state = State.LIVE;
+                reconnectDelay = MIN_RECONNECT_DELAY;
+            }
+        }
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull ByteString bytes) {
+            if (isCurrent(webSocket)) {
+                dispatch(webSocket, new Buffer().write(bytes));
+            }
+        }
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+            if (isCurrent(webSocket)) {
+                dispatch(webSocket, new Buffer().writeUtf8(text));
+            }
+        }
+
+        @Override
+        public void onClosing(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            webSocket.close(NORMAL_CLOSURE, null);
+        }
+
+        @Override
+        public void onClosed(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            onDisconnected(webSocket);
+        }
+
+        @Override
+        public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t,
+                              @Nullable Response response) {
+            Timber.d(t);
+            onDisconnected(webSocket);
+        }
+    }
+}
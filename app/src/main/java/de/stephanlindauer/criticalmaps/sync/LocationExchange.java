@@ -0,0 +1,118 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.SystemClock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Bookkeeping for the combined heartbeat + locations round-trip: our heartbeat PUT asks for the
+ * current locations in its response, saving the separate GET. Until a probe showed the server
+ * answers with locations, the two separate calls are used; the probe is a regular heartbeat
+ * asking for locations. Servers that don't answer with locations are probed once more after
+ * {@link #REPROBE_INTERVAL}.
+ */
+@Singleton
+public class LocationExchange {
+
+    public static final long REPROBE_INTERVAL = 60 * 60 * 1000; // 1 hour
+
+    // a heartbeat sent with the last window still counts, even if that window ran a bit early
+    private static final long HEARTBEAT_SLACK = 5 * 1000; // 5 sec
+    private static final long NEVER = -1;
+
+    public enum Support {
+        UNKNOWN,
+        SUPPORTED,
+        UNSUPPORTED
+    }
+
+    private final SyncScheduler.Clock clock;
+
+    private volatile boolean isEnabled = true;
+    private volatile Support support = Support.UNKNOWN;
+    private volatile long unsupportedSince = NEVER;
+    private volatile long lastHeartbeatTime = NEVER;
+
+    @Inject
+    public LocationExchange() {
+        this(SystemClock::elapsedRealtime);
+    }
+
+    LocationExchange(SyncScheduler.Clock clock) {
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Client side switch, e.g. to compare both modes.
+     */
+    public void setEnabled(boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    public Support getSupport() {
+        return support;
+    }
+
+    /**
+     * @return true if the next separate heartbeat should ask for locations to find out whether
+     * the server supports the combined round-trip
+     */
+    public boolean shouldProbe() {
+        if (!isEnabled) {
+            return false;
+        }
+        return support == Support.UNKNOWN || support == Support.UNSUPPORTED
+                && clock.elapsedRealtime() - unsupportedSince >= REPROBE_INTERVAL;
+    }
+
+    /**
+     * @param heartbeatInterval the interval separate heartbeats are sent at
+     * @return true if locations should be fetched with the combined round-trip; only once the
+     * server is known to support it, and only when our heartbeat is due anyway, so heartbeats
+     * don't go out at the poll cadence
+     */
+    public boolean shouldExchange(long heartbeatInterval) {
+        if (!isEnabled || support != Support.SUPPORTED) {
+            return false;
+        }
+        return lastHeartbeatTime == NEVER || clock.elapsedRealtime() - lastHeartbeatTime
+                >= heartbeatInterval - HEARTBEAT_SLACK;
+    }
+
+    public void setSupported(boolean isSupported) {
+        final Support newSupport = isSupported ? Support.SUPPORTED : Support.UNSUPPORTED;
+        if (newSupport == Support.UNSUPPORTED) {
+            unsupportedSince = clock.elapsedRealtime();
+        }
+        if (support != newSupport) {
+            Timber.d("Combined heartbeat + locations %s", newSupport);
+            support = newSupport;
+        }
+    }
+
+    /**
+     * Called when a combined round-trip delivered our heartbeat.
+     */
+    public void onHeartbeatSent() {
+        lastHeartbeatTime = clock.elapsedRealtime();
+    }
+
+    /**
+     * @param heartbeatInterval the interval separate heartbeats are sent at
+     * @return true if a combined round-trip already sent our heartbeat within the interval, so
+     * a separate heartbeat can be skipped
+     */
+    public boolean isHeartbeatCovered(long heartbeatInterval) {
+        if (!isEnabled || support != Support.SUPPORTED || lastHeartbeatTime == NEVER) {
+            return false;
+        }
+        return clock.elapsedRealtime() - lastHeartbeatTime <= heartbeatInterval + HEARTBEAT_SLACK;
+    }
+}
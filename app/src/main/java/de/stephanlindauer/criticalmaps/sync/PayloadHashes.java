@@ -0,0 +1,55 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import okio.Buffer;
+import okio.ByteString;
+import okio.HashingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Remembers a hash of the last published payload per endpoint, so a body identical to it
+ * (a revalidated cache hit or a server without validators) can skip decoding and publishing.
+ * The body is hashed while it's read into a {@link Buffer}, before anything decodes it.
+ */
+@Singleton
+public class PayloadHashes {
+
+    // guarded by this
+    private final Map<String, ByteString> publishedHashes = new HashMap<>();
+
+    @Inject
+    public PayloadHashes() {
+    }
+
+    /**
+     * Reads the whole body into {@code into}, hashing it on the way.
+     *
+     * @return the hash of the body, to check with {@link #isPublished(String, ByteString)}
+     * before decoding {@code into}
+     */
+    @NonNull
+    public static ByteString readAndHash(@NonNull Source body, @NonNull Buffer into)
+            throws IOException {
+        final HashingSource hashingSource = HashingSource.md5(body);
+        Okio.buffer(hashingSource).readAll(into);
+        return hashingSource.hash();
+    }
+
+    public synchronized boolean isPublished(@NonNull String key, @NonNull ByteString hash) {
+        return hash.equals(publishedHashes.get(key));
+    }
+
+    // only called after publishing: a dropped result must not make its payload look known
+    public synchronized void setPublished(@NonNull String key, @NonNull ByteString hash) {
+        publishedHashes.put(key, hash);
+    }
+}
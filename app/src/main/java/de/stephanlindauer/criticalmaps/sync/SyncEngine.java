@@ -0,0 +1,291 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.events.SyncHealthChangedEvent;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Runs {@link SyncTask}s on its own executor, so a slow endpoint doesn't hold up the others
+ * (AsyncTasks all share one serial executor). Tasks are single-flight per key: submitting while
+ * a task with the same key is still fetching, decoding or waiting to publish is a no-op.
+ * Every key has its own {@link EndpointHealth}; while that backs off or is open, submitting is
+ * a no-op as well, so a struggling server doesn't get hammered by every client at once.
+ */
+@Singleton
+public class SyncEngine {
+
+    private static final int NOT_REJECTED = 0;
+
+    private final OkHttpClient okHttpClient;
+    private final Executor executor;
+    private final Executor mainThreadExecutor;
+    private final SyncScheduler.Clock clock;
+    private final EventBus eventBus;
+    private final Random random = new Random();
+
+    // guarded by this
+    private final Map<String, InFlight<?>> inFlightTasks = new HashMap<>();
+    private final Map<String, LatencyStats> latencies = new HashMap<>();
+    private final Map<String, EndpointHealth> endpointHealths = new HashMap<>();
+
+    @Inject
+    public SyncEngine(OkHttpClient okHttpClient, EventBus eventBus) {
+        this(okHttpClient, createExecutor(), new MainThreadExecutor(),
+                SystemClock::elapsedRealtime, eventBus);
+    }
+
+    SyncEngine(OkHttpClient okHttpClient, Executor executor, Executor mainThreadExecutor,
+               SyncScheduler.Clock clock, EventBus eventBus) {
+        this.okHttpClient = okHttpClient;
+        this.executor = executor;
+        this.mainThreadExecutor = mainThreadExecutor;
+        this.clock = clock;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * @return false if a task with the same key is still in flight or its endpoint is backing
+     * off
+     */
+    public <T> boolean submit(@NonNull SyncTask<T> task) {
+        final InFlight<T> inFlight = new InFlight<>(task);
+        synchronized (this) {
+            if (inFlightTasks.containsKey(task.getKey())) {
+                Timber.d("%s still in flight, skipping", task.getKey());
+                return false;
+            }
+            if (!getEndpointHealth(task.getKey()).tryAcquire(clock.elapsedRealtime())) {
+                Timber.d("%s backing off, skipping", task.getKey());
+                return false;
+            }
+            inFlightTasks.put(task.getKey(), inFlight);
+        }
+        executor.execute(() -> run(inFlight));
+        return true;
+    }
+
+    /**
+     * Cancels the in flight task with the given key, if any. Its network call is aborted and
+     * nothing gets published anymore.
+     */
+    public void cancel(@NonNull String key) {
+        final InFlight<?> inFlight;
+        synchronized (this) {
+            inFlight = inFlightTasks.remove(key);
+        }
+        if (inFlight != null) {
+            inFlight.cancel();
+        }
+    }
+
+    public synchronized boolean isInFlight(@NonNull String key) {
+        return inFlightTasks.containsKey(key);
+    }
+
+    /**
+     * @param latencyKey see {@link SyncTask#getLatencyKey()}
+     */
+    @NonNull
+    public synchronized LatencyStats getLatencyStats(@NonNull String latencyKey) {
+        LatencyStats stats = latencies.get(latencyKey);
+        if (stats == null) {
+            stats = new LatencyStats();
+            latencies.put(latencyKey, stats);
+        }
+        return stats;
+    }
+
+    @NonNull
+    public synchronized EndpointHealth getEndpointHealth(@NonNull String key) {
+        EndpointHealth health = endpointHealths.get(key);
+        if (health == null) {
+            health = new EndpointHealth(key);
+            endpointHealths.put(key, health);
+        }
+        return health;
+    }
+
+    /**
+     * Lets endpoints that only failed because we were offline retry right away.
+     */
+    public void onConnectivityRegained() {
+        final EndpointHealth[] healths;
+        synchronized (this) {
+            healths = endpointHealths.values().toArray(new EndpointHealth[0]);
+        }
+        for (EndpointHealth health : healths) {
+            if (health.onConnectivityRegained()) {
+                postHealthChanged(health);
+            }
+        }
+    }
+
+    private <T> void run(InFlight<T> inFlight) {
+        final SyncTask<T> task = inFlight.task;
+        final EndpointHealth health = getEndpointHealth(task.getKey());
+        T result = null;
+        boolean isSuccessful = false;
+        int rejectedCode = NOT_REJECTED;
+        boolean hasResponse = false;
+        boolean hasHealthChanged = false;
+        try {
+            final Request request = task.createRequest();
+            if (request == null || inFlight.isCancelled()) {
+                finish(inFlight);
+                return;
+            }
+
+            final Call call = okHttpClient.newCall(request);
+            inFlight.setCall(call);
+            try (Response response = call.execute()) {
+                hasResponse = true;
+                if (response.networkResponse() != null) {
+                    getLatencyStats(task.getLatencyKey()).record(
+                            SyncTask.getRoundTripMillis(response));
+                }
+                if (EndpointHealth.isServerFailure(response.code())) {
+                    hasHealthChanged = health.onFailure(clock.elapsedRealtime(),
+                            EndpointHealth.getRetryAfterMillis(
+                                    response, System.currentTimeMillis()),
+                            true, random);
+                    Timber.w("%s failed with code %d, %s",
+                            task.getKey(), response.code(), health);
+                } else {
+                    // the server answered, whatever the task makes of it
+                    hasHealthChanged = health.onSuccess();
+                    if (response.isSuccessful()) {
+                        result = task.decode(response);
+                        isSuccessful = true;
+                    } else {
+                        Timber.d("%s unsuccessful with code %d", task.getKey(), response.code());
+                        if (response.code() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                            rejectedCode = response.code();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!hasResponse && !inFlight.isCancelled()) {
+                hasHealthChanged = health.onFailure(clock.elapsedRealtime(), 0, false, random);
+                Timber.w(e, "%s failed, %s", task.getKey(), health);
+            } else if (!inFlight.isCancelled()) {
+                Timber.e(e);
+            }
+        } catch (RuntimeException e) {
+            // a throwing task must not block its key forever, so it's reported as failure too
+            if (!inFlight.isCancelled()) {
+                Timber.e(e);
+            }
+        }
+
+        if (hasHealthChanged) {
+            postHealthChanged(health);
+        }
+        if (inFlight.isCancelled()) {
+            return;
+        }
+        final T publishedResult = result;
+        final boolean wasSuccessful = isSuccessful;
+        final int wasRejectedWith = rejectedCode;
+        mainThreadExecutor.execute(() -> {
+            // stays in flight until published, so a new fetch can't overtake this one
+            finish(inFlight);
+            if (inFlight.isCancelled()) {
+                return;
+            }
+            if (wasRejectedWith != NOT_REJECTED) {
+                task.onRejected(wasRejectedWith);
+            } else if (!wasSuccessful) {
+                task.onFailure();
+            } else if (publishedResult != null) {
+                task.publish(publishedResult);
+            }
+        });
+    }
+
+    private void postHealthChanged(EndpointHealth health) {
+        final SyncHealthChangedEvent event =
+                new SyncHealthChangedEvent(health.getKey(), health.getState());
+        mainThreadExecutor.execute(() -> eventBus.post(event));
+    }
+
+    private synchronized void finish(InFlight<?> inFlight) {
+        if (inFlightTasks.get(inFlight.task.getKey()) == inFlight) {
+            inFlightTasks.remove(inFlight.task.getKey());
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        // single-flight per key bounds the number of threads to the number of endpoints
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "sync-" + threadCount.incrementAndGet());
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    private static class InFlight<T> {
+        final SyncTask<T> task;
+        private volatile boolean isCancelled;
+        private volatile Call call;
+
+        InFlight(SyncTask<T> task) {
+            this.task = task;
+        }
+
+        boolean isCancelled() {
+            return isCancelled;
+        }
+
+        void setCall(Call call) {
+            this.call = call;
+            // cancel() might have missed the call
+            if (isCancelled) {
+                call.cancel();
+            }
+        }
+
+        void cancel() {
+            isCancelled = true;
+            final Call call = this.call;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    static class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            handler.post(runnable);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.squareup.otto.Subscribe;
+
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.events.NewLocationEvent;
+import de.stephanlindauer.criticalmaps.events.NewServerResponseEvent;
+import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import timber.log.Timber;
+
+/**
+ * Picks the poll and heartbeat intervals of the {@link SyncScheduler} from the own speed, map
+ * visibility, the number of riders nearby and the battery state. Starting from the base interval
+ * every signal contributes a factor, the results are clamped to configurable bounds.
+ */
+@Singleton
+public class SyncPolicy {
+
+    public static final long BASE_INTERVAL = SyncScheduler.DEFAULT_PERIOD;
+    public static final int UNKNOWN_BATTERY = -1;
+
+    static final float MOVING_SPEED = 2.0f; // m/s, slow cycling
+    static final float STATIONARY_SPEED = 0.5f; // m/s, GPS jitter
+    static final int DENSE_RIDERS = 20;
+    static final int LOW_BATTERY_PERCENT = 15;
+    // ~1 km around the own location
+    private static final double NEARBY_DEGREES = 0.01D;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final App app;
+    private final EventBus eventBus;
+    private final SyncScheduler syncScheduler;
+    private final LocationUpdateManager locationUpdateManager;
+    private final OwnLocationModel ownLocationModel;
+    private final OtherUsersLocationModel otherUsersLocationModel;
+
+    // signals and bounds are only touched on the main thread
+    private float speed = LocationUpdateManager.UNKNOWN_SPEED;
+    private boolean isMapVisible;
+    private int nearbyRiders;
+    private int batteryPercent = UNKNOWN_BATTERY;
+    private boolean isCharging;
+    private long batteryReadAt = NEVER;
+    private long minPollInterval = 15 * 1000;
+    private long maxPollInterval = 2 * 60 * 1000;
+    private long minHeartbeatInterval = 15 * 1000;
+    private long maxHeartbeatInterval = 2 * 60 * 1000;
+
+    private volatile Decision decision;
+
+    @Inject
+    public SyncPolicy(App app, EventBus eventBus, SyncScheduler syncScheduler,
+                      LocationUpdateManager locationUpdateManager,
+                      OwnLocationModel ownLocationModel,
+                      OtherUsersLocationModel otherUsersLocationModel) {
+        this.app = app;
+        this.eventBus = eventBus;
+        this.syncScheduler = syncScheduler;
+        this.locationUpdateManager = locationUpdateManager;
+        this.ownLocationModel = ownLocationModel;
+        this.otherUsersLocationModel = otherUsersLocationModel;
+    }
+
+    public void start() {
+        eventBus.register(this);
+        update();
+    }
+
+    public void stop() {
+        eventBus.unregister(this);
+    }
+
+    /**
+     * @return the latest decision including the signals it was based on, null before start
+     */
+    public Decision getDecision() {
+        return decision;
+    }
+
+    public void setMapVisible(boolean isMapVisible) {
+        this.isMapVisible = isMapVisible;
+        update();
+    }
+
+    public void setPollIntervalBounds(long minPollInterval, long maxPollInterval) {
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+        update();
+    }
+
+    public void setHeartbeatIntervalBounds(long minHeartbeatInterval, long maxHeartbeatInterval) {
+        this.minHeartbeatInterval = minHeartbeatInterval;
+        this.maxHeartbeatInterval = maxHeartbeatInterval;
+        update();
+    }
+
+    @Subscribe
+    public void handleNewLocation(NewLocationEvent e) {
+        speed = locationUpdateManager.getSpeed();
+        update();
+    }
+
+    @Subscribe
+    public void handleNewServerData(NewServerResponseEvent e) {
+        final int nearbyRiders = countNearbyRiders();
+        if (nearbyRiders != this.nearbyRiders) {
+            this.nearbyRiders = nearbyRiders;
+            update();
+        }
+    }
+
+    private void update() {
+        // the battery drains slowly, once per sync window is plenty even with a fix every second
+        final long now = SystemClock.elapsedRealtime();
+        if (batteryReadAt == NEVER || now - batteryReadAt >= syncScheduler.getPeriod()) {
+            batteryReadAt = now;
+            readBatteryState();
+        }
+
+        final Decision previousDecision = decision;
+        decision = decide(speed, isMapVisible, nearbyRiders, batteryPercent, isCharging);
+        syncScheduler.setIntervals(decision.pollInterval, decision.heartbeatInterval);
+        if (previousDecision == null
+                || previousDecision.pollInterval != decision.pollInterval
+                || previousDecision.heartbeatInterval != decision.heartbeatInterval) {
+            Timber.d("Sync policy: %s", decision);
+        }
+    }
+
+    private void readBatteryState() {
+        final Intent batteryStatus = app.registerReceiver(
+                null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        batteryPercent = UNKNOWN_BATTERY;
+        isCharging = false;
+        if (batteryStatus != null) {
+            final int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                batteryPercent = level * 100 / scale;
+            }
+            isCharging = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+    }
+
+    @NonNull
+    Decision decide(float speed, boolean isMapVisible, int nearbyRiders, int batteryPercent,
+                    boolean isCharging) {
+        final double speedFactor;
+        if (speed == LocationUpdateManager.UNKNOWN_SPEED || speed >= MOVING_SPEED) {
+            speedFactor = 1.0D;
+        } else if (speed >= STATIONARY_SPEED) {
+            speedFactor = 1.5D;
+        } else {
+            speedFactor = 2.0D;
+        }
+
+        final double densityFactor;
+        if (nearbyRiders >= DENSE_RIDERS) {
+            // riding in the mass, the map changes all the time
+            densityFactor = 0.5D;
+        } else if (nearbyRiders == 0) {
+            densityFactor = 2.0D;
+        } else {
+            densityFactor = 1.0D;
+        }
+
+        final double batteryFactor = !isCharging && batteryPercent != UNKNOWN_BATTERY
+                && batteryPercent <= LOW_BATTERY_PERCENT ? 2.0D : 1.0D;
+        final double visibilityFactor = isMapVisible ? 1.0D : 4.0D;
+
+        final long pollInterval = clamp(
+                BASE_INTERVAL * speedFactor * densityFactor * visibilityFactor * batteryFactor,
+                minPollInterval, maxPollInterval);
+        // others rely on our heartbeat no matter what we look at or how many are around
+        final long heartbeatInterval = clamp(BASE_INTERVAL * speedFactor * batteryFactor,
+                minHeartbeatInterval, maxHeartbeatInterval);
+
+        return new Decision(pollInterval, heartbeatInterval,
+                speed, isMapVisible, nearbyRiders, batteryPercent, isCharging);
+    }
+
+    private int countNearbyRiders() {
+        final GeoPoint ownLocation = ownLocationModel.getOwnLocation();
+        if (ownLocation == null) {
+            return 0;
+        }
+        final double longitudeDegrees = NEARBY_DEGREES
+                / Math.max(Math.cos(Math.toRadians(ownLocation.getLatitude())), 0.01D);
+        final BoundingBox nearby = new BoundingBox(
+                ownLocation.getLatitude() + NEARBY_DEGREES,
+                ownLocation.getLongitude() + longitudeDegrees,
+                ownLocation.getLatitude() - NEARBY_DEGREES,
+                ownLocation.getLongitude() - longitudeDegrees);
+        return otherUsersLocationModel.getOtherUsersLocations().getSpatialIndex()
+                .queryBoundingBox(nearby, index -> {
+                });
+    }
+
+    private static long clamp(double interval, long min, long max) {
+        return Math.max(min, Math.min(Math.round(interval), max));
+    }
+
+    public static final class Decision {
+        public final long pollInterval;
+        public final long heartbeatInterval;
+        public final float speed;
+        public final boolean isMapVisible;
+        public final int nearbyRiders;
+        public final int batteryPercent;
+        public final boolean isCharging;
+
+        Decision(long pollInterval, long heartbeatInterval, float speed, boolean isMapVisible,
+                 int nearbyRiders, int batteryPercent, boolean isCharging) {
+            this.pollInterval = pollInterval;
+            this.heartbeatInterval = heartbeatInterval;
+            this.speed = speed;
+            this.isMapVisible = isMapVisible;
+            this.nearbyRiders = nearbyRiders;
+            this.batteryPercent = batteryPercent;
+            this.isCharging = isCharging;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "poll %d s, heartbeat %d s (speed %.1f m/s, map %s, %d riders nearby, "
+                            + "battery %d%%%s)",
+                    pollInterval / 1000, heartbeatInterval / 1000, speed,
+                    isMapVisible ? "visible" : "hidden", nearbyRiders, batteryPercent,
+                    isCharging ? " charging" : "");
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Owns all periodic network work. Instead of every job running on its own timer with its own
+ * phase, all jobs run together in one window per period, so the radio wakes up once per period
+ * instead of once per job. Polls and heartbeats may use different intervals; these get rounded
+ * to multiples of the shorter one, so jobs still only ever run in shared windows. The windows keep
+ * their phase while no job is scheduled.
+ */
+@Singleton
+public class SyncScheduler {
+
+    public static final long DEFAULT_PERIOD = 30 * 1000; // 30 sec
+    public static final long NOT_SCHEDULED = -1;
+
+    // a job added this close to the next window waits for it instead of running on its own
+    private static final long JOIN_WINDOW_SLACK = 5 * 1000; // 5 sec
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+
+    public enum Cadence {
+        POLL,
+        HEARTBEAT
+    }
+
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private final Clock clock;
+    private final ScheduledExecutorService executor;
+
+    // all guarded by this
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final ArrayDeque<Long> wakeUpTimes = new ArrayDeque<>();
+    private ScheduledFuture<?> windowFuture;
+    private long period = DEFAULT_PERIOD;
+    private int pollWindows = 1;
+    private int heartbeatWindows = 1;
+    private long windowCount;
+    private long phaseAnchor = NOT_SCHEDULED;
+    private long nextRunTime = NOT_SCHEDULED;
+
+    @Inject
+    public SyncScheduler() {
+        this(SystemClock::elapsedRealtime, Executors.newSingleThreadScheduledExecutor(
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "sync-scheduler")));
+    }
+
+    SyncScheduler(Clock clock, ScheduledExecutorService executor) {
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the job at the interval of its cadence from now on. Unless the next window is imminent
+     * it also runs once right away, so e.g. a freshly opened screen doesn't wait up to a period
+     * for data. Replaces a job already scheduled with the same key.
+     */
+    public synchronized void schedule(@NonNull String key, @NonNull Cadence cadence,
+                                      @NonNull Runnable job) {
+        final boolean isNew = jobs.put(key, new Job(cadence, job)) == null;
+        if (windowFuture == null) {
+            startWindows();
+        }
+        if (isNew && nextRunTime - clock.elapsedRealtime() > JOIN_WINDOW_SLACK) {
+            executor.execute(() -> runJob(key, job));
+            recordWakeUp();
+        }
+    }
+
+    public synchronized void unschedule(@NonNull String key) {
+        jobs.remove(key);
+        if (jobs.isEmpty() && windowFuture != null) {
+            windowFuture.cancel(false);
+            windowFuture = null;
+            nextRunTime = NOT_SCHEDULED;
+        }
+    }
+
+    public synchronized boolean isScheduled(@NonNull String key) {
+        return jobs.containsKey(key);
+    }
+
+    public synchronized long getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return the effective interval of the given cadence after rounding
+     */
+    public synchronized long getInterval(@NonNull Cadence cadence) {
+        return period * windowsPerRun(cadence);
+    }
+
+    /**
+     * Takes effect immediately, the next window moves to one new period after the last one.
+     */
+    public synchronized void setIntervals(long pollInterval, long heartbeatInterval) {
+        final long period = Math.min(pollInterval, heartbeatInterval);
+        pollWindows = (int) Math.max(1, Math.round((double) pollInterval / period));
+        heartbeatWindows = (int) Math.max(1, Math.round((double) heartbeatInterval / period));
+        setPeriod(period);
+    }
+
+    private void setPeriod(long period) {
+        if (this.period == period) {
+            return;
+        }
+        if (windowFuture != null) {
+            windowFuture.cancel(false);
+            windowFuture = null;
+            // re-anchor on the last window so the phase stays put as far as possible
+            phaseAnchor = nextRunTime - this.period;
+        }
+        this.period = period;
+        if (!jobs.isEmpty()) {
+            startWindows();
+        }
+    }
+
+    /**
+     * @return offset of the windows within a period, in ms of elapsed realtime
+     */
+    public synchronized long getPhase() {
+        return phaseAnchor == NOT_SCHEDULED ? NOT_SCHEDULED : phaseAnchor % period;
+    }
+
+    /**
+     * @return elapsed realtime of the next window or {@link #NOT_SCHEDULED}
+     */
+    public synchronized long getNextRunTime() {
+        return nextRunTime;
+    }
+
+    /**
+     * @return number of times the radio got woken up in the last hour, i.e. windows plus
+     * immediate runs of newly added jobs
+     */
+    public synchronized int getWakeUpsPerHour() {
+        pruneWakeUps(clock.elapsedRealtime());
+        return wakeUpTimes.size();
+    }
+
+    private void startWindows() {
+        final long now = clock.elapsedRealtime();
+        if (phaseAnchor == NOT_SCHEDULED) {
+            phaseAnchor = now;
+        }
+        final long sinceLastWindow = (now - phaseAnchor) % period;
+        final long initialDelay = sinceLastWindow == 0 ? period : period - sinceLastWindow;
+        nextRunTime = now + initialDelay;
+        windowFuture = executor.scheduleAtFixedRate(
+                this::runWindow, initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    void runWindow() {
+        final List<Map.Entry<String, Job>> dueJobs = new ArrayList<>();
+        synchronized (this) {
+            nextRunTime = clock.elapsedRealtime() + period;
+            windowCount++;
+            // polls first, so a combined round-trip can make a heartbeat in the same window moot
+            for (Cadence cadence : Cadence.values()) {
+                for (Map.Entry<String, Job> job : jobs.entrySet()) {
+                    if (job.getValue().cadence == cadence
+                            && windowCount % windowsPerRun(cadence) == 0) {
+                        dueJobs.add(job);
+                    }
+                }
+            }
+            if (dueJobs.isEmpty()) {
+                return;
+            }
+            recordWakeUp();
+            Timber.d("Sync window with %d jobs, %d wake-ups in the last hour",
+                    dueJobs.size(), wakeUpTimes.size());
+        }
+        for (Map.Entry<String, Job> job : dueJobs) {
+            runJob(job.getKey(), job.getValue().runnable);
+        }
+    }
+
+    private int windowsPerRun(Cadence cadence) {
+        return cadence == Cadence.POLL ? pollWindows : heartbeatWindows;
+    }
+
+    private void runJob(String key, Runnable job) {
+        try {
+            job.run();
+        } catch (RuntimeException e) {
+            // an exception would cancel the fixed rate schedule for all jobs
+            Timber.e(e, "Scheduled job %s failed", key);
+        }
+    }
+
+    private void recordWakeUp() {
+        final long now = clock.elapsedRealtime();
+        pruneWakeUps(now);
+        wakeUpTimes.add(now);
+    }
+
+    private void pruneWakeUps(long now) {
+        while (!wakeUpTimes.isEmpty() && wakeUpTimes.peekFirst() <= now - ONE_HOUR) {
+            wakeUpTimes.removeFirst();
+        }
+    }
+
+    private static class Job {
+        final Cadence cadence;
+        final Runnable runnable;
+
+        Job(Cadence cadence, Runnable runnable) {
+            this.cadence = cadence;
+            this.runnable = runnable;
+        }
+    }
+}
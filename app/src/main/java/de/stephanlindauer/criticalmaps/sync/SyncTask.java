@@ -0,0 +1,102 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * One round-trip run by the {@link SyncEngine}: fetch and decode happen on the sync executor,
+ * only the decoded result is handed to the main thread.
+ */
+public abstract class SyncTask<T> {
+
+    private final String key;
+
+    /**
+     * @param key identifies the endpoint; only one task per key is in flight at a time
+     */
+    protected SyncTask(@NonNull String key) {
+        this.key = key;
+    }
+
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Called on the sync executor after {@link #createRequest()}.
+     *
+     * @return key the round-trip latency of this run gets recorded under
+     * @see SyncEngine#getLatencyStats(String)
+     */
+    @NonNull
+    protected String getLatencyKey() {
+        return key;
+    }
+
+    /**
+     * Called on the sync executor.
+     *
+     * @return the request to execute or null to skip this run
+     */
+    @Nullable
+    protected abstract Request createRequest();
+
+    /**
+     * Called on the sync executor with a successful response, which is closed afterwards.
+     *
+     * @return the result to publish or null if there's nothing to publish
+     */
+    @Nullable
+    protected abstract T decode(@NonNull Response response) throws IOException;
+
+    /**
+     * @return true if the body came from the HTTP cache, either still fresh or revalidated
+     */
+    protected static boolean isFromCache(@NonNull Response response) {
+        final Response networkResponse = response.networkResponse();
+        return networkResponse == null
+                || networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return time from sending the request to receiving the response headers, 0 if the
+     * response came from the HTTP cache without a network request
+     */
+    protected static long getRoundTripMillis(@NonNull Response response) {
+        if (response.networkResponse() == null) {
+            return 0;
+        }
+        return response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+    }
+
+    /**
+     * Called on the main thread unless the task got cancelled.
+     */
+    protected void publish(@NonNull T result) {
+    }
+
+    /**
+     * Called on the main thread if the request failed or the server answered with an error,
+     * unless the task got cancelled.
+     */
+    protected void onFailure() {
+    }
+
+    /**
+     * Called on the main thread instead of {@link #onFailure()} if the server answered with a
+     * client error, so sending the same request again won't help. Defaults to onFailure().
+     *
+     * @param code the response's status code, a 4xx other than the ones
+     *             {@link EndpointHealth#isServerFailure(int)} counts as the server struggling
+     */
+    protected void onRejected(int code) {
+        onFailure();
+    }
+}
@@ -1,26 +1,33 @@
 package de.stephanlindauer.criticalmaps.utils;
 
-import org.jetbrains.annotations.NotNull;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import org.osmdroid.util.GeoPoint;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import javax.inject.Inject;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
 import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
 
+/**
+ * Reads tracks and waypoints of a GPX file in a single streaming pass, so only the points
+ * themselves are kept in memory and not the whole document. Track points go straight into the
+ * packed arrays of {@link GpxTrack.Builder}. A {@link Listener} gets the points of a track in
+ * chunks while it's still being read, so a route can be drawn before the whole file is parsed.
+ */
 public class GpxReader {
 
     private static final String ELEMENT_TRK = "trk";
@@ -32,6 +39,24 @@ public class GpxReader {
     private static final String ELEMENT_ELE = "ele";
     private static final String ELEMENT_WPT = "wpt";
 
+    // chunks double in size, so the start of a route shows quickly without flooding the map
+    // with overlays for a long one
+    static final int FIRST_CHUNK_SIZE = 1024;
+    static final int MAX_CHUNK_SIZE = 65536;
+
+    public interface Listener {
+        /**
+         * Called on the reading thread with the next chunk of the track being read. Consecutive
+         * chunks of a track share their boundary point, so drawn one after another they join.
+         */
+        void onTrackChunk(@NonNull GpxTrack chunk);
+
+        /**
+         * Polled while reading; once true, reading stops with a {@link CancellationException}.
+         */
+        boolean isCancelled();
+    }
+
     private final GpxModel gpxModel;
 
     @Inject
@@ -41,76 +66,249 @@ public class GpxReader {
 
     public void readDataFromStream(InputStream gpxInputStream, String uri) throws IOException, SAXException, ParserConfigurationException {
         gpxModel.clear();
-        readGpxFile(gpxInputStream);
+        readGpxFile(gpxInputStream, null, gpxModel);
         gpxModel.setUri(uri);
     }
 
-    private void readGpxFile(InputStream gpxInputStream) throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document gpxDocument = documentBuilder.parse(gpxInputStream);
-        Element gpxElement = gpxDocument.getDocumentElement();
-        readTracks(gpxElement);
-        readWaypoints(gpxElement);
+    /**
+     * Reads into a new model instead of the shared one, e.g. on a background thread.
+     *
+     * @throws CancellationException if the listener cancelled reading
+     */
+    @NonNull
+    public GpxModel read(InputStream gpxInputStream, String uri, @Nullable Listener listener)
+            throws IOException, SAXException, ParserConfigurationException {
+        final GpxModel result = new GpxModel();
+        readGpxFile(gpxInputStream, listener, result);
+        result.setUri(uri);
+        return result;
     }
 
-    private void readWaypoints(Element gpxElement) {
-        NodeList wptList = gpxElement.getElementsByTagName(ELEMENT_WPT);
-        for (int i = 0; i < wptList.getLength(); i++) {
-            Element wpt = (Element) wptList.item(i);
-            GeoPoint location = parsePoint(wpt);
-            String pointName = parseName(wpt);
-            gpxModel.getPoiList().add(new GpxPoi(pointName, location));
-        }
+    private void readGpxFile(InputStream gpxInputStream, Listener listener, GpxModel target)
+            throws ParserConfigurationException, IOException, SAXException {
+        final GpxHandler handler = new GpxHandler(listener);
+        SAXParserFactory.newInstance().newSAXParser().parse(gpxInputStream, handler);
+        target.getTracks().addAll(handler.tracks);
+        target.getPoiList().addAll(handler.pois);
     }
 
-    private void readTracks(Element gpxElement) {
-        NodeList trkList = gpxElement.getElementsByTagName(ELEMENT_TRK);
-        for (int i = 0; i < trkList.getLength(); i++) {
-            Element track = (Element) trkList.item(i);
-            List<GeoPoint> trackPoints = getTrackPoints(track);
-            String trackName = parseName(track);
-            gpxModel.getTracks().add(new GpxTrack(trackName, trackPoints));
+    private static class GpxHandler extends DefaultHandler {
+        final List<GpxTrack> tracks = new ArrayList<>();
+        final List<GpxPoi> pois = new ArrayList<>();
+        private final Listener listener;
+
+        // a track or waypoint is named after the first name element anywhere inside it
+        private final StringBuilder text = new StringBuilder();
+        private boolean isInTrack;
+        private int trackSegmentDepth;
+        private String trackName;
+        private boolean hasTrackName;
+        private GpxTrack.Builder trackBuilder;
+        private int chunkStart;
+        private int chunkSize;
+
+        private boolean isInPoint;
+        private boolean isWaypoint;
+        private double latitude;
+        private double longitude;
+        private double altitude;
+        private boolean hasAltitude;
+        private String waypointName;
+        private boolean hasWaypointName;
+
+        // name or ele whose text is being collected, null if none
+        private String textElement;
+        private int textDepth;
+
+        GpxHandler(Listener listener) {
+            this.listener = listener;
         }
-    }
 
-    @NotNull
-    private List<GeoPoint> getTrackPoints(Element track) {
-        List<GeoPoint> trackPoints = new ArrayList<>();
-        NodeList trksegList = track.getElementsByTagName(ELEMENT_TRKSEG);
-        for (int j = 0; j < trksegList.getLength(); j++) {
-            Element trkseg = (Element) trksegList.item(j);
-            NodeList trkptList = trkseg.getElementsByTagName(ELEMENT_TRKPT);
-            for (int k = 0; k < trkptList.getLength(); k++) {
-                Element trkpt = (Element) trkptList.item(k);
-                trackPoints.add(parsePoint(trkpt));
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) throws SAXException {
+            if (textElement != null) {
+                // e.g. markup inside a name, its text still counts
+                if (qName.equals(textElement)) {
+                    textDepth++;
+                }
+                return;
+            }
+
+            switch (qName) {
+                case ELEMENT_TRK:
+                    if (!isInTrack) {
+                        isInTrack = true;
+                        trackName = null;
+                        hasTrackName = false;
+                        trackBuilder = new GpxTrack.Builder();
+                        chunkStart = 0;
+                        chunkSize = FIRST_CHUNK_SIZE;
+                    }
+                    break;
+                case ELEMENT_TRKSEG:
+                    if (isInTrack) {
+                        trackSegmentDepth++;
+                    }
+                    break;
+                case ELEMENT_TRKPT:
+                    if (isInTrack && trackSegmentDepth > 0 && !isInPoint) {
+                        startPoint(attributes, false);
+                    }
+                    break;
+                case ELEMENT_WPT:
+                    if (!isInPoint) {
+                        startPoint(attributes, true);
+                    }
+                    break;
+                case ELEMENT_ELE:
+                    if (isInPoint && !hasAltitude) {
+                        startText(qName);
+                    }
+                    break;
+                case ELEMENT_NAME:
+                    if ((isInTrack && !hasTrackName) || (isWaypoint && !hasWaypointName)) {
+                        startText(qName);
+                    }
+                    break;
             }
         }
-        return trackPoints;
-    }
 
-    private String parseName(Element track) {
-        NodeList nameList = track.getElementsByTagName(ELEMENT_NAME);
-        if (nameList.getLength() > 0) {
-            return nameList.item(0).getTextContent();
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (textElement != null) {
+                text.append(ch, start, length);
+            }
         }
-        return null;
-    }
 
-    @NotNull
-    private GeoPoint parsePoint(Element point) {
-        GeoPoint newPoint;
-        double lat = Double.parseDouble(point.getAttributes().getNamedItem(ATTRIBUTE_LAT).getNodeValue());
-        double lon = Double.parseDouble(point.getAttributes().getNamedItem(ATTRIBUTE_LON).getNodeValue());
-
-        NodeList eleList = point.getElementsByTagName(ELEMENT_ELE);
-        if (eleList.getLength() > 0) {
-            double ele = Double.parseDouble(eleList.item(0).getTextContent());
-            newPoint = new GeoPoint(lat, lon, ele);
-        } else {
-            newPoint = new GeoPoint(lat, lon);
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (textElement != null) {
+                if (!qName.equals(textElement) || --textDepth > 0) {
+                    return;
+                }
+                textElement = null;
+                endText(qName);
+                return;
+            }
+
+            switch (qName) {
+                case ELEMENT_TRK:
+                    if (isInTrack) {
+                        if (trackBuilder.size() - chunkStart > 1) {
+                            publishChunk();
+                        }
+                        tracks.add(trackBuilder.build(trackName));
+                        isInTrack = false;
+                        trackSegmentDepth = 0;
+                        trackBuilder = null;
+                    }
+                    break;
+                case ELEMENT_TRKSEG:
+                    if (trackSegmentDepth > 0) {
+                        trackSegmentDepth--;
+                    }
+                    break;
+                case ELEMENT_TRKPT:
+                    if (isInPoint && !isWaypoint) {
+                        if (hasAltitude) {
+                            trackBuilder.addPoint(latitude, longitude, altitude);
+                        } else {
+                            trackBuilder.addPoint(latitude, longitude);
+                        }
+                        isInPoint = false;
+                        onTrackPointAdded();
+                    }
+                    break;
+                case ELEMENT_WPT:
+                    if (isWaypoint) {
+                        pois.add(new GpxPoi(waypointName, hasAltitude
+                                ? new GeoPoint(latitude, longitude, altitude)
+                                : new GeoPoint(latitude, longitude)));
+                        isInPoint = false;
+                        isWaypoint = false;
+                        checkCancelled();
+                    }
+                    break;
+            }
         }
-        return newPoint;
-    }
 
+        private void onTrackPointAdded() {
+            if (listener == null) {
+                return;
+            }
+            checkCancelled();
+            if (trackBuilder.size() - chunkStart >= chunkSize) {
+                publishChunk();
+                chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+            }
+        }
+
+        private void checkCancelled() {
+            if (listener != null && listener.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+
+        private void publishChunk() {
+            if (listener == null) {
+                return;
+            }
+            final int end = trackBuilder.size();
+            listener.onTrackChunk(trackBuilder.build(trackName, chunkStart, end));
+            // the last point starts the next chunk as well
+            chunkStart = end - 1;
+        }
+
+        private void startPoint(Attributes attributes, boolean isWaypoint) throws SAXException {
+            latitude = parseCoordinate(attributes, ATTRIBUTE_LAT);
+            longitude = parseCoordinate(attributes, ATTRIBUTE_LON);
+            hasAltitude = false;
+            isInPoint = true;
+            this.isWaypoint = isWaypoint;
+            if (isWaypoint) {
+                waypointName = null;
+                hasWaypointName = false;
+            }
+        }
+
+        private void startText(String qName) {
+            textElement = qName;
+            textDepth = 1;
+            text.setLength(0);
+        }
+
+        private void endText(String qName) throws SAXException {
+            if (ELEMENT_ELE.equals(qName)) {
+                altitude = parseDouble(text.toString(), ELEMENT_ELE);
+                hasAltitude = true;
+                return;
+            }
+            // a waypoint inside a track names the waypoint, not the track
+            if (isWaypoint) {
+                waypointName = text.toString();
+                hasWaypointName = true;
+            } else {
+                trackName = text.toString();
+                hasTrackName = true;
+            }
+        }
+
+        private static double parseCoordinate(Attributes attributes, String name)
+                throws SAXException {
+            final String value = attributes.getValue(name);
+            if (value == null) {
+                throw new SAXException("Point without " + name);
+            }
+            return parseDouble(value, name);
+        }
+
+        private static double parseDouble(String value, String name) throws SAXException {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid " + name + ": " + value, e);
+            }
+        }
+    }
 }
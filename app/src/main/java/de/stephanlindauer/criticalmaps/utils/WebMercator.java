@@ -0,0 +1,31 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+/**
+ * Conversions between WGS84 degrees and normalized Web Mercator space [0, 1], x growing east and
+ * y growing south like map tiles. Latitudes beyond what the projection covers are clamped.
+ */
+public class WebMercator {
+
+    public static final double MAX_LATITUDE = 85.05112878D;
+
+    private WebMercator() {
+    }
+
+    public static double longitudeToX(double longitude) {
+        return longitude / 360.0D + 0.5D;
+    }
+
+    public static double latitudeToY(double latitude) {
+        final double clamped = Math.max(-MAX_LATITUDE, Math.min(latitude, MAX_LATITUDE));
+        final double sin = Math.sin(Math.toRadians(clamped));
+        return 0.5D - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    public static double xToLongitude(double x) {
+        return (x - 0.5D) * 360.0D;
+    }
+
+    public static double yToLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh((0.5D - y) * 2 * Math.PI)));
+    }
+}
@@ -1,5 +1,7 @@
 package de.stephanlindauer.criticalmaps.vo;
 
+import de.stephanlindauer.criticalmaps.BuildConfig;
+
 public class Endpoints {
     // IMAGE_POST doesn't currently work. Once fixed CDN or API_GATEWAY should be used to prefix the URI.
     public static final String IMAGE_POST = "https://api.criticalmaps.net/gallery/";
@@ -9,4 +11,7 @@ public class Endpoints {
 
     public static final String CHAT_GET = "https://api-gw.criticalmaps.net/messages";
     public static final String CHAT_POST = "https://api-gw.criticalmaps.net/messages";
+
+    // empty unless the build points at a live channel, see LIVE_ENDPOINT in app/build.gradle
+    public static final String LIVE = BuildConfig.LIVE_ENDPOINT;
 }
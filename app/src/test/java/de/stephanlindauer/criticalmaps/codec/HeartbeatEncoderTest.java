@@ -0,0 +1,57 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class HeartbeatEncoderTest {
+
+    @Test
+    public void encode_writesHeartbeatJson() throws IOException {
+        final Buffer sink = new Buffer();
+
+        HeartbeatEncoder.encode(40_741_895, -73_989_308, "t0k3n", null, sink);
+
+        assertThat(sink.readUtf8()).isEqualTo(
+                "{\"latitude\":\"40741895\",\"longitude\":\"-73989308\",\"device\":\"t0k3n\"}");
+    }
+
+    @Test
+    public void encode_appendsTrack() throws IOException {
+        final Buffer sink = new Buffer();
+
+        HeartbeatEncoder.encode(0, 0, "t0k3n", "VAEC", sink);
+
+        assertThat(sink.readUtf8()).isEqualTo(
+                "{\"latitude\":\"0\",\"longitude\":\"0\",\"device\":\"t0k3n\",\"track\":\"VAEC\"}");
+    }
+
+    @Test
+    public void encode_escapesStrings() throws IOException {
+        final Buffer sink = new Buffer();
+
+        HeartbeatEncoder.encode(1, 2, "a\"b\\c\nd", null, sink);
+
+        assertThat(sink.readUtf8()).isEqualTo(
+                "{\"latitude\":\"1\",\"longitude\":\"2\",\"device\":\"a\\\"b\\\\c\\u000ad\"}");
+    }
+
+    @Test
+    public void encodedLength_matchesWrittenBytes() throws IOException {
+        final int[] values = {0, 9, 10, -1, -10, 99_999_999, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        final String[] strings = {"", "t0k3n", "\"\\\t", "Straße", "🚲 Fahrrad", "\uD83D"};
+        for (int value : values) {
+            for (String string : strings) {
+                final Buffer sink = new Buffer();
+                HeartbeatEncoder.encode(value, -value, string, string, sink);
+
+                assertThat(HeartbeatEncoder.encodedLength(value, -value, string, string))
+                        .isEqualTo(sink.size());
+            }
+        }
+    }
+}
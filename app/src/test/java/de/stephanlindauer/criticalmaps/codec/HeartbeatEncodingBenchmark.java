@@ -0,0 +1,86 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares allocations and time per heartbeat body of the former GeoPoint -> JSONObject -> String
+ * path with the {@link HeartbeatEncoder}. Both write into the same reused sink, like OkHttp does.
+ * Only runs with {@code ./gradlew testDebugUnitTest -Dcriticalmaps.benchmark=true}.
+ */
+public class HeartbeatEncodingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 50_000;
+    private static final int MEASURED_ROUNDS = 100_000;
+    private static final String DEVICE = "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3";
+
+    private final Buffer sink = new Buffer();
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("criticalmaps.benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws IOException, JSONException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runJsonObject(i);
+            runEncoder(i);
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            runJsonObject(i);
+        }
+        final long jsonObjectNanos = System.nanoTime() - start;
+        final long jsonObjectBytes = allocatedBytes() - bytes;
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            runEncoder(i);
+        }
+        final long encoderNanos = System.nanoTime() - start;
+        final long encoderBytes = allocatedBytes() - bytes;
+
+        System.out.println(String.format(Locale.US,
+                "per heartbeat: JSONObject %6.0f ns %5d B | encoder %6.0f ns %5d B",
+                (double) jsonObjectNanos / MEASURED_ROUNDS, jsonObjectBytes / MEASURED_ROUNDS,
+                (double) encoderNanos / MEASURED_ROUNDS, encoderBytes / MEASURED_ROUNDS));
+    }
+
+    private void runJsonObject(int i) throws IOException, JSONException {
+        final GeoPoint location = new GeoPoint(52.520008D + i * 1e-6D, 13.404954D);
+        final JSONObject jsonObject = new JSONObject();
+        jsonObject.put("longitude", Integer.toString((int) (location.getLongitude() * 1000000.0D)));
+        jsonObject.put("latitude", Integer.toString((int) (location.getLatitude() * 1000000.0D)));
+        jsonObject.put("device", DEVICE);
+        RequestBody.create(MediaType.parse("application/json"), jsonObject.toString())
+                .writeTo(sink);
+        sink.clear();
+    }
+
+    private void runEncoder(int i) throws IOException {
+        HeartbeatEncoder.encode(52_520_008 + i, 13_404_954, DEVICE, null, sink);
+        sink.clear();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,167 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import okio.Buffer;
+import okio.Okio;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class LocationsBinaryCodecTest {
+
+    @Test
+    public void roundTrip_matchesJsonDecoding() throws IOException, URISyntaxException {
+        final Buffer json = new Buffer();
+        json.writeAll(Okio.source(new File(getClass().getClassLoader()
+                .getResource("server_response_locations.json").toURI())));
+        final Entries fromJson = new Entries();
+        new LocationsJsonDecoder(null).decode(json, fromJson::add);
+
+        final Buffer binary = new Buffer();
+        new LocationsBinaryCodec(null).encode(fromJson.deviceHashes(), fromJson.latitudes(),
+                fromJson.longitudes(), fromJson.size(), binary);
+        final Entries fromBinary = new Entries();
+        new LocationsBinaryCodec(null).decode(binary, fromBinary::add);
+
+        assertThat(fromBinary.size()).isEqualTo(fromJson.size());
+        assertThat(fromBinary.asStrings()).containsExactlyElementsIn(fromJson.asStrings());
+        assertThat(binary.exhausted()).isTrue();
+    }
+
+    @Test
+    public void roundTrip_keepsExtremeAndRandomCoordinates() throws IOException {
+        final Random random = new Random(42);
+        final Entries entries = new Entries();
+        entries.add(1L, -90000000, 180000000);
+        entries.add(2L, 90000000, -180000000);
+        entries.add(3L, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            entries.add(random.nextLong(), random.nextInt(180000001) - 90000000,
+                    random.nextInt(360000001) - 180000000);
+        }
+
+        final Entries decoded = roundTrip(entries, null);
+
+        assertThat(decoded.asStrings()).containsExactlyElementsIn(entries.asStrings());
+    }
+
+    @Test
+    public void decode_sortsByLatitudeAndSkipsOwnDevice() throws IOException {
+        final Entries entries = new Entries();
+        entries.add(LocationsJsonDecoder.hashDeviceId("a"), 3, 30);
+        entries.add(LocationsJsonDecoder.hashDeviceId("t0k3n"), 2, 20);
+        entries.add(LocationsJsonDecoder.hashDeviceId("b"), 1, 10);
+
+        final Entries decoded = roundTrip(entries, "t0k3n");
+
+        assertThat(decoded.asStrings()).containsExactly(
+                LocationsJsonDecoder.hashDeviceId("b") + ":1:10",
+                LocationsJsonDecoder.hashDeviceId("a") + ":3:30").inOrder();
+    }
+
+    @Test
+    public void encode_isSmallerThanJson() throws IOException {
+        final Entries entries = new Entries();
+        for (int i = 0; i < 100; i++) {
+            entries.add(i, 52500000 + i * 37, 13400000 - i * 53);
+        }
+        final Buffer binary = new Buffer();
+
+        new LocationsBinaryCodec(null).encode(entries.deviceHashes(), entries.latitudes(),
+                entries.longitudes(), entries.size(), binary);
+
+        // 3 header bytes, count, 8 byte hash and a few bytes of deltas per rider
+        assertThat(binary.size()).isLessThan(3 + 1 + 100 * 14);
+    }
+
+    @Test
+    public void decode_throwsForMalformedPayloads() {
+        final LocationsBinaryCodec tested = new LocationsBinaryCodec(null);
+        final LocationsJsonDecoder.Callback ignored = (deviceHash, latitudeE6, longitudeE6) -> {
+        };
+
+        assertThrows(IOException.class,
+                () -> tested.decode(new Buffer().writeUtf8("[]"), ignored));
+        assertThrows(IOException.class,
+                () -> tested.decode(new Buffer().writeUtf8("CM").writeByte(99), ignored));
+        // announces a rider but ends early
+        assertThrows(IOException.class, () -> tested.decode(new Buffer().writeUtf8("CM")
+                .writeByte(LocationsBinaryCodec.VERSION).writeByte(1).writeLong(1L), ignored));
+        // latitude delta beyond 90°
+        assertThrows(IOException.class, () -> tested.decode(new Buffer().writeUtf8("CM")
+                .writeByte(LocationsBinaryCodec.VERSION).writeByte(1).writeLong(1L)
+                .writeByte(0xff).writeByte(0xff).writeByte(0xff).writeByte(0xff).writeByte(0x07)
+                .writeByte(0), ignored));
+    }
+
+    @Test
+    public void zigzag_roundTripsIntRange() {
+        for (int value : new int[]{0, 1, -1, 63, -64, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertThat(LocationsBinaryCodec.decodeZigzag(LocationsBinaryCodec.encodeZigzag(value)))
+                    .isEqualTo(value);
+        }
+        assertThat(LocationsBinaryCodec.encodeZigzag(-1)).isEqualTo(1);
+        assertThat(LocationsBinaryCodec.encodeZigzag(1)).isEqualTo(2);
+    }
+
+    private static Entries roundTrip(Entries entries, String ownToken) throws IOException {
+        final Buffer binary = new Buffer();
+        new LocationsBinaryCodec(ownToken).encode(entries.deviceHashes(), entries.latitudes(),
+                entries.longitudes(), entries.size(), binary);
+        final Entries decoded = new Entries();
+        new LocationsBinaryCodec(ownToken).decode(binary, decoded::add);
+        return decoded;
+    }
+
+    static class Entries {
+        private final List<long[]> entries = new ArrayList<>();
+
+        void add(long deviceHash, int latitudeE6, int longitudeE6) {
+            entries.add(new long[]{deviceHash, latitudeE6, longitudeE6});
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        long[] deviceHashes() {
+            final long[] result = new long[size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = entries.get(i)[0];
+            }
+            return result;
+        }
+
+        int[] latitudes() {
+            return column(1);
+        }
+
+        int[] longitudes() {
+            return column(2);
+        }
+
+        List<String> asStrings() {
+            final List<String> result = new ArrayList<>();
+            for (long[] entry : entries) {
+                result.add(entry[0] + ":" + entry[1] + ":" + entry[2]);
+            }
+            return result;
+        }
+
+        private int[] column(int column) {
+            final int[] result = new int[size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (int) entries.get(i)[column];
+            }
+            return result;
+        }
+    }
+}
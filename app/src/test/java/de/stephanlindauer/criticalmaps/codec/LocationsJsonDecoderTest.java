@@ -0,0 +1,131 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class LocationsJsonDecoderTest {
+
+    @Test
+    public void decode_readsStringAndNumberCoordinates() throws IOException {
+        final String json = "[{\"device\":\"a\",\"latitude\":\"52520008\",\"longitude\":13404954},"
+                + "{\"device\":\"b\",\"latitude\":-33868820,\"longitude\":\"-151209296\"}]";
+
+        final List<int[]> decoded = decode("t0k3n", json);
+
+        assertThat(decoded).hasSize(2);
+        assertThat(decoded.get(0)).asList().containsExactly(52520008, 13404954).inOrder();
+        assertThat(decoded.get(1)).asList().containsExactly(-33868820, -151209296).inOrder();
+    }
+
+    @Test
+    public void decode_skipsOwnDevice() throws IOException {
+        final String json = "[{\"device\":\"t0k3n\",\"latitude\":1,\"longitude\":2},"
+                + "{\"device\":\"t0k3n2\",\"latitude\":3,\"longitude\":4},"
+                + "{\"device\":\"t0k\",\"latitude\":5,\"longitude\":6}]";
+
+        final List<int[]> decoded = decode("t0k3n", json);
+
+        assertThat(decoded).hasSize(2);
+        assertThat(decoded.get(0)[0]).isEqualTo(3);
+        assertThat(decoded.get(1)[0]).isEqualTo(5);
+    }
+
+    @Test
+    public void decode_ignoresUnknownFieldsAndWhitespace() throws IOException {
+        final String json = " [ {\n \"timestamp\" : 1685910782 , \"extra\": {\"a\":[1,\"]\",{}]},"
+                + " \"device\" : \"a\", \"latitude\" : 7 , \"longitude\" : 8, \"flag\": true } ] ";
+
+        final List<int[]> decoded = decode("t0k3n", json);
+
+        assertThat(decoded).hasSize(1);
+        assertThat(decoded.get(0)).asList().containsExactly(7, 8).inOrder();
+    }
+
+    @Test
+    public void decode_skipsByteOrderMark() throws IOException {
+        final List<int[]> decoded = decode("t0k3n",
+                "\uFEFF\n[{\"device\":\"a\",\"latitude\":7,\"longitude\":8}]");
+
+        assertThat(decoded).hasSize(1);
+    }
+
+    @Test
+    public void decode_skipsIncompleteEntries() throws IOException {
+        final String json = "[{\"device\":\"a\",\"latitude\":1},{},{\"device\":\"b\",\"latitude\":1,\"longitude\":2}]";
+
+        assertThat(decode("t0k3n", json)).hasSize(1);
+    }
+
+    @Test
+    public void decodeChanges_reportsEntriesWithoutCoordinatesAsRemoved() throws IOException {
+        final String json = "[{\"device\":\"a\",\"latitude\":1,\"longitude\":2},"
+                + "{\"device\":\"b\"},{\"device\":\"t0k3n\"},{\"device\":\"c\",\"latitude\":1}]";
+        final List<Long> moved = new ArrayList<>();
+        final List<Long> removed = new ArrayList<>();
+
+        final int count = new LocationsJsonDecoder("t0k3n").decodeChanges(
+                new Buffer().writeUtf8(json), new LocationsJsonDecoder.ChangeCallback() {
+                    @Override
+                    public void onLocation(long deviceHash, int latitudeE6, int longitudeE6) {
+                        moved.add(deviceHash);
+                    }
+
+                    @Override
+                    public void onRemoved(long deviceHash) {
+                        removed.add(deviceHash);
+                    }
+                });
+
+        assertThat(count).isEqualTo(2);
+        assertThat(moved).containsExactly(LocationsJsonDecoder.hashDeviceId("a"));
+        assertThat(removed).containsExactly(LocationsJsonDecoder.hashDeviceId("b"));
+        // a snapshot still skips entries without coordinates
+        assertThat(decode("t0k3n", json)).hasSize(1);
+    }
+
+    @Test
+    public void decode_emptyArray() throws IOException {
+        assertThat(decode("t0k3n", "[]")).isEmpty();
+    }
+
+    @Test
+    public void decode_hashMatchesHashOfUnescapedDeviceId() throws IOException {
+        final String json = "[{\"device\":\"d\\u00e9v\\/1\",\"latitude\":1,\"longitude\":2}]";
+        final long[] hash = new long[1];
+
+        new LocationsJsonDecoder("t0k3n").decode(new Buffer().writeUtf8(json),
+                (deviceHash, latitudeE6, longitudeE6) -> hash[0] = deviceHash);
+
+        assertThat(hash[0]).isEqualTo(LocationsJsonDecoder.hashDeviceId("d\u00e9v/1"));
+    }
+
+    @Test
+    public void decode_throwsForMalformedPayloads() {
+        final LocationsJsonDecoder tested = new LocationsJsonDecoder("t0k3n");
+        final LocationsJsonDecoder.Callback ignored = (deviceHash, latitudeE6, longitudeE6) -> {
+        };
+
+        assertThrows(IOException.class,
+                () -> tested.decode(new Buffer().writeUtf8("borken"), ignored));
+        assertThrows(IOException.class,
+                () -> tested.decode(new Buffer().writeUtf8("[{\"device\":\"a\",\"latitude\":"), ignored));
+        assertThrows(IOException.class,
+                () -> tested.decode(new Buffer().writeUtf8("[{\"latitude\":\"x\"}]"), ignored));
+    }
+
+    private static List<int[]> decode(String ownToken, String json) throws IOException {
+        final List<int[]> decoded = new ArrayList<>();
+        new LocationsJsonDecoder(ownToken).decode(new Buffer().writeUtf8(json),
+                (deviceHash, latitudeE6, longitudeE6) ->
+                        decoded.add(new int[]{latitudeE6, longitudeE6}));
+        return decoded;
+    }
+}
@@ -0,0 +1,124 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares payload size and decoding throughput of the JSON and the binary locations format, for
+ * the recorded response and for synthetic worldwide rides with riders massed in a few cities.
+ * Only runs with {@code ./gradlew testDebugUnitTest -Dcriticalmaps.benchmark=true}.
+ */
+public class LocationsWireFormatBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final double[][] CITIES = {
+            {52.52, 13.40}, {48.86, 2.35}, {40.71, -74.01}, {-33.87, 151.21}, {35.68, 139.69},
+            {-23.55, -46.63}, {51.51, -0.13}, {55.76, 37.62}};
+
+    private final LocationsJsonDecoder jsonDecoder = new LocationsJsonDecoder("t0k3n");
+    private final LocationsBinaryCodec binaryCodec = new LocationsBinaryCodec("t0k3n");
+    private final LocationsJsonDecoder.Callback ignored =
+            (deviceHash, latitudeE6, longitudeE6) -> {
+            };
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("criticalmaps.benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final Buffer recorded = new Buffer();
+        recorded.writeAll(Okio.source(new File(getClass().getClassLoader()
+                .getResource("server_response_locations.json").toURI())));
+        run("recorded", recorded);
+
+        for (int riders : new int[]{1_000, 10_000, 50_000}) {
+            run(riders + " riders", new Buffer().writeUtf8(createPayload(riders)));
+        }
+    }
+
+    private void run(String name, Buffer json) throws IOException {
+        final Buffer binary = toBinary(json);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            jsonDecoder.decode(json.clone(), ignored);
+            binaryCodec.decode(binary.clone(), ignored);
+        }
+        long jsonNanos = 0;
+        long binaryNanos = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            jsonDecoder.decode(json.clone(), ignored);
+            jsonNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            binaryCodec.decode(binary.clone(), ignored);
+            binaryNanos += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%-14s JSON %9d B (gzip %8d B) %7.2f ms | binary %8d B (gzip %8d B) %7.2f ms",
+                name, json.size(), gzippedSize(json), jsonNanos / 1e6 / MEASURED_ROUNDS,
+                binary.size(), gzippedSize(binary), binaryNanos / 1e6 / MEASURED_ROUNDS));
+    }
+
+    private Buffer toBinary(Buffer json) throws IOException {
+        final int riders = jsonDecoder.decode(json.clone(), ignored);
+        final long[] deviceHashes = new long[riders];
+        final int[] latitudes = new int[riders];
+        final int[] longitudes = new int[riders];
+        final int[] count = new int[1];
+        jsonDecoder.decode(json.clone(), (deviceHash, latitudeE6, longitudeE6) -> {
+            deviceHashes[count[0]] = deviceHash;
+            latitudes[count[0]] = latitudeE6;
+            longitudes[count[0]] = longitudeE6;
+            count[0]++;
+        });
+
+        final Buffer binary = new Buffer();
+        binaryCodec.encode(deviceHashes, latitudes, longitudes, riders, binary);
+        return binary;
+    }
+
+    private static long gzippedSize(Buffer payload) throws IOException {
+        final Buffer gzipped = new Buffer();
+        try (BufferedSink sink = Okio.buffer(new GzipSink(gzipped))) {
+            sink.writeAll(payload.clone());
+        }
+        return gzipped.size();
+    }
+
+    // same shape as the /locations response, riders spread over a few km around each city
+    static String createPayload(int riders) {
+        final Random random = new Random(riders);
+        final StringBuilder builder = new StringBuilder(riders * 110).append('[');
+        for (int i = 0; i < riders; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            final double[] city = CITIES[random.nextInt(CITIES.length)];
+            builder.append("{\"device\":\"").append(String.format(Locale.US, "%040x", i))
+                    .append("\",\"latitude\":\"")
+                    .append((int) ((city[0] + random.nextGaussian() * 0.02) * 1e6))
+                    .append("\",\"longitude\":\"")
+                    .append((int) ((city[1] + random.nextGaussian() * 0.03) * 1e6))
+                    .append("\",\"timestamp\":").append(1685910000 + random.nextInt(300))
+                    .append('}');
+        }
+        return builder.append(']').toString();
+    }
+}
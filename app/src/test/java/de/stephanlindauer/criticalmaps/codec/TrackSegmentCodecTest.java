@@ -0,0 +1,74 @@
+package de.stephanlindauer.criticalmaps.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class TrackSegmentCodecTest {
+
+    @Test
+    public void roundTrip_keepsFixesAtSecondPrecision() throws IOException {
+        final long[] times = {1_600_000_000_400L, 1_600_000_004_900L, 1_600_000_009_000L};
+        final int[] latitudes = {52_500_000, 52_500_050, -89_999_999};
+        final int[] longitudes = {13_400_000, 13_399_950, 179_999_999};
+        final Buffer buffer = new Buffer();
+
+        TrackSegmentCodec.encode(times, latitudes, longitudes, 3, buffer);
+        final List<String> decoded = new ArrayList<>();
+        final int count = TrackSegmentCodec.decode(buffer, (timeMillis, latitudeE6, longitudeE6) ->
+                decoded.add(timeMillis + " " + latitudeE6 + " " + longitudeE6));
+
+        assertThat(count).isEqualTo(3);
+        assertThat(decoded).containsExactly(
+                "1600000000000 52500000 13400000",
+                "1600000004000 52500050 13399950",
+                "1600000009000 -89999999 179999999").inOrder();
+        assertThat(buffer.exhausted()).isTrue();
+    }
+
+    @Test
+    public void encode_closeFixesTakeFewBytes() throws IOException {
+        final int count = 20;
+        final long[] times = new long[count];
+        final int[] latitudes = new int[count];
+        final int[] longitudes = new int[count];
+        for (int i = 0; i < count; i++) {
+            // ~5 m/s, one fix every 5 s
+            times[i] = 1_600_000_000_000L + i * 5000L;
+            latitudes[i] = 52_500_000 + i * 225;
+            longitudes[i] = 13_400_000 - i * 100;
+        }
+        final Buffer buffer = new Buffer();
+
+        TrackSegmentCodec.encode(times, latitudes, longitudes, count, buffer);
+
+        // header, start time and first fix aside, 5 bytes per fix instead of ~40 in JSON
+        assertThat(buffer.size()).isAtMost(2 + 1 + 5 + 9 + (count - 1) * 5);
+    }
+
+    @Test
+    public void encode_emptySegment() throws IOException {
+        final Buffer buffer = new Buffer();
+
+        TrackSegmentCodec.encode(new long[0], new int[0], new int[0], 0, buffer);
+
+        assertThat(TrackSegmentCodec.decode(buffer, (timeMillis, latitudeE6, longitudeE6) -> {
+        })).isEqualTo(0);
+    }
+
+    @Test
+    public void decode_rejectsUnknownVersion() {
+        final Buffer buffer = new Buffer().writeByte('T').writeByte(99).writeByte(0);
+
+        assertThrows(IOException.class, () -> TrackSegmentCodec.decode(buffer,
+                (timeMillis, latitudeE6, longitudeE6) -> {
+                }));
+    }
+}
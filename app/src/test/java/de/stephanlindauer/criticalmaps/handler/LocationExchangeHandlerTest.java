@@ -0,0 +1,201 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.util.BoundingBox;
+
+import java.io.IOException;
+
+import de.stephanlindauer.criticalmaps.codec.LocationsBinaryCodec;
+import de.stephanlindauer.criticalmaps.codec.LocationsJsonDecoder;
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.LocationsRegion;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.UserModel;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.sync.FreshnessStats;
+import de.stephanlindauer.criticalmaps.sync.LocationExchange;
+import de.stephanlindauer.criticalmaps.sync.PayloadHashes;
+import de.stephanlindauer.criticalmaps.sync.SyncEngine;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LocationExchangeHandlerTest {
+
+    private static final String LOCATIONS =
+            "[{\"device\":\"a\",\"latitude\":\"52500000\",\"longitude\":\"13400000\"},"
+                    + "{\"device\":\"b\",\"latitude\":\"52510000\",\"longitude\":\"13410000\"}]";
+
+    private final MockWebServer server = new MockWebServer();
+    private final OkHttpClient okHttpClient = new OkHttpClient();
+    private HeartbeatBodyFactory heartbeatBodyFactory;
+    private GetLocationHandler fallbackHandler;
+    private LocationExchange locationExchange;
+    private OtherUsersLocationModel otherUsersLocationModel;
+    private SyncEngine syncEngine;
+    private LocationExchangeHandler tested;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+
+        heartbeatBodyFactory = mock(HeartbeatBodyFactory.class);
+        when(heartbeatBodyFactory.create()).thenReturn(RequestBody.create(
+                MediaType.parse("application/json"), "{\"device\":\"own\"}"));
+        final UserModel userModel = mock(UserModel.class);
+        when(userModel.getChangingDeviceToken()).thenReturn("own");
+        otherUsersLocationModel = new OtherUsersLocationModel(userModel);
+        final ServerResponseProcessor serverResponseProcessor = new ServerResponseProcessor(
+                otherUsersLocationModel, mock(EventBus.class), mock(ChatModel.class));
+        final GetLocationHandler locationsDecoder =
+                new GetLocationHandler(serverResponseProcessor, new PayloadHashes(),
+                        mock(FreshnessStats.class), otherUsersLocationModel);
+        fallbackHandler = mock(GetLocationHandler.class);
+        locationExchange = mock(LocationExchange.class);
+        syncEngine = mock(SyncEngine.class);
+
+        tested = new LocationExchangeHandler(server.url("/locations").toString(),
+                heartbeatBodyFactory, locationsDecoder, () -> fallbackHandler, locationExchange,
+                syncEngine);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void supportingServer_returnsLocationsWithHeartbeat() throws Exception {
+        server.enqueue(new MockResponse().setBody(LOCATIONS));
+
+        final RiderLocations locations = execute();
+
+        final RecordedRequest request = server.takeRequest();
+        assertThat(request.getMethod()).isEqualTo("PUT");
+        assertThat(request.getHeader(LocationExchangeHandler.INCLUDE_LOCATIONS_HEADER))
+                .isEqualTo("true");
+        assertThat(request.getBody().readUtf8()).isEqualTo("{\"device\":\"own\"}");
+        assertThat(locations).isNotNull();
+        assertThat(locations.size()).isEqualTo(2);
+        verify(locationExchange).setSupported(true);
+        verify(locationExchange).onHeartbeatSent();
+        verify(syncEngine, never()).submit(any());
+    }
+
+    @Test
+    public void locationsAfterByteOrderMarkAndWhitespace_areDecoded() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "text/html; charset=utf-8")
+                .setBody("\uFEFF\r\n " + LOCATIONS));
+
+        final RiderLocations locations = execute();
+
+        assertThat(locations).isNotNull();
+        assertThat(locations.size()).isEqualTo(2);
+        verify(locationExchange).setSupported(true);
+    }
+
+    @Test
+    public void negotiatedBinarySnapshot_isDecoded() throws Exception {
+        final Buffer snapshot = new Buffer();
+        new LocationsBinaryCodec(null).encode(
+                new long[]{LocationsJsonDecoder.hashDeviceId("a"),
+                        LocationsJsonDecoder.hashDeviceId("own")},
+                new int[]{52500000, 52510000}, new int[]{13400000, 13410000}, 2, snapshot);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", LocationsBinaryCodec.MEDIA_TYPE)
+                .setBody(snapshot));
+
+        final RiderLocations locations = execute();
+
+        assertThat(server.takeRequest().getHeader("Accept"))
+                .startsWith(LocationsBinaryCodec.MEDIA_TYPE);
+        assertThat(locations).isNotNull();
+        assertThat(locations.size()).isEqualTo(1);
+        assertThat(locations.getLatitudeE6(0)).isEqualTo(52500000);
+        verify(locationExchange).setSupported(true);
+    }
+
+    @Test
+    public void region_isSentAndAppliedToUnfilteredResponses() throws Exception {
+        otherUsersLocationModel.setQueryRegion(LocationsRegion.around(52500000, 13400000, 500));
+        server.enqueue(new MockResponse().setBody(LOCATIONS));
+
+        final RiderLocations locations = execute();
+
+        final HttpUrl url = server.takeRequest().getRequestUrl();
+        assertThat(url.queryParameter("lat")).isEqualTo("52.500000");
+        assertThat(url.queryParameter("lon")).isEqualTo("13.400000");
+        assertThat(url.queryParameter("radius")).isEqualTo("500");
+        assertThat(locations).isNotNull();
+        assertThat(locations.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void boundingBoxRegion_isSentAsBbox() {
+        final HttpUrl url = GetLocationHandler.withRegion("https://localhost/locations",
+                LocationsRegion.ofBoundingBox(
+                        new BoundingBox(52.55d, 13.45d, 52.45d, 13.35d), 0.5d));
+
+        assertThat(url.queryParameter("bbox"))
+                .isEqualTo("13.300000,52.400000,13.500000,52.600000");
+    }
+
+    @Test
+    public void ignoringServer_fallsBackToSeparateGet() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(204));
+
+        final RiderLocations locations = execute();
+
+        assertThat(locations).isNull();
+        verify(locationExchange).setSupported(false);
+        verify(locationExchange, never()).onHeartbeatSent();
+        verify(syncEngine).submit(fallbackHandler);
+    }
+
+    @Test
+    public void ignoringServerWithBody_fallsBackToSeparateGet() throws Exception {
+        server.enqueue(new MockResponse().setBody("\n {\"status\":\"ok\"}"));
+
+        assertThat(execute()).isNull();
+        verify(locationExchange).setSupported(false);
+        verify(syncEngine).submit(fallbackHandler);
+    }
+
+    @Test
+    public void noHeartbeat_fetchesWithSeparateGet() {
+        when(heartbeatBodyFactory.create()).thenReturn(null);
+
+        assertThat(tested.createRequest()).isNull();
+        assertThat(server.getRequestCount()).isEqualTo(0);
+        verify(locationExchange, never()).setSupported(anyBoolean());
+        verify(syncEngine).submit(fallbackHandler);
+    }
+
+    private RiderLocations execute() throws IOException {
+        final Request request = tested.createRequest();
+        assertThat(request).isNotNull();
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            assertThat(response.isSuccessful()).isTrue();
+            return tested.decode(response);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package de.stephanlindauer.criticalmaps.managers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LocationFilterTest {
+
+    private static final double METERS_PER_DEGREE = 111195.0D;
+
+    private List<Fix> fixes;
+
+    @Before
+    public void setUp() throws IOException {
+        fixes = readFixes("location_fixes_ride.csv");
+    }
+
+    @Test
+    public void recordedRide_filteredPositionsAreCloserToTheTruth() {
+        final LocationFilter tested = new LocationFilter();
+        double rawSquaredError = 0;
+        double filteredSquaredError = 0;
+        int count = 0;
+
+        for (Fix fix : fixes) {
+            final LocationFilter.Result result = tested.update(
+                    fix.timeMillis, fix.latitude, fix.longitude, fix.accuracy);
+            if (result == LocationFilter.Result.REJECTED || !fix.isGps || fix.isOutlier()) {
+                continue;
+            }
+            rawSquaredError += squared(distance(fix.latitude, fix.longitude,
+                    fix.trueLatitude, fix.trueLongitude));
+            filteredSquaredError += squared(distance(tested.getLatitude(), tested.getLongitude(),
+                    fix.trueLatitude, fix.trueLongitude));
+            count++;
+        }
+
+        final double rawRms = Math.sqrt(rawSquaredError / count);
+        final double filteredRms = Math.sqrt(filteredSquaredError / count);
+        assertThat(filteredRms).isLessThan(rawRms * 0.8);
+    }
+
+    @Test
+    public void recordedRide_rejectsTeleportsAndNeverPublishesThem() {
+        final LocationFilter tested = new LocationFilter();
+        int outliers = 0;
+
+        for (Fix fix : fixes) {
+            final LocationFilter.Result result = tested.update(
+                    fix.timeMillis, fix.latitude, fix.longitude, fix.accuracy);
+            if (fix.isOutlier()) {
+                outliers++;
+                assertThat(result).isEqualTo(LocationFilter.Result.REJECTED);
+            }
+            assertThat(distance(tested.getLatitude(), tested.getLongitude(),
+                    fix.trueLatitude, fix.trueLongitude)).isLessThan(50.0D);
+        }
+
+        assertThat(outliers).isEqualTo(3);
+        assertThat(tested.getRejectedCount()).isEqualTo(outliers);
+    }
+
+    @Test
+    public void recordedRide_estimatesSpeed() {
+        final LocationFilter tested = new LocationFilter();
+
+        for (Fix fix : fixes) {
+            tested.update(fix.timeMillis, fix.latitude, fix.longitude, fix.accuracy);
+            final long second = (fix.timeMillis - fixes.get(0).timeMillis) / 1000;
+            if (second == 180) {
+                assertThat((double) tested.getSpeed()).isWithin(1.0D).of(5.0D);
+            } else if (second == 290) {
+                assertThat((double) tested.getSpeed()).isLessThan(1.0D);
+            } else if (second == 390) {
+                assertThat((double) tested.getSpeed()).isWithin(1.0D).of(4.0D);
+                assertThat(tested.getVelocityEast()).isWithin(1.0D).of(4.0D);
+            }
+        }
+    }
+
+    @Test
+    public void recordedRide_publishesLessOftenWhileWaiting() {
+        final LocationFilter tested = new LocationFilter();
+        int waitingFixes = 0;
+        int waitingChanges = 0;
+
+        for (Fix fix : fixes) {
+            final LocationFilter.Result result = tested.update(
+                    fix.timeMillis, fix.latitude, fix.longitude, fix.accuracy);
+            final long second = (fix.timeMillis - fixes.get(0).timeMillis) / 1000;
+            // give the filter a few seconds to notice we stopped
+            if (second >= 220 && second < 300) {
+                waitingFixes++;
+                if (result == LocationFilter.Result.CHANGED) {
+                    waitingChanges++;
+                }
+            }
+        }
+
+        assertThat(waitingChanges).isLessThan(waitingFixes / 2);
+    }
+
+    @Test
+    public void update_rejectsFixesOlderThanTheEstimate() {
+        final LocationFilter tested = new LocationFilter();
+        tested.update(10000, 52.5D, 13.4D, 10.0f);
+
+        assertThat(tested.update(9000, 52.6D, 13.4D, 10.0f))
+                .isEqualTo(LocationFilter.Result.REJECTED);
+        assertThat(tested.getLatitude()).isEqualTo(52.5D);
+    }
+
+    @Test
+    public void update_restartsAfterRepeatedRejections() {
+        final LocationFilter tested = new LocationFilter();
+        for (int i = 0; i < 10; i++) {
+            tested.update(i * 1000L, 52.5D, 13.4D, 5.0f);
+        }
+
+        // we really got somewhere else, e.g. a bad fix before a tunnel
+        LocationFilter.Result result = null;
+        for (int i = 0; i < LocationFilter.MAX_CONSECUTIVE_REJECTIONS; i++) {
+            result = tested.update(10000 + i * 1000L, 52.6D, 13.4D, 5.0f);
+        }
+
+        assertThat(result).isEqualTo(LocationFilter.Result.CHANGED);
+        assertThat(tested.getLatitude()).isEqualTo(52.6D);
+    }
+
+    @Test
+    public void update_restartsAfterLongGap() {
+        final LocationFilter tested = new LocationFilter();
+        tested.update(0, 52.5D, 13.4D, 5.0f);
+
+        assertThat(tested.update(LocationFilter.MAX_GAP + 1, 53.5D, 13.4D, 5.0f))
+                .isEqualTo(LocationFilter.Result.CHANGED);
+        assertThat(tested.getLatitude()).isEqualTo(53.5D);
+        assertThat(tested.getSpeed()).isEqualTo(0.0f);
+    }
+
+    @Test
+    public void update_preciseFixOutweighsCoarseOne() {
+        final LocationFilter tested = new LocationFilter();
+        tested.update(0, 52.5D, 13.4D, 1000.0f);
+        tested.update(500, 52.501D, 13.4D, 5.0f);
+
+        assertThat(distance(tested.getLatitude(), tested.getLongitude(), 52.501D, 13.4D))
+                .isLessThan(1.0D);
+        assertThat(tested.getAccuracy()).isLessThan(6.0f);
+    }
+
+    private static double distance(double fromLatitude, double fromLongitude,
+                                   double toLatitude, double toLongitude) {
+        final double dy = (toLatitude - fromLatitude) * METERS_PER_DEGREE;
+        final double dx = (toLongitude - fromLongitude) * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(fromLatitude));
+        return Math.hypot(dx, dy);
+    }
+
+    private static double squared(double value) {
+        return value * value;
+    }
+
+    private List<Fix> readFixes(String name) throws IOException {
+        final List<Fix> fixes = new ArrayList<>();
+        //noinspection ConstantConditions
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream(name),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split(",");
+                fixes.add(new Fix(Long.parseLong(fields[0]), "gps".equals(fields[1]),
+                        Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                        Float.parseFloat(fields[4]),
+                        Double.parseDouble(fields[5]), Double.parseDouble(fields[6])));
+            }
+        }
+        return fixes;
+    }
+
+    private static class Fix {
+        final long timeMillis;
+        final boolean isGps;
+        final double latitude;
+        final double longitude;
+        final float accuracy;
+        final double trueLatitude;
+        final double trueLongitude;
+
+        Fix(long timeMillis, boolean isGps, double latitude, double longitude, float accuracy,
+            double trueLatitude, double trueLongitude) {
+            this.timeMillis = timeMillis;
+            this.isGps = isGps;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.trueLatitude = trueLatitude;
+            this.trueLongitude = trueLongitude;
+        }
+
+        boolean isOutlier() {
+            return distance(latitude, longitude, trueLatitude, trueLongitude) > 500.0D;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.stephanlindauer.criticalmaps.managers;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LocationRequestPolicyTest {
+
+    private static final float RIDING_SPEED = 4.0f;
+
+    private long now = 1000;
+    private final LocationRequestPolicy tested = new LocationRequestPolicy();
+
+    @Test
+    public void decide_unknownSpeedKeepsGpsOn() {
+        assertThat(tested.decide(LocationUpdateManager.UNKNOWN_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+    }
+
+    @Test
+    public void decide_fastRidingTightensRequests() {
+        final LocationRequestPolicy.Profile profile =
+                tested.decide(LocationRequestPolicy.FAST_SPEED, false, now);
+
+        assertThat(profile).isEqualTo(LocationRequestPolicy.Profile.FAST);
+        assertThat(profile.interval).isLessThan(LocationRequestPolicy.Profile.MOVING.interval);
+    }
+
+    @Test
+    public void decide_relaxesOnlyAfterStandingStillForAWhile() {
+        assertThat(tested.decide(0.0f, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+
+        now += LocationRequestPolicy.STATIONARY_AFTER - 1;
+        assertThat(tested.decide(0.2f, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+
+        now += 1;
+        assertThat(tested.decide(0.2f, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.STATIONARY);
+    }
+
+    @Test
+    public void decide_movingAgainTightensRightAway() {
+        tested.decide(0.0f, false, now);
+        now += LocationRequestPolicy.STATIONARY_AFTER;
+        tested.decide(0.0f, false, now);
+
+        now += 1000;
+        assertThat(tested.decide(RIDING_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+
+        // standing still starts over
+        now += 1000;
+        assertThat(tested.decide(0.0f, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+    }
+
+    @Test
+    public void decide_noFixesAfterStoppingRelaxes() {
+        tested.onRequested(LocationRequestPolicy.Profile.FAST, now);
+        tested.onFix(true, now);
+        final long stoppedAt = now;
+        final long interval = LocationRequestPolicy.Profile.FAST.interval;
+
+        // the last estimate stays at riding speed since no fix comes in anymore
+        now += LocationRequestPolicy.NO_FIX_INTERVALS * interval;
+        assertThat(tested.isWithoutFixes(now)).isFalse();
+        assertThat(tested.decide(LocationRequestPolicy.FAST_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.FAST);
+
+        now += 1;
+        assertThat(tested.isWithoutFixes(now)).isTrue();
+        assertThat(tested.decide(LocationRequestPolicy.FAST_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+
+        // counted from the last fix, not from noticing it
+        now = stoppedAt + LocationRequestPolicy.STATIONARY_AFTER;
+        assertThat(tested.decide(LocationRequestPolicy.FAST_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.STATIONARY);
+
+        // riding on brings fixes again
+        now += 1000;
+        tested.onFix(true, now);
+        assertThat(tested.decide(RIDING_SPEED, false, now))
+                .isEqualTo(LocationRequestPolicy.Profile.MOVING);
+    }
+
+    @Test
+    public void decide_observerModeDropsGps() {
+        final LocationRequestPolicy.Profile profile = tested.decide(RIDING_SPEED, true, now);
+
+        assertThat(profile).isEqualTo(LocationRequestPolicy.Profile.OBSERVER);
+        assertThat(profile.usesGps).isFalse();
+    }
+
+    @Test
+    public void getGpsDutyCycle_countsTimeGpsWasRequested() {
+        tested.onRequested(LocationRequestPolicy.Profile.MOVING, now);
+        now += 30 * 1000;
+        tested.onRequested(LocationRequestPolicy.Profile.OBSERVER, now);
+        now += 60 * 1000;
+        tested.onRequested(LocationRequestPolicy.Profile.STATIONARY, now);
+
+        now += 30 * 1000;
+        assertThat((double) tested.getGpsDutyCycle(now)).isWithin(0.001D).of(0.5D);
+
+        tested.onRemoved(now);
+        now += 60 * 1000;
+        assertThat((double) tested.getGpsDutyCycle(now)).isWithin(0.001D).of(0.5D);
+        assertThat(tested.getProfile()).isNull();
+        assertThat(tested.getProfileChangeCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void onFix_countsPerProvider() {
+        tested.onFix(true, now);
+        tested.onFix(true, now);
+        tested.onFix(false, now);
+
+        assertThat(tested.getGpsFixCount()).isEqualTo(2);
+        assertThat(tested.getNetworkFixCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,179 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ChatOutboxTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private long now = 1000L;
+    private final ChatOutbox.Clock clock = () -> now;
+
+    @Test
+    public void add_dedupsByIdentifier() throws IOException {
+        final ChatOutbox tested = new ChatOutbox(temporaryFolder.newFile(), clock);
+
+        assertThat(tested.add(new OutgoingChatMessage("a", "hello", 1L))).isTrue();
+        assertThat(tested.add(new OutgoingChatMessage("a", "hello again", 2L))).isFalse();
+
+        assertThat(tested.size()).isEqualTo(1);
+        assertThat(tested.peekBatch().get(0).getMessage()).isEqualTo("hello");
+    }
+
+    @Test
+    public void pendingMessages_surviveRestart() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final ChatOutbox outbox = new ChatOutbox(file, clock);
+        outbox.add(new OutgoingChatMessage("a", "first\tline\nsecond line", 1L));
+        outbox.add(new OutgoingChatMessage("b", "Grüße 🚲", 2L));
+        outbox.onSent(Collections.singletonList("nope"));
+
+        final ChatOutbox tested = new ChatOutbox(file, clock);
+
+        final List<OutgoingChatMessage> batch = tested.peekBatch();
+        assertThat(batch).hasSize(2);
+        assertThat(batch.get(0).getIdentifier()).isEqualTo("a");
+        assertThat(batch.get(0).getMessage()).isEqualTo("first\tline\nsecond line");
+        assertThat(batch.get(0).getCreatedAtMillis()).isEqualTo(1L);
+        assertThat(batch.get(1).getMessage()).isEqualTo("Grüße 🚲");
+    }
+
+    @Test
+    public void onSent_removesOnlySentMessages() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final ChatOutbox tested = new ChatOutbox(file, clock);
+        tested.add(new OutgoingChatMessage("a", "1", 1L));
+        tested.add(new OutgoingChatMessage("b", "2", 2L));
+        tested.add(new OutgoingChatMessage("c", "3", 3L));
+
+        tested.onSent(Arrays.asList("a", "c"));
+
+        assertThat(identifiers(tested.peekBatch())).containsExactly("b");
+        assertThat(identifiers(new ChatOutbox(file, clock).peekBatch())).containsExactly("b");
+    }
+
+    @Test
+    public void peekBatch_isBoundedAndHalvedAfterFailures() throws IOException {
+        final ChatOutbox tested = new ChatOutbox(temporaryFolder.newFile(), clock);
+        for (int i = 0; i < ChatOutbox.MAX_BATCH_SIZE + 5; i++) {
+            tested.add(new OutgoingChatMessage("id" + i, "message " + i, i));
+        }
+
+        final List<OutgoingChatMessage> batch = tested.peekBatch();
+        assertThat(batch).hasSize(ChatOutbox.MAX_BATCH_SIZE);
+        assertThat(batch.get(0).getIdentifier()).isEqualTo("id0");
+
+        tested.onSendFailed(batch.size());
+        assertThat(tested.peekBatch()).hasSize(ChatOutbox.MAX_BATCH_SIZE / 2);
+
+        for (int i = 0; i < 10; i++) {
+            tested.onSendFailed(tested.peekBatch().size());
+        }
+        assertThat(tested.peekBatch()).hasSize(1);
+
+        tested.onSent(identifiers(tested.peekBatch()));
+        assertThat(tested.peekBatch()).hasSize(ChatOutbox.MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void onRejected_dropsTheMessageSoOthersGoOut() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final ChatOutbox tested = new ChatOutbox(file, clock);
+        tested.add(new OutgoingChatMessage("a", "1", 1L));
+        tested.add(new OutgoingChatMessage("b", "2", 2L));
+        for (int i = 0; i < 5; i++) {
+            tested.onSendFailed(tested.peekBatch().size());
+        }
+        assertThat(identifiers(tested.peekBatch())).containsExactly("a");
+
+        tested.onRejected("a");
+
+        assertThat(identifiers(tested.peekBatch())).containsExactly("b");
+        assertThat(identifiers(new ChatOutbox(file, clock).peekBatch())).containsExactly("b");
+    }
+
+    @Test
+    public void expiredMessages_areDroppedBeforeFlushing() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final ChatOutbox tested = new ChatOutbox(file, clock);
+        tested.add(new OutgoingChatMessage("a", "1", now));
+        now += ChatOutbox.MAX_AGE / 2;
+        tested.add(new OutgoingChatMessage("b", "2", now));
+
+        now += ChatOutbox.MAX_AGE / 2 + 1;
+
+        assertThat(identifiers(tested.peekBatch())).containsExactly("b");
+        assertThat(identifiers(new ChatOutbox(file, clock).peekBatch())).containsExactly("b");
+    }
+
+    @Test
+    public void expiredMessages_areDroppedWhenLoading() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final ChatOutbox outbox = new ChatOutbox(file, clock);
+        outbox.add(new OutgoingChatMessage("a", "1", now));
+        outbox.add(new OutgoingChatMessage("b", "2", now + 1));
+
+        now += ChatOutbox.MAX_AGE + 1;
+
+        assertThat(new ChatOutbox(file, clock).size()).isEqualTo(1);
+    }
+
+    @Test
+    public void add_dropsOldestBeyondLimit() throws IOException {
+        final ChatOutbox tested = new ChatOutbox(temporaryFolder.newFile(), clock);
+        for (int i = 0; i <= ChatOutbox.MAX_PENDING; i++) {
+            tested.add(new OutgoingChatMessage("id" + i, "message " + i, i));
+        }
+
+        assertThat(tested.size()).isEqualTo(ChatOutbox.MAX_PENDING);
+        assertThat(tested.peekBatch().get(0).getIdentifier()).isEqualTo("id1");
+    }
+
+    @Test
+    public void diskAccess_happensOnTheDiskExecutor() throws IOException {
+        final File file = temporaryFolder.newFile();
+        final List<Runnable> diskTasks = new ArrayList<>();
+        final ChatOutbox tested = new ChatOutbox(file, diskTasks::add, clock);
+        diskTasks.remove(0).run(); // initial read
+
+        tested.add(new OutgoingChatMessage("a", "1", 1L));
+        tested.add(new OutgoingChatMessage("b", "2", 2L));
+        assertThat(new ChatOutbox(file, clock).isEmpty()).isTrue();
+
+        for (Runnable diskTask : diskTasks) {
+            diskTask.run();
+        }
+        assertThat(identifiers(new ChatOutbox(file, clock).peekBatch())).containsExactly("a", "b");
+    }
+
+    @Test
+    public void missingFile_isEmpty() {
+        final ChatOutbox tested = new ChatOutbox(
+                new File(temporaryFolder.getRoot(), "missing"), clock);
+
+        assertThat(tested.isEmpty()).isTrue();
+        assertThat(tested.peekBatch()).isEmpty();
+    }
+
+    private static List<String> identifiers(List<OutgoingChatMessage> messages) {
+        final List<String> identifiers = new ArrayList<>();
+        for (OutgoingChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        return identifiers;
+    }
+}
@@ -0,0 +1,106 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the JSONArray based location parsing with the streaming decoder.
+ * Only runs with {@code ./gradlew testDebugUnitTest -Dcriticalmaps.benchmark=true}.
+ */
+public class LocationsDecodingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    private OtherUsersLocationModel model;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("criticalmaps.benchmark"));
+
+        final UserModel userModel = mock(UserModel.class);
+        when(userModel.getChangingDeviceToken()).thenReturn("t0k3n");
+        model = new OtherUsersLocationModel(userModel);
+    }
+
+    @Test
+    public void benchmark() throws IOException, JSONException {
+        for (int riders : new int[]{1_000, 10_000, 50_000}) {
+            final String json = createPayload(riders);
+            final Buffer payload = new Buffer().writeUtf8(json);
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                runJsonArray(json);
+                runStreaming(payload);
+            }
+
+            long jsonArrayNanos = 0;
+            long jsonArrayBytes = 0;
+            long streamingNanos = 0;
+            long streamingBytes = 0;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                runJsonArray(json);
+                jsonArrayNanos += System.nanoTime() - start;
+                jsonArrayBytes += allocatedBytes() - bytes;
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                runStreaming(payload);
+                streamingNanos += System.nanoTime() - start;
+                streamingBytes += allocatedBytes() - bytes;
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "%6d riders (%7d bytes): JSONArray %7.2f ms %9d B/op | streaming %7.2f ms %9d B/op",
+                    riders, payload.size(),
+                    jsonArrayNanos / 1e6 / MEASURED_ROUNDS, jsonArrayBytes / MEASURED_ROUNDS,
+                    streamingNanos / 1e6 / MEASURED_ROUNDS, streamingBytes / MEASURED_ROUNDS));
+        }
+    }
+
+    private void runJsonArray(String json) throws JSONException {
+        // the old path materialised the String from the body before parsing
+        model.setFromJson(new JSONArray(json));
+    }
+
+    private void runStreaming(Buffer payload) throws IOException {
+        // clone() shares segments, so copying the payload itself isn't measured
+        model.setOtherUsersLocations(model.decodeFromSource(payload.clone()));
+    }
+
+    static String createPayload(int riders) {
+        final Random random = new Random(riders);
+        final StringBuilder builder = new StringBuilder(riders * 110).append('[');
+        for (int i = 0; i < riders; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"device\":\"").append(String.format(Locale.US, "%040x", i))
+                    .append("\",\"latitude\":").append(random.nextInt(180_000_000) - 90_000_000)
+                    .append(",\"longitude\":").append(random.nextInt(360_000_000) - 180_000_000)
+                    .append(",\"timestamp\":").append(1685910000 + random.nextInt(300))
+                    .append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,88 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+import org.osmdroid.util.BoundingBox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LocationsRegionTest {
+
+    @Test
+    public void ofBoundingBox_addsMarginAndSnapsToGrid() {
+        final LocationsRegion tested = LocationsRegion.ofBoundingBox(
+                new BoundingBox(52.55d, 13.45d, 52.45d, 13.35d), 0.5d);
+
+        assertThat(tested.getSouthE6()).isEqualTo(52400000);
+        assertThat(tested.getNorthE6()).isEqualTo(52600000);
+        assertThat(tested.getWestE6()).isEqualTo(13300000);
+        assertThat(tested.getEastE6()).isEqualTo(13500000);
+        assertThat(tested.contains(52580000, 13400000)).isTrue();
+        assertThat(tested.contains(52610000, 13400000)).isFalse();
+        assertThat(tested.contains(52500000, 13510000)).isFalse();
+    }
+
+    @Test
+    public void ofBoundingBox_smallPanKeepsRegion() {
+        final LocationsRegion tested = LocationsRegion.ofBoundingBox(
+                new BoundingBox(52.54d, 13.44d, 52.46d, 13.36d), 0.5d);
+
+        assertThat(LocationsRegion.ofBoundingBox(
+                new BoundingBox(52.545d, 13.437d, 52.465d, 13.357d), 0.5d)).isEqualTo(tested);
+    }
+
+    @Test
+    public void containsBox_coversPansWithinTheMargin() {
+        final LocationsRegion tested = LocationsRegion.ofBoundingBox(
+                new BoundingBox(52.55d, 13.45d, 52.45d, 13.35d), 0.5d);
+
+        assertThat(tested.contains(new BoundingBox(52.58d, 13.48d, 52.48d, 13.38d))).isTrue();
+        assertThat(tested.contains(new BoundingBox(52.65d, 13.45d, 52.55d, 13.35d))).isFalse();
+        // zoomed out
+        assertThat(tested.contains(new BoundingBox(52.7d, 13.6d, 52.3d, 13.2d))).isFalse();
+    }
+
+    @Test
+    public void containsBox_aroundTheAntimeridian() {
+        final LocationsRegion crossing = LocationsRegion.ofBoundingBox(
+                new BoundingBox(1.0d, -179.0d, -1.0d, 179.0d), 0.5d);
+
+        assertThat(crossing.contains(new BoundingBox(0.5d, -179.5d, -0.5d, 179.5d))).isTrue();
+        // same corners, but around the other side of the world
+        assertThat(crossing.contains(new BoundingBox(0.5d, 179.5d, -0.5d, -179.5d))).isFalse();
+        assertThat(LocationsRegion.ofBoundingBox(new BoundingBox(1.0d, 10.0d, -1.0d, 0.0d), 0.5d)
+                .contains(new BoundingBox(0.5d, 5.0d, -0.5d, 6.0d))).isFalse();
+    }
+
+    @Test
+    public void ofBoundingBox_handlesAntimeridian() {
+        final LocationsRegion tested = LocationsRegion.ofBoundingBox(
+                new BoundingBox(1.0d, -179.0d, -1.0d, 179.0d), 0.5d);
+
+        assertThat(tested.getWestE6()).isGreaterThan(tested.getEastE6());
+        assertThat(tested.contains(0, 179999000)).isTrue();
+        assertThat(tested.contains(0, -179500000)).isTrue();
+        assertThat(tested.contains(0, 0)).isFalse();
+    }
+
+    @Test
+    public void ofBoundingBox_coversWorldWhenZoomedOut() {
+        final LocationsRegion tested = LocationsRegion.ofBoundingBox(
+                new BoundingBox(80.0d, 170.0d, -80.0d, -170.0d), 0.5d);
+
+        assertThat(tested.contains(-90000000, -180000000)).isTrue();
+        assertThat(tested.contains(90000000, 180000000)).isTrue();
+        assertThat(tested.contains(0, 0)).isTrue();
+    }
+
+    @Test
+    public void around_containsCircleOnly() {
+        final LocationsRegion tested = LocationsRegion.around(52500000, 13400000, 1000);
+
+        assertThat(tested.isRadius()).isTrue();
+        assertThat(tested.contains(52508000, 13400000)).isTrue();
+        assertThat(tested.contains(52510000, 13400000)).isFalse();
+        assertThat(tested.contains(52506500, 13410000)).isTrue();
+        // inside the bounding box, but outside the circle
+        assertThat(tested.contains(52508000, 13414000)).isFalse();
+    }
+}
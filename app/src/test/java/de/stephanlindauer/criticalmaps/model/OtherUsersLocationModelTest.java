@@ -0,0 +1,191 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import de.stephanlindauer.criticalmaps.codec.LocationsJsonDecoder;
+
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OtherUsersLocationModelTest {
+
+    private static final String OWN_DEVICE = "ec0381f4842815a213771ba5155f09b1d6fb97b5";
+
+    @Test
+    public void decodeFromSource_matchesJsonArrayPath() throws IOException, URISyntaxException,
+            JSONException {
+        final String json = readToString(new File(getClass().getClassLoader()
+                .getResource("server_response_locations.json").toURI()));
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+
+        tested.setFromJson(new JSONArray(json));
+        final RiderLocations expected = tested.getOtherUsersLocations();
+        final RiderLocations decoded = tested.decodeFromSource(new Buffer().writeUtf8(json));
+
+        assertThat(decoded).isNotSameInstanceAs(expected);
+        assertThat(decoded.size()).isEqualTo(4);
+        assertThat(decoded.size()).isEqualTo(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(decoded.getDeviceHash(i)).isEqualTo(expected.getDeviceHash(i));
+            assertThat(decoded.getLatitudeE6(i)).isEqualTo(expected.getLatitudeE6(i));
+            assertThat(decoded.getLongitudeE6(i)).isEqualTo(expected.getLongitudeE6(i));
+        }
+    }
+
+    @Test
+    public void decodeFromSource_doesNotChangeModelUntilSet() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+
+        final RiderLocations decoded = tested.decodeFromSource(new Buffer().writeUtf8(
+                "[{\"device\":\"a\",\"latitude\":\"1000000\",\"longitude\":\"2000000\"}]"));
+        assertThat(tested.getOtherUsersLocations().isEmpty()).isTrue();
+
+        tested.setOtherUsersLocations(decoded);
+        assertThat(tested.getOtherUsersLocations().size()).isEqualTo(1);
+        assertThat(tested.getOtherUsersLocations().getGeoPoint(0)).isEqualTo(new GeoPoint(1.0d, 2.0d));
+    }
+
+    @Test
+    public void decodeFromSource_reusesStorageOfPreviousSnapshot() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+        final String json = "[{\"device\":\"a\",\"latitude\":1,\"longitude\":2}]";
+
+        final RiderLocations first = tested.decodeFromSource(new Buffer().writeUtf8(json));
+        tested.setOtherUsersLocations(first);
+        final RiderLocations second = tested.decodeFromSource(new Buffer().writeUtf8(json));
+        tested.setOtherUsersLocations(second);
+        final RiderLocations third = tested.decodeFromSource(new Buffer().writeUtf8("[]"));
+
+        assertThat(second).isNotSameInstanceAs(first);
+        assertThat(third).isSameInstanceAs(first);
+        assertThat(third.isEmpty()).isTrue();
+        assertThat(tested.getOtherUsersLocations().size()).isEqualTo(1);
+    }
+
+    @Test
+    public void decodeFromSource_doesNotReuseTheShownSnapshot() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+        final String json = "[{\"device\":\"a\",\"latitude\":1,\"longitude\":2}]";
+
+        final RiderLocations first = tested.decodeFromSource(new Buffer().writeUtf8(json));
+        tested.setOtherUsersLocations(first);
+        tested.setShownLocations(first);
+        // published while the map doesn't get to show it, e.g. paused
+        tested.setOtherUsersLocations(tested.decodeFromSource(new Buffer().writeUtf8(json)));
+        final RiderLocations third = tested.decodeFromSource(new Buffer().writeUtf8("[]"));
+
+        assertThat(third).isNotSameInstanceAs(first);
+        assertThat(first.size()).isEqualTo(1);
+
+        tested.setOtherUsersLocations(third);
+        tested.setShownLocations(third);
+
+        assertThat(tested.decodeFromSource(new Buffer().writeUtf8("[]")))
+                .isNotSameInstanceAs(third);
+    }
+
+    @Test
+    public void decodeFromSource_dropsRidersOutsideRegion() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+        final String json = "[{\"device\":\"a\",\"latitude\":52500000,\"longitude\":13400000},"
+                + "{\"device\":\"b\",\"latitude\":48860000,\"longitude\":2350000}]";
+
+        final RiderLocations decoded = tested.decodeFromSource(new Buffer().writeUtf8(json),
+                false, LocationsRegion.around(52500000, 13400000, 10000));
+
+        assertThat(decoded.size()).isEqualTo(1);
+        assertThat(decoded.getLatitudeE6(0)).isEqualTo(52500000);
+    }
+
+    @Test
+    public void decodeChanges_appliesChangesToCurrentSnapshot() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+        tested.setOtherUsersLocations(tested.decodeFromSource(new Buffer().writeUtf8(
+                "[{\"device\":\"a\",\"latitude\":1,\"longitude\":1},"
+                        + "{\"device\":\"b\",\"latitude\":2,\"longitude\":2},"
+                        + "{\"device\":\"c\",\"latitude\":3,\"longitude\":3}]")));
+
+        final RiderLocations decoded = tested.decodeChanges(new Buffer().writeUtf8(
+                "[{\"device\":\"a\",\"latitude\":10,\"longitude\":10},"
+                        + "{\"device\":\"b\"},"
+                        + "{\"device\":\"d\",\"latitude\":4,\"longitude\":4}]"));
+        tested.setOtherUsersLocations(decoded);
+
+        final RiderLocations current = tested.getOtherUsersLocations();
+        assertThat(current.size()).isEqualTo(3);
+        assertThat(latitudeOf(current, "a")).isEqualTo(10);
+        assertThat(latitudeOf(current, "b")).isNull();
+        assertThat(latitudeOf(current, "c")).isEqualTo(3);
+        assertThat(latitudeOf(current, "d")).isEqualTo(4);
+        final RiderLocationsDiff changes = current.getChanges();
+        assertThat(changes.getAddedCount()).isEqualTo(1);
+        assertThat(changes.getMovedCount()).isEqualTo(1);
+        assertThat(changes.getRemovedCount()).isEqualTo(1);
+        assertThat(changes.getUnchangedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void decodeChanges_buildsOnChangesNotPublishedYet() throws IOException {
+        final OtherUsersLocationModel tested = new OtherUsersLocationModel(mockUserModel());
+        tested.setOtherUsersLocations(tested.decodeFromSource(new Buffer().writeUtf8(
+                "[{\"device\":\"a\",\"latitude\":1,\"longitude\":1}]")));
+
+        final RiderLocations first = tested.decodeChanges(new Buffer().writeUtf8(
+                "[{\"device\":\"b\",\"latitude\":2,\"longitude\":2}]"));
+        final RiderLocations second = tested.decodeChanges(new Buffer().writeUtf8(
+                "[{\"device\":\"a\"}]"));
+        tested.setOtherUsersLocations(first);
+        tested.setOtherUsersLocations(second);
+
+        final RiderLocations current = tested.getOtherUsersLocations();
+        assertThat(current.size()).isEqualTo(1);
+        assertThat(latitudeOf(current, "b")).isEqualTo(2);
+    }
+
+    private static Integer latitudeOf(RiderLocations locations, String device) {
+        final long deviceHash = LocationsJsonDecoder.hashDeviceId(device);
+        for (int i = 0; i < locations.size(); i++) {
+            if (locations.getDeviceHash(i) == deviceHash) {
+                return locations.getLatitudeE6(i);
+            }
+        }
+        return null;
+    }
+
+    private static UserModel mockUserModel() {
+        final UserModel userModel = mock(UserModel.class);
+        when(userModel.getChangingDeviceToken()).thenReturn(OWN_DEVICE);
+        return userModel;
+    }
+
+    public String readToString(File file) throws IOException {
+        return readToString(Charset.defaultCharset(), file);
+    }
+
+    public String readToString(Charset charset, File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            return readToStringFromFileInputStream(charset, stream);
+        }
+    }
+
+    private String readToStringFromFileInputStream(Charset charset, FileInputStream stream) throws IOException {
+        try (FileChannel fc = stream.getChannel()) {
+            final MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            return charset.decode(bb).toString();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package de.stephanlindauer.criticalmaps.model;
 
 import org.junit.Test;
-import org.osmdroid.util.GeoPoint;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
@@ -11,7 +10,7 @@ public class OwnLocationModelTest {
     public void hasPreciseLocation_impreciseLocationIsReportedAsImprecise() {
         OwnLocationModel tested = new OwnLocationModel();
 
-        tested.setLocation(new GeoPoint(0d, 0d), 50.0f);
+        tested.setLocation(0, 0, 50.0f);
 
         assertThat(tested.hasPreciseLocation()).isFalse();
     }
@@ -20,7 +19,7 @@ public class OwnLocationModelTest {
     public void hasPreciseLocation_preciseLocationIsReportedAsPrecise() {
         OwnLocationModel tested = new OwnLocationModel();
 
-        tested.setLocation(new GeoPoint(0d, 0d), 49.9f);
+        tested.setLocation(0, 0, 49.9f);
 
         assertThat(tested.hasPreciseLocation()).isTrue();
     }
@@ -37,7 +36,27 @@ public class OwnLocationModelTest {
         OwnLocationModel tested = new OwnLocationModel();
 
         String expected = "{\"latitude\":\"40741895\",\"longitude\":\"-73989308\"}";
-        tested.setLocation(new GeoPoint(40.741895d, -73.989308d), 1.1f);
+        tested.setLocation(40_741_895, -73_989_308, 1.1f);
         assertThat(tested.getLocationJson().toString()).isEqualTo(expected);
     }
+
+    @Test
+    public void hasLocation_falseUntilSet() {
+        OwnLocationModel tested = new OwnLocationModel();
+
+        assertThat(tested.hasLocation()).isFalse();
+        assertThat(tested.hasPreciseLocation()).isFalse();
+        assertThat(tested.getOwnLocation()).isNull();
+    }
+
+    @Test
+    public void getLocationE6_keepsBothCoordinatesTogether() {
+        OwnLocationModel tested = new OwnLocationModel();
+
+        tested.setLocation(-33_868_820, -151_209_296, 5.0f);
+
+        final long locationE6 = tested.getLocationE6();
+        assertThat(OwnLocationModel.latitudeE6(locationE6)).isEqualTo(-33_868_820);
+        assertThat(OwnLocationModel.longitudeE6(locationE6)).isEqualTo(-151_209_296);
+    }
 }
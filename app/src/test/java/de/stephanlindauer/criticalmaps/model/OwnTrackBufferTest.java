@@ -0,0 +1,101 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.codec.TrackSegmentCodec;
+import okio.Buffer;
+import okio.ByteString;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class OwnTrackBufferTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Test
+    public void encodePending_needsTwoFixes() {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+
+        assertThat(tested.encodePending(NOW)).isNull();
+        tested.add(NOW - 5000, 1, 1, 5.0f);
+        assertThat(tested.encodePending(NOW)).isNull();
+        tested.add(NOW, 2, 2, 5.0f);
+        assertThat(tested.encodePending(NOW)).isNotNull();
+    }
+
+    @Test
+    public void add_skipsImpreciseAndOutOfOrderFixes() {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+
+        tested.add(NOW - 5000, 1, 1, 5.0f);
+        tested.add(NOW - 4000, 2, 2, 500.0f);
+        tested.add(NOW - 6000, 3, 3, 5.0f);
+        tested.add(NOW - 5000, 4, 4, 5.0f);
+
+        assertThat(tested.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void add_dropsOldestBeyondMaxBatchSize() throws IOException {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+        final int count = OwnTrackBuffer.MAX_BATCH_SIZE + 2;
+        for (int i = 0; i < count; i++) {
+            tested.add(NOW - (count - i) * 1000L, i, i, 5.0f);
+        }
+
+        final List<Integer> latitudes = decode(tested.encodePending(NOW));
+        assertThat(latitudes).hasSize(OwnTrackBuffer.MAX_BATCH_SIZE);
+        assertThat(latitudes.get(0)).isEqualTo(2);
+        assertThat(latitudes.get(latitudes.size() - 1)).isEqualTo(count - 1);
+    }
+
+    @Test
+    public void encodePending_dropsFixesOlderThanMaxAge() throws IOException {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+        tested.add(NOW - OwnTrackBuffer.MAX_AGE - 30 * 1000, 0, 0, 5.0f);
+        tested.add(NOW - OwnTrackBuffer.MAX_AGE + 10 * 1000, 1, 1, 5.0f);
+        tested.add(NOW - 10 * 1000, 2, 2, 5.0f);
+
+        assertThat(decode(tested.encodePending(NOW))).containsExactly(1, 2).inOrder();
+        assertThat(tested.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void onUploaded_keepsFixesNewerThanTheSegment() throws IOException {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+        tested.add(NOW - 10000, 0, 0, 5.0f);
+        tested.add(NOW - 5000, 1, 1, 5.0f);
+        tested.encodePending(NOW);
+        tested.add(NOW, 2, 2, 5.0f);
+
+        tested.onUploaded();
+
+        assertThat(tested.size()).isEqualTo(1);
+        tested.add(NOW + 5000, 3, 3, 5.0f);
+        assertThat(decode(tested.encodePending(NOW + 5000))).containsExactly(2, 3).inOrder();
+    }
+
+    @Test
+    public void failedUpload_resendsFixes() throws IOException {
+        final OwnTrackBuffer tested = new OwnTrackBuffer();
+        tested.add(NOW - 5000, 0, 0, 5.0f);
+        tested.add(NOW, 1, 1, 5.0f);
+        tested.encodePending(NOW);
+        tested.add(NOW + 5000, 2, 2, 5.0f);
+
+        assertThat(decode(tested.encodePending(NOW + 5000))).containsExactly(0, 1, 2).inOrder();
+    }
+
+    // latitudes of the decoded fixes
+    private static List<Integer> decode(String track) throws IOException {
+        final List<Integer> latitudes = new ArrayList<>();
+        //noinspection ConstantConditions
+        TrackSegmentCodec.decode(new Buffer().write(ByteString.decodeBase64(track)),
+                (timeMillis, latitudeE6, longitudeE6) -> latitudes.add(latitudeE6));
+        return latitudes;
+    }
+}
@@ -0,0 +1,58 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures building the cluster hierarchy for large rides.
+ * Only runs with {@code ./gradlew testDebugUnitTest -Dcriticalmaps.benchmark=true}.
+ */
+public class RiderClustersBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("criticalmaps.benchmark"));
+    }
+
+    @Test
+    public void benchmark() {
+        for (int riders : new int[]{10_000, 50_000}) {
+            final RiderLocations locations = new RiderLocations();
+            final Random random = new Random(riders);
+            for (int i = 0; i < riders; i++) {
+                // one dense ride plus riders spread over the whole world
+                final boolean isInRide = i % 4 != 0;
+                locations.add(i,
+                        isInRide ? (int) ((52.5d + random.nextGaussian() * 0.05d) * 1000000)
+                                : random.nextInt(170_000_000) - 85_000_000,
+                        isInRide ? (int) ((13.4d + random.nextGaussian() * 0.05d) * 1000000)
+                                : random.nextInt(360_000_000) - 180_000_000);
+            }
+            final RiderClusters clusters = locations.getClusters();
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                clusters.rebuild(locations, RiderClusters.DEFAULT_MAX_ZOOM);
+            }
+            long nanos = 0;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                final long start = System.nanoTime();
+                clusters.rebuild(locations, RiderClusters.DEFAULT_MAX_ZOOM);
+                nanos += System.nanoTime() - start;
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "%6d riders: rebuild %7.2f ms, %d clusters at zoom 0, %d at zoom %d",
+                    riders, nanos / 1e6 / MEASURED_ROUNDS, clusters.getLevel(0).size(),
+                    clusters.getLevel(RiderClusters.DEFAULT_MAX_ZOOM).size(),
+                    RiderClusters.DEFAULT_MAX_ZOOM));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderClustersTest {
+
+    @Test
+    public void getMaxZoom_notBuilt() {
+        final RiderClusters tested = new RiderClusters();
+
+        assertThat(tested.getMaxZoom()).isEqualTo(-1);
+        assertThat(tested.getLevel(5).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void rebuild_everyLevelCountsAllRiders() {
+        final RiderLocations locations = createRandomLocations(5000);
+        final RiderClusters tested = locations.getClusters();
+        tested.rebuild(locations, 12);
+
+        assertThat(tested.getMaxZoom()).isEqualTo(12);
+        int previousSize = 0;
+        for (int zoom = 0; zoom <= 12; zoom++) {
+            final RiderClusters.Level level = tested.getLevel(zoom);
+            int riders = 0;
+            for (int i = 0; i < level.size(); i++) {
+                riders += level.getCount(i);
+            }
+            assertThat(riders).isEqualTo(5000);
+            // zooming in never merges clusters
+            assertThat(level.size()).isAtLeast(previousSize);
+            previousSize = level.size();
+        }
+    }
+
+    @Test
+    public void rebuild_mergesNearbyRidersAtLowZoom() {
+        final RiderLocations locations = new RiderLocations();
+        // two riders ~100 m apart in Berlin, one in Hamburg
+        locations.add(1L, 52_500_000, 13_400_000);
+        locations.add(2L, 52_500_900, 13_400_000);
+        locations.add(3L, 53_550_000, 9_990_000);
+        final RiderClusters tested = locations.getClusters();
+        tested.rebuild(locations, 16);
+
+        final RiderClusters.Level zoomedOut = tested.getLevel(0);
+        assertThat(zoomedOut.size()).isEqualTo(1);
+        assertThat(zoomedOut.getCount(0)).isEqualTo(3);
+        assertThat(zoomedOut.getRiderIndex(0)).isEqualTo(RiderClusters.NO_RIDER);
+
+        final RiderClusters.Level city = tested.getLevel(8);
+        assertThat(city.size()).isEqualTo(2);
+        for (int i = 0; i < city.size(); i++) {
+            if (city.getCount(i) == 2) {
+                assertThat(city.getLatitude(i)).isWithin(0.001d).of(52.50045d);
+                assertThat(city.getLongitude(i)).isWithin(0.001d).of(13.4d);
+            } else {
+                assertThat(city.getRiderIndex(i)).isEqualTo(2);
+                assertThat(city.getLatitude(i)).isWithin(1e-6d).of(53.55d);
+            }
+        }
+
+        final RiderClusters.Level street = tested.getLevel(16);
+        assertThat(street.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void getLevel_clampsZoom() {
+        final RiderLocations locations = createRandomLocations(100);
+        locations.getClusters().rebuild(locations, 4);
+
+        assertThat(locations.getClusters().getLevel(10))
+                .isSameInstanceAs(locations.getClusters().getLevel(4));
+        assertThat(locations.getClusters().getLevel(-1))
+                .isSameInstanceAs(locations.getClusters().getLevel(0));
+    }
+
+    private static RiderLocations createRandomLocations(int count) {
+        final Random random = new Random(count);
+        final RiderLocations locations = new RiderLocations();
+        for (int i = 0; i < count; i++) {
+            locations.add(i,
+                    (int) ((52.5d + random.nextGaussian() * 0.5d) * 1000000),
+                    (int) ((13.4d + random.nextGaussian() * 0.5d) * 1000000));
+        }
+        return locations;
+    }
+}
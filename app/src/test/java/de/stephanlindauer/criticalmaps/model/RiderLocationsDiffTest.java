@@ -0,0 +1,102 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderLocationsDiffTest {
+
+    @Test
+    public void compute_reportsAddedMovedAndRemovedRiders() {
+        final RiderLocations previous = new RiderLocations();
+        previous.add(1L, 10, 10);
+        previous.add(2L, 20, 20);
+        previous.add(3L, 30, 30);
+        final RiderLocations current = new RiderLocations();
+        current.add(3L, 30, 30);
+        current.add(4L, 40, 40);
+        current.add(1L, 11, 10);
+
+        final RiderLocationsDiff tested = new RiderLocationsDiff();
+        tested.compute(previous, current);
+
+        assertThat(tested.getAddedCount()).isEqualTo(1);
+        assertThat(tested.getAddedIndex(0)).isEqualTo(1);
+        assertThat(tested.getMovedCount()).isEqualTo(1);
+        assertThat(tested.getMovedIndex(0)).isEqualTo(2);
+        assertThat(tested.getRemovedCount()).isEqualTo(1);
+        assertThat(tested.getRemovedDeviceHash(0)).isEqualTo(2L);
+        assertThat(tested.getUnchangedCount()).isEqualTo(1);
+        assertThat(tested.getChangedCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void compute_identicalSnapshotsAreEmpty() {
+        final RiderLocations previous = new RiderLocations();
+        final RiderLocations current = new RiderLocations();
+        for (int i = 0; i < 1000; i++) {
+            previous.add(i * 31L, i, -i);
+            current.add(i * 31L, i, -i);
+        }
+
+        final RiderLocationsDiff tested = new RiderLocationsDiff();
+        tested.compute(previous, current);
+
+        assertThat(tested.isEmpty()).isTrue();
+        assertThat(tested.getUnchangedCount()).isEqualTo(1000);
+    }
+
+    @Test
+    public void compute_shadowedDuplicateIsNotReportedAsRemoved() {
+        final RiderLocations previous = new RiderLocations();
+        previous.add(1L, 10, 10);
+        previous.add(1L, 11, 11);
+        final RiderLocations current = new RiderLocations();
+        current.add(1L, 11, 11);
+
+        final RiderLocationsDiff tested = new RiderLocationsDiff();
+        tested.compute(previous, current);
+
+        assertThat(tested.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void compute_isReusableAcrossSnapshotsOfDifferentSize() {
+        final RiderLocations large = new RiderLocations();
+        for (int i = 0; i < 500; i++) {
+            large.add(i, i, i);
+        }
+        final RiderLocations small = new RiderLocations();
+        small.add(7L, 0, 0);
+
+        final RiderLocationsDiff tested = new RiderLocationsDiff();
+        tested.compute(large, small);
+        assertThat(tested.getRemovedCount()).isEqualTo(499);
+        assertThat(tested.getMovedCount()).isEqualTo(1);
+
+        tested.compute(small, large);
+        assertThat(tested.getAddedCount()).isEqualTo(499);
+        assertThat(tested.getMovedCount()).isEqualTo(1);
+        assertThat(tested.getRemovedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void setOtherUsersLocations_recomputesStaleDiff() {
+        final OtherUsersLocationModel model = new OtherUsersLocationModel(null);
+        final RiderLocations first = new RiderLocations();
+        first.add(1L, 10, 10);
+        first.getChanges().compute(model.getOtherUsersLocations(), first);
+        final RiderLocations second = new RiderLocations();
+        second.add(1L, 10, 10);
+        second.add(2L, 20, 20);
+        // computed against the initial empty snapshot, but first gets published before it
+        second.getChanges().compute(model.getOtherUsersLocations(), second);
+
+        model.setOtherUsersLocations(first);
+        model.setOtherUsersLocations(second);
+
+        assertThat(second.getChanges().getBaseVersion()).isEqualTo(first.getVersion());
+        assertThat(second.getChanges().getAddedCount()).isEqualTo(1);
+        assertThat(second.getChanges().getUnchangedCount()).isEqualTo(1);
+    }
+}
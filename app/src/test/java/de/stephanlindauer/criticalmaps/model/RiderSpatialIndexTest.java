@@ -0,0 +1,111 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderSpatialIndexTest {
+
+    @Test
+    public void queryBoundingBox_matchesLinearScan() {
+        final RiderLocations locations = createRandomLocations(5000, 52.0d, 13.0d, 1.0d);
+        final RiderSpatialIndex tested = locations.getSpatialIndex();
+        tested.rebuild(locations);
+
+        final BoundingBox[] boxes = {
+                new BoundingBox(52.3d, 13.2d, 52.2d, 13.1d),
+                new BoundingBox(52.9d, 13.9d, 51.1d, 12.1d),
+                new BoundingBox(85.0d, 180.0d, -85.0d, -180.0d),
+                new BoundingBox(10.0d, 10.0d, 0.0d, 0.0d)};
+        for (BoundingBox box : boxes) {
+            final List<Integer> found = new ArrayList<>();
+            tested.queryBoundingBox(box, found::add);
+
+            assertThat(found).containsExactlyElementsIn(linearScan(locations, box));
+        }
+    }
+
+    @Test
+    public void queryBoundingBox_handlesAntimeridian() {
+        final RiderLocations locations = new RiderLocations();
+        locations.add(1L, 0, 179_900_000);
+        locations.add(2L, 0, -179_900_000);
+        locations.add(3L, 0, 0);
+        locations.getSpatialIndex().rebuild(locations);
+
+        final List<Integer> found = new ArrayList<>();
+        locations.getSpatialIndex().queryBoundingBox(
+                new BoundingBox(1.0d, -179.0d, -1.0d, 179.0d), found::add);
+
+        assertThat(found).containsExactly(0, 1);
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() {
+        final RiderLocations locations = createRandomLocations(3000, 52.5d, 13.4d, 0.2d);
+        final RiderSpatialIndex tested = locations.getSpatialIndex();
+        tested.rebuild(locations);
+        final GeoPoint center = new GeoPoint(52.51d, 13.41d);
+
+        final int[] nearest = tested.nearest(center, 10);
+
+        assertThat(nearest).hasLength(10);
+        final double[] distances = new double[locations.size()];
+        for (int i = 0; i < locations.size(); i++) {
+            distances[i] = center.distanceToAsDouble(locations.getGeoPoint(i));
+        }
+        int closer = 0;
+        for (double distance : distances) {
+            if (distance < distances[nearest[9]]) {
+                closer++;
+            }
+        }
+        assertThat(closer).isAtMost(9);
+        for (int i = 1; i < nearest.length; i++) {
+            assertThat(distances[nearest[i]]).isAtLeast(distances[nearest[i - 1]] - 1.0d);
+        }
+    }
+
+    @Test
+    public void nearest_returnsAllWhenFewerThanK() {
+        final RiderLocations locations = new RiderLocations();
+        locations.add(1L, 1_000_000, 1_000_000);
+        locations.add(2L, -1_000_000, -1_000_000);
+        locations.getSpatialIndex().rebuild(locations);
+
+        final int[] nearest = locations.getSpatialIndex().nearest(new GeoPoint(0.9d, 0.9d), 5);
+
+        assertThat(nearest).asList().containsExactly(0, 1).inOrder();
+    }
+
+    private static RiderLocations createRandomLocations(int count, double latitude,
+                                                        double longitude, double spread) {
+        final Random random = new Random(count);
+        final RiderLocations locations = new RiderLocations();
+        for (int i = 0; i < count; i++) {
+            locations.add(i,
+                    (int) ((latitude + (random.nextDouble() - 0.5d) * spread) * 1000000),
+                    (int) ((longitude + (random.nextDouble() - 0.5d) * spread) * 1000000));
+        }
+        return locations;
+    }
+
+    private static List<Integer> linearScan(RiderLocations locations, BoundingBox box) {
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < locations.size(); i++) {
+            if (locations.getLatitude(i) >= box.getLatSouth()
+                    && locations.getLatitude(i) <= box.getLatNorth()
+                    && locations.getLongitude(i) >= box.getLonWest()
+                    && locations.getLongitude(i) <= box.getLonEast()) {
+                expected.add(i);
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,132 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.utils.WebMercator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class GpxTrackLodTest {
+
+    @Test
+    public void getLevel_straightLineKeepsOnlyEndPoints() {
+        final GpxTrack.Builder builder = new GpxTrack.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.addPoint(52.5D, 13.4D + i * 0.0001D);
+        }
+
+        final GpxTrackLod tested = new GpxTrackLod(builder.build(null));
+
+        assertThat(tested.getLevel(GpxTrackLod.MAX_ZOOM)).asList().containsExactly(0, 99);
+        assertThat(tested.getLevel(GpxTrackLod.MAX_ZOOM + 1)).hasLength(100);
+    }
+
+    @Test
+    public void getLevel_keepsDetourOnlyWhenZoomedIn() {
+        // a ~10 m detour in the middle of a ~1.4 km road
+        final GpxTrack track = new GpxTrack.Builder()
+                .addPoint(52.5D, 13.40D)
+                .addPoint(52.5D, 13.41D)
+                .addPoint(52.5001D, 13.4101D)
+                .addPoint(52.5D, 13.4102D)
+                .addPoint(52.5D, 13.42D)
+                .build(null);
+
+        final GpxTrackLod tested = new GpxTrackLod(track);
+
+        assertThat(tested.getLevel(10)).asList().containsExactly(0, 4);
+        assertThat(tested.getLevel(18)).asList().containsExactly(0, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void getLevel_matchesRecursiveDouglasPeucker() {
+        final GpxTrack track = createRide(5_000);
+        final GpxTrackLod tested = new GpxTrackLod(track);
+
+        for (int zoom = 0; zoom <= GpxTrackLod.MAX_ZOOM; zoom++) {
+            final double tolerance = GpxTrackLod.TOLERANCE_PIXELS / (256.0D * Math.pow(2, zoom));
+            final List<Integer> expected = douglasPeucker(track, tolerance);
+
+            assertThat(tested.getLevel(zoom)).asList().containsExactlyElementsIn(expected)
+                    .inOrder();
+        }
+    }
+
+    @Test
+    public void getLevel_levelsGrowWithZoom() {
+        final GpxTrackLod tested = new GpxTrackLod(createRide(20_000));
+
+        int previousSize = 0;
+        for (int zoom = 0; zoom <= GpxTrackLod.MAX_ZOOM; zoom++) {
+            final int[] level = tested.getLevel(zoom);
+            assertThat(level.length).isAtLeast(previousSize);
+            assertThat(level[0]).isEqualTo(0);
+            assertThat(level[level.length - 1]).isEqualTo(19_999);
+            previousSize = level.length;
+        }
+        // city zoom doesn't need every point
+        assertThat(tested.getLevel(12).length).isLessThan(20_000 / 10);
+    }
+
+    @Test
+    public void getLevel_handlesTinyTracks() {
+        assertThat(new GpxTrackLod(new GpxTrack.Builder().build(null)).getLevel(10)).hasLength(0);
+        assertThat(new GpxTrackLod(new GpxTrack.Builder().addPoint(1.0D, 2.0D).build(null))
+                .getLevel(10)).hasLength(1);
+    }
+
+    private static GpxTrack createRide(int points) {
+        final Random random = new Random(points);
+        final GpxTrack.Builder builder = new GpxTrack.Builder();
+        double latitude = 52.5D;
+        double longitude = 13.4D;
+        double heading = 0.0D;
+        for (int i = 0; i < points; i++) {
+            heading += (random.nextDouble() - 0.5D) * 0.5D;
+            latitude += Math.cos(heading) * 0.00005D + random.nextGaussian() * 0.000005D;
+            longitude += Math.sin(heading) * 0.00008D + random.nextGaussian() * 0.000005D;
+            builder.addPoint(latitude, longitude);
+        }
+        return builder.build(null);
+    }
+
+    private static List<Integer> douglasPeucker(GpxTrack track, double tolerance) {
+        final List<Integer> kept = new ArrayList<>();
+        kept.add(0);
+        douglasPeucker(track, 0, track.size() - 1, tolerance, kept);
+        kept.add(track.size() - 1);
+        return kept;
+    }
+
+    private static void douglasPeucker(GpxTrack track, int start, int end, double tolerance,
+                                       List<Integer> kept) {
+        int farthest = -1;
+        double maxDistance = -1.0D;
+        for (int i = start + 1; i < end; i++) {
+            final double distance = GpxTrackLod.segmentDistance(x(track, i), y(track, i),
+                    x(track, start), y(track, start), x(track, end), y(track, end));
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest = i;
+            }
+        }
+        if (farthest < 0 || maxDistance <= tolerance) {
+            return;
+        }
+        douglasPeucker(track, start, farthest, tolerance, kept);
+        kept.add(farthest);
+        douglasPeucker(track, farthest, end, tolerance, kept);
+    }
+
+    private static double x(GpxTrack track, int index) {
+        return WebMercator.longitudeToX(track.getLongitudeE6(index) / 1000000.0D);
+    }
+
+    private static double y(GpxTrack track, int index) {
+        return WebMercator.latitudeToY(track.getLatitudeE6(index) / 1000000.0D);
+    }
+}
@@ -0,0 +1,84 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class GpxTrackTest {
+
+    @Test
+    public void build_keepsPointsBeyondInitialCapacity() {
+        final GpxTrack.Builder builder = new GpxTrack.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.addPoint(52.0D + i / 1000000.0D, -13.0D - i / 1000000.0D);
+        }
+
+        final GpxTrack tested = builder.build("long");
+
+        assertThat(tested.getName()).isEqualTo("long");
+        assertThat(tested.size()).isEqualTo(1000);
+        assertThat(tested.getLatitudeE6(999)).isEqualTo(52_000_999);
+        assertThat(tested.getLongitudeE6(999)).isEqualTo(-13_000_999);
+        assertThat(tested.hasAltitude(999)).isFalse();
+    }
+
+    @Test
+    public void build_keepsAltitudeOnlyWhereGiven() {
+        final GpxTrack tested = new GpxTrack.Builder()
+                .addPoint(52.5D, 13.4D)
+                .addPoint(52.6D, 13.5D, 34.5D)
+                .addPoint(52.7D, 13.6D)
+                .build(null);
+
+        assertThat(tested.hasAltitude(0)).isFalse();
+        assertThat(Float.isNaN(tested.getAltitude(0))).isTrue();
+        assertThat(tested.hasAltitude(1)).isTrue();
+        assertThat(tested.getAltitude(1)).isEqualTo(34.5f);
+        assertThat(tested.hasAltitude(2)).isFalse();
+    }
+
+    @Test
+    public void buildRange_copiesPointsAndKeepsBuilderUsable() {
+        final GpxTrack.Builder builder = new GpxTrack.Builder()
+                .addPoint(52.5D, 13.4D)
+                .addPoint(52.6D, 13.5D, 34.5D)
+                .addPoint(52.7D, 13.6D);
+
+        final GpxTrack tested = builder.build("chunk", 1, 3);
+        builder.addPoint(52.8D, 13.7D);
+
+        assertThat(tested.getName()).isEqualTo("chunk");
+        assertThat(tested.size()).isEqualTo(2);
+        assertThat(tested.getLatitudeE6(0)).isEqualTo(52_600_000);
+        assertThat(tested.getAltitude(0)).isEqualTo(34.5f);
+        assertThat(tested.getLatitudeE6(1)).isEqualTo(52_700_000);
+        assertThat(builder.build(null).size()).isEqualTo(4);
+        assertThrows(IndexOutOfBoundsException.class, () -> builder.build(null, 2, 5));
+    }
+
+    @Test
+    public void asGeoPoints_createsPointsOnAccess() {
+        final GpxTrack tested = new GpxTrack.Builder()
+                .addPoint(52.5D, 13.4D, 30.0D)
+                .addPoint(52.6D, 13.5D)
+                .build("view");
+
+        final List<GeoPoint> points = tested.asGeoPoints();
+
+        assertThat(points).containsExactly(
+                new GeoPoint(52.5D, 13.4D, 30.0D), new GeoPoint(52.6D, 13.5D)).inOrder();
+        assertThrows(UnsupportedOperationException.class,
+                () -> points.add(new GeoPoint(0.0D, 0.0D)));
+    }
+
+    @Test
+    public void getLatitudeE6_checksIndex() {
+        final GpxTrack tested = new GpxTrack.Builder().addPoint(52.5D, 13.4D).build(null);
+
+        assertThrows(IndexOutOfBoundsException.class, () -> tested.getLatitudeE6(1));
+    }
+}
@@ -0,0 +1,72 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.http.HttpDate;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class EndpointHealthTest {
+
+    @Test
+    public void getRetryAfterMillis_parsesSecondsAndDates() {
+        final long now = 1_600_000_000_000L;
+
+        assertThat(EndpointHealth.getRetryAfterMillis(createResponse("30"), now))
+                .isEqualTo(30 * 1000);
+        assertThat(EndpointHealth.getRetryAfterMillis(
+                createResponse(HttpDate.format(new Date(now + 90 * 1000))), now))
+                .isEqualTo(90 * 1000);
+        assertThat(EndpointHealth.getRetryAfterMillis(createResponse("86400"), now))
+                .isEqualTo(EndpointHealth.MAX_RETRY_AFTER);
+        assertThat(EndpointHealth.getRetryAfterMillis(createResponse("soon"), now))
+                .isEqualTo(0);
+        assertThat(EndpointHealth.getRetryAfterMillis(createResponse(null), now))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void onFailure_backoffGrowsWithJitterWithinBounds() {
+        final Random random = new Random(42);
+        final EndpointHealth tested = new EndpointHealth("a");
+
+        long expectedBackoff = EndpointHealth.MIN_BACKOFF;
+        for (int i = 1; i < EndpointHealth.OPEN_THRESHOLD; i++) {
+            tested.onFailure(0, 0, true, random);
+
+            assertThat(tested.getState()).isEqualTo(EndpointHealth.State.BACKING_OFF);
+            assertThat(tested.getBlockedUntil()).isAtLeast(expectedBackoff / 2);
+            assertThat(tested.getBlockedUntil()).isAtMost(expectedBackoff);
+            expectedBackoff *= 2;
+        }
+    }
+
+    @Test
+    public void isServerFailure() {
+        assertThat(EndpointHealth.isServerFailure(500)).isTrue();
+        assertThat(EndpointHealth.isServerFailure(503)).isTrue();
+        assertThat(EndpointHealth.isServerFailure(429)).isTrue();
+        assertThat(EndpointHealth.isServerFailure(408)).isTrue();
+        assertThat(EndpointHealth.isServerFailure(404)).isFalse();
+        assertThat(EndpointHealth.isServerFailure(304)).isFalse();
+        assertThat(EndpointHealth.isServerFailure(200)).isFalse();
+    }
+
+    private static Response createResponse(String retryAfter) {
+        final Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("https://localhost/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(503)
+                .message("");
+        if (retryAfter != null) {
+            builder.header("Retry-After", retryAfter);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,53 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class FreshnessStatsTest {
+
+    private long now;
+    private final FreshnessStats tested = new FreshnessStats(() -> now);
+
+    @Test
+    public void polledData_isHalfAnIntervalOlderOnAverage() {
+        for (int i = 0; i < 4; i++) {
+            tested.onUpdate(FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL, 200);
+            now += 30 * 1000;
+        }
+
+        assertThat(tested.getUpdateIntervals(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL).getMeanMillis())
+                .isEqualTo(30 * 1000);
+        assertThat(tested.getExpectedAgeMillis(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL))
+                .isEqualTo(15 * 1000 + 200);
+    }
+
+    @Test
+    public void pushedData_isOnlyDeliveryLatencyOld() {
+        for (int i = 0; i < 4; i++) {
+            tested.onUpdate(FreshnessStats.LOCATIONS, FreshnessStats.Transport.PUSH, 100 + i);
+            now += 5 * 1000;
+        }
+
+        assertThat(tested.getExpectedAgeMillis(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.PUSH)).isEqualTo(101);
+        assertThat(tested.getExpectedAgeMillis(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL)).isEqualTo(0);
+    }
+
+    @Test
+    public void streamsAreTrackedSeparately() {
+        tested.onUpdate(FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL, 100);
+        tested.onUpdate(FreshnessStats.CHATMESSAGES, FreshnessStats.Transport.POLL, -5);
+
+        assertThat(tested.getDeliveryLatencies(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.POLL).getLastMillis())
+                .isEqualTo(100);
+        // clock skew between server and client must not produce negative latencies
+        assertThat(tested.getDeliveryLatencies(
+                FreshnessStats.CHATMESSAGES, FreshnessStats.Transport.POLL).getLastMillis())
+                .isEqualTo(0);
+    }
+}
@@ -0,0 +1,78 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class HeartbeatDeadBandTest {
+
+    private static final int LATITUDE_E6 = 52_500_000;
+    private static final int LONGITUDE_E6 = 13_400_000;
+    // ~1.1 m north-south
+    private static final int ONE_METER_E6 = 9;
+
+    private long now = 1000;
+    private final HeartbeatDeadBand tested = new HeartbeatDeadBand(() -> now);
+
+    @Test
+    public void shouldSend_firstHeartbeatAlwaysGoesOut() {
+        assertThat(tested.shouldSend(LATITUDE_E6, LONGITUDE_E6)).isTrue();
+    }
+
+    @Test
+    public void shouldSend_suppressesWhileWithinDeadBand() {
+        sendAccepted(LATITUDE_E6, LONGITUDE_E6);
+
+        now += 30 * 1000;
+        assertThat(tested.shouldSend(LATITUDE_E6 + 5 * ONE_METER_E6, LONGITUDE_E6)).isFalse();
+        now += 30 * 1000;
+        assertThat(tested.shouldSend(LATITUDE_E6 + 20 * ONE_METER_E6, LONGITUDE_E6)).isTrue();
+
+        assertThat(tested.getSuppressedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSend_sendsKeepAliveWhileStationary() {
+        sendAccepted(LATITUDE_E6, LONGITUDE_E6);
+
+        int suppressed = 0;
+        while (now < 1000 + HeartbeatDeadBand.KEEP_ALIVE_INTERVAL - 30 * 1000) {
+            now += 30 * 1000;
+            assertThat(tested.shouldSend(LATITUDE_E6, LONGITUDE_E6)).isFalse();
+            suppressed++;
+        }
+        now += 30 * 1000;
+        assertThat(tested.shouldSend(LATITUDE_E6, LONGITUDE_E6)).isTrue();
+        tested.onAccepted();
+
+        assertThat(tested.getSuppressedCount()).isEqualTo(suppressed);
+        assertThat(tested.getSentCount()).isEqualTo(2);
+        assertThat(tested.getKeepAliveCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSend_comparesWithLastAcceptedPosition() {
+        sendAccepted(LATITUDE_E6, LONGITUDE_E6);
+
+        // the server never took this one
+        assertThat(tested.shouldSend(LATITUDE_E6 + 20 * ONE_METER_E6, LONGITUDE_E6)).isTrue();
+
+        // creeping along slower than the dead band per heartbeat still adds up
+        assertThat(tested.shouldSend(LATITUDE_E6 + 10 * ONE_METER_E6, LONGITUDE_E6)).isFalse();
+        assertThat(tested.shouldSend(LATITUDE_E6 + 20 * ONE_METER_E6, LONGITUDE_E6)).isTrue();
+        assertThat(tested.getSentCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void distanceMeters_scalesLongitudeWithLatitude() {
+        assertThat(HeartbeatDeadBand.distanceMeters(0, 0, 0, 1000)).isWithin(0.1).of(111.2);
+        assertThat(HeartbeatDeadBand.distanceMeters(60_000_000, 0, 60_000_000, 1000))
+                .isWithin(0.1).of(55.6);
+        assertThat(HeartbeatDeadBand.distanceMeters(0, 0, 1000, 0)).isWithin(0.1).of(111.2);
+    }
+
+    private void sendAccepted(int latitudeE6, int longitudeE6) {
+        assertThat(tested.shouldSend(latitudeE6, longitudeE6)).isTrue();
+        tested.onAccepted();
+    }
+}
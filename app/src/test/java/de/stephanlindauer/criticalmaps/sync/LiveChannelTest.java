@@ -0,0 +1,193 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LiveChannelTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final MockWebServer server = new MockWebServer();
+    private final BlockingQueue<String> published = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> reconnectDelays = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Runnable> reconnects = new LinkedBlockingQueue<>();
+    private final FreshnessStats freshnessStats = new FreshnessStats(() -> 0);
+    private LiveChannel tested;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(invocation -> {
+                    reconnects.add(invocation.getArgument(0));
+                    reconnectDelays.add(invocation.getArgument(1));
+                    return mock(ScheduledFuture.class);
+                });
+        tested = new LiveChannel(new OkHttpClient(), scheduler, Runnable::run, freshnessStats);
+        tested.register(FreshnessStats.LOCATIONS, new LiveChannel.Stream<String>() {
+            @Override
+            public String decode(@NonNull BufferedSource payload) throws IOException {
+                return payload.readUtf8();
+            }
+
+            @Override
+            public void publish(@NonNull String result) {
+                published.add(result);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tested.stop();
+        server.shutdown();
+    }
+
+    @Test
+    public void pushedFrames_arePublished() throws InterruptedException {
+        server.enqueue(pushing("locations " + System.currentTimeMillis() + "\n[1]",
+                "unknown\n[2]", "locations\n[3]"));
+
+        tested.start(liveRequest());
+
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[1]");
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[3]");
+        assertThat(tested.isLive()).isTrue();
+        assertThat(freshnessStats.getDeliveryLatencies(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.PUSH).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void textFrames_areDecodedAsWell() throws InterruptedException {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                webSocket.send("locations\n[1]");
+            }
+        }));
+
+        tested.start(liveRequest());
+
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[1]");
+    }
+
+    @Test
+    public void changeFrames_countForTheStreamTheyChange() throws InterruptedException {
+        tested.register("location-changes", FreshnessStats.LOCATIONS,
+                new LiveChannel.Stream<String>() {
+                    @Override
+                    public String decode(@NonNull BufferedSource payload) throws IOException {
+                        return "changes " + payload.readUtf8();
+                    }
+
+                    @Override
+                    public void publish(@NonNull String result) {
+                        published.add(result);
+                    }
+                });
+        server.enqueue(pushing("locations\n[1]", "location-changes\n[{\"device\":\"a\"}]"));
+
+        tested.start(liveRequest());
+
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[1]");
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .isEqualTo("changes [{\"device\":\"a\"}]");
+        assertThat(freshnessStats.getDeliveryLatencies(
+                FreshnessStats.LOCATIONS, FreshnessStats.Transport.PUSH).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void closedByServer_reconnectsAfterBackoff() throws InterruptedException {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                webSocket.close(1001, "going away");
+            }
+        }));
+        tested.start(liveRequest());
+
+        final Long delay = reconnectDelays.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertThat(delay).isAtLeast(LiveChannel.MIN_RECONNECT_DELAY / 2);
+        assertThat(delay).isAtMost(LiveChannel.MIN_RECONNECT_DELAY);
+        assertThat(tested.getState()).isEqualTo(LiveChannel.State.WAITING_TO_RECONNECT);
+        assertThat(tested.isLive()).isFalse();
+
+        server.enqueue(pushing("locations\n[1]"));
+        reconnects.take().run();
+
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[1]");
+        assertThat(tested.isLive()).isTrue();
+        assertThat(tested.getReconnectCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void failedHandshakes_backOffExponentially() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setResponseCode(404));
+        tested.start(liveRequest());
+
+        final Long firstDelay = reconnectDelays.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        reconnects.take().run();
+        final Long secondDelay = reconnectDelays.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(firstDelay).isAtMost(LiveChannel.MIN_RECONNECT_DELAY);
+        assertThat(secondDelay).isAtLeast(LiveChannel.MIN_RECONNECT_DELAY);
+        assertThat(secondDelay).isAtMost(2 * LiveChannel.MIN_RECONNECT_DELAY);
+        assertThat(tested.isLive()).isFalse();
+    }
+
+    @Test
+    public void stop_doesNotReconnect() throws InterruptedException {
+        server.enqueue(pushing("locations\n[1]"));
+        tested.start(liveRequest());
+        assertThat(published.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo("[1]");
+
+        tested.stop();
+
+        assertThat(tested.getState()).isEqualTo(LiveChannel.State.STOPPED);
+        assertThat(reconnectDelays.poll(1, TimeUnit.SECONDS)).isNull();
+    }
+
+    private Request liveRequest() {
+        return new Request.Builder().url(server.url("/live")).build();
+    }
+
+    private static MockResponse pushing(String... frames) {
+        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                for (String frame : frames) {
+                    webSocket.send(ByteString.encodeUtf8(frame));
+                }
+            }
+        });
+    }
+}
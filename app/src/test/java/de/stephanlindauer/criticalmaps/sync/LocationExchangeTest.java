@@ -0,0 +1,87 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LocationExchangeTest {
+
+    private static final long HEARTBEAT_INTERVAL = 30 * 1000;
+
+    private long now = 1000;
+    private final LocationExchange tested = new LocationExchange(() -> now);
+
+    @Test
+    public void unknownSupport_isProbedBeforeExchanging() {
+        assertThat(tested.getSupport()).isEqualTo(LocationExchange.Support.UNKNOWN);
+        assertThat(tested.shouldProbe()).isTrue();
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isFalse();
+        assertThat(tested.isHeartbeatCovered(HEARTBEAT_INTERVAL)).isFalse();
+
+        tested.setSupported(true);
+
+        assertThat(tested.shouldProbe()).isFalse();
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isTrue();
+    }
+
+    @Test
+    public void unsupported_fallsBackUntilReprobe() {
+        tested.setSupported(false);
+        assertThat(tested.shouldProbe()).isFalse();
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isFalse();
+
+        now += LocationExchange.REPROBE_INTERVAL;
+        assertThat(tested.shouldProbe()).isTrue();
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isFalse();
+
+        tested.setSupported(false);
+        assertThat(tested.shouldProbe()).isFalse();
+    }
+
+    @Test
+    public void exchange_onlyWhenHeartbeatIsDue() {
+        tested.setSupported(true);
+        tested.onHeartbeatSent();
+
+        now += HEARTBEAT_INTERVAL / 3;
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isFalse();
+
+        // the window the heartbeat is due in may run a bit early
+        now += HEARTBEAT_INTERVAL * 2 / 3 - 1000;
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isTrue();
+    }
+
+    @Test
+    public void heartbeatIsCoveredForOneInterval() {
+        tested.setSupported(true);
+        tested.onHeartbeatSent();
+
+        now += HEARTBEAT_INTERVAL;
+        assertThat(tested.isHeartbeatCovered(HEARTBEAT_INTERVAL)).isTrue();
+
+        now += HEARTBEAT_INTERVAL;
+        assertThat(tested.isHeartbeatCovered(HEARTBEAT_INTERVAL)).isFalse();
+    }
+
+    @Test
+    public void disabled_usesSeparateCalls() {
+        tested.setSupported(true);
+        tested.onHeartbeatSent();
+
+        tested.setEnabled(false);
+
+        assertThat(tested.shouldProbe()).isFalse();
+        assertThat(tested.shouldExchange(HEARTBEAT_INTERVAL)).isFalse();
+        assertThat(tested.isHeartbeatCovered(HEARTBEAT_INTERVAL)).isFalse();
+    }
+
+    @Test
+    public void heartbeatIsNotCoveredOnceUnsupported() {
+        tested.setSupported(true);
+        tested.onHeartbeatSent();
+
+        tested.setSupported(false);
+
+        assertThat(tested.isHeartbeatCovered(HEARTBEAT_INTERVAL)).isFalse();
+    }
+}
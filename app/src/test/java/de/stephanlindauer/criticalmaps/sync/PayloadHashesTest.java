@@ -0,0 +1,41 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.ByteString;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PayloadHashesTest {
+
+    @Test
+    public void readAndHash_keepsTheWholeBodyForDecoding() throws IOException {
+        final String body = "[{\"device\":\"a\"}]\n  ";
+        final Buffer read = new Buffer();
+
+        assertThat(PayloadHashes.readAndHash(new Buffer().writeUtf8(body), read))
+                .isEqualTo(ByteString.encodeUtf8(body).md5());
+        assertThat(read.readUtf8()).isEqualTo(body);
+    }
+
+    @Test
+    public void isPublished_onlyForSamePayloadOfSameKey() throws IOException {
+        final PayloadHashes tested = new PayloadHashes();
+        final ByteString hash = hash("[1]");
+
+        assertThat(tested.isPublished("a", hash)).isFalse();
+
+        tested.setPublished("a", hash);
+
+        assertThat(tested.isPublished("a", hash("[1]"))).isTrue();
+        assertThat(tested.isPublished("a", hash("[2]"))).isFalse();
+        assertThat(tested.isPublished("b", hash)).isFalse();
+    }
+
+    private static ByteString hash(String body) throws IOException {
+        return PayloadHashes.readAndHash(new Buffer().writeUtf8(body), new Buffer());
+    }
+}
@@ -0,0 +1,340 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import de.stephanlindauer.criticalmaps.events.SyncHealthChangedEvent;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SyncEngineTest {
+
+    private static final Request REQUEST = new Request.Builder().url("https://localhost/").build();
+
+    private final Queue<Runnable> backgroundTasks = new ArrayDeque<>();
+    private final Queue<Runnable> mainThreadTasks = new ArrayDeque<>();
+    private OkHttpClient okHttpClient;
+    private Call call;
+    private EventBus eventBus;
+    private long now = 1000;
+    private SyncEngine tested;
+
+    @Before
+    public void setUp() throws IOException {
+        okHttpClient = mock(OkHttpClient.class);
+        call = mock(Call.class);
+        when(okHttpClient.newCall(any(Request.class))).thenReturn(call);
+        when(call.execute()).thenReturn(createResponse(200, "hello"));
+        eventBus = mock(EventBus.class);
+        tested = new SyncEngine(okHttpClient, backgroundTasks::add, mainThreadTasks::add,
+                () -> now, eventBus);
+    }
+
+    @Test
+    public void submit_publishesDecodedResultOnMainThread() {
+        final TestTask task = new TestTask("a");
+
+        assertThat(tested.submit(task)).isTrue();
+        runAll(backgroundTasks);
+
+        assertThat(task.published).isEmpty();
+        assertThat(tested.isInFlight("a")).isTrue();
+
+        runAll(mainThreadTasks);
+
+        assertThat(task.published).containsExactly("hello");
+        assertThat(tested.isInFlight("a")).isFalse();
+    }
+
+    @Test
+    public void submit_isSingleFlightPerKey() {
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+        assertThat(tested.submit(new TestTask("a"))).isFalse();
+        assertThat(tested.submit(new TestTask("b"))).isTrue();
+
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+    }
+
+    @Test
+    public void cancel_beforeFetchSkipsRequest() {
+        final TestTask task = new TestTask("a");
+        tested.submit(task);
+
+        tested.cancel("a");
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        verify(okHttpClient, never()).newCall(any(Request.class));
+        assertThat(task.published).isEmpty();
+        assertThat(tested.isInFlight("a")).isFalse();
+    }
+
+    @Test
+    public void cancel_afterFetchSkipsPublish() {
+        final TestTask task = new TestTask("a");
+        tested.submit(task);
+        runAll(backgroundTasks);
+
+        tested.cancel("a");
+        runAll(mainThreadTasks);
+
+        verify(call).cancel();
+        assertThat(task.published).isEmpty();
+        assertThat(task.failures).isEqualTo(0);
+    }
+
+    @Test
+    public void submit_unsuccessfulResponseReportsFailure() throws IOException {
+        when(call.execute()).thenReturn(createResponse(503, ""));
+        final TestTask task = new TestTask("a");
+
+        tested.submit(task);
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        assertThat(task.published).isEmpty();
+        assertThat(task.failures).isEqualTo(1);
+        assertThat(task.rejectedCodes).isEmpty();
+    }
+
+    @Test
+    public void submit_clientErrorReportsRejection() throws IOException {
+        when(call.execute()).thenReturn(createResponse(400, ""));
+        final TestTask task = new TestTask("a");
+
+        tested.submit(task);
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        assertThat(task.rejectedCodes).containsExactly(400);
+        // unless overridden it's still a failure
+        assertThat(task.failures).isEqualTo(1);
+    }
+
+    @Test
+    public void submit_ioExceptionReportsFailure() throws IOException {
+        when(call.execute()).thenThrow(new IOException("offline"));
+        final TestTask task = new TestTask("a");
+
+        tested.submit(task);
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        assertThat(task.failures).isEqualTo(1);
+        assertThat(tested.isInFlight("a")).isFalse();
+    }
+
+    @Test
+    public void submit_recordsNetworkLatencyPerKey() throws IOException {
+        final Response networkResponse = createResponse(200, "").newBuilder()
+                .body(null)
+                .build();
+        when(call.execute()).thenReturn(createResponse(200, "hello").newBuilder()
+                .networkResponse(networkResponse)
+                .sentRequestAtMillis(1000)
+                .receivedResponseAtMillis(1040)
+                .build());
+
+        tested.submit(new TestTask("a"));
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        final LatencyStats stats = tested.getLatencyStats("a");
+        assertThat(stats.getCount()).isEqualTo(1);
+        assertThat(stats.getLastMillis()).isEqualTo(40);
+        assertThat(tested.getLatencyStats("b").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void submit_doesNotRecordLatencyOfCacheHits() {
+        tested.submit(new TestTask("a"));
+        runAll(backgroundTasks);
+
+        assertThat(tested.getLatencyStats("a").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void submit_backsOffAfterServerFailure() throws IOException {
+        when(call.execute()).thenReturn(createResponse(503, ""));
+        runTask("a");
+
+        assertThat(tested.getEndpointHealth("a").getState())
+                .isEqualTo(EndpointHealth.State.BACKING_OFF);
+        assertThat(tested.submit(new TestTask("a"))).isFalse();
+        assertThat(tested.submit(new TestTask("b"))).isTrue();
+        assertThat(tested.getEndpointHealth("a").getRejectedCount()).isEqualTo(1);
+
+        now += EndpointHealth.MIN_BACKOFF;
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+    }
+
+    @Test
+    public void submit_clientErrorDoesNotBackOff() throws IOException {
+        when(call.execute()).thenReturn(createResponse(404, ""));
+        final TestTask task = runTask("a");
+
+        assertThat(task.failures).isEqualTo(1);
+        assertThat(tested.getEndpointHealth("a").getState())
+                .isEqualTo(EndpointHealth.State.HEALTHY);
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+    }
+
+    @Test
+    public void submit_honorsRetryAfter() throws IOException {
+        when(call.execute()).thenReturn(createResponse(429, "").newBuilder()
+                .header("Retry-After", "120")
+                .build());
+        runTask("a");
+
+        now += 119 * 1000;
+        assertThat(tested.submit(new TestTask("a"))).isFalse();
+        now += 1000;
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+    }
+
+    @Test
+    public void submit_opensCircuitAfterRepeatedFailuresAndClosesAfterTrial() throws IOException {
+        when(call.execute()).thenReturn(createResponse(500, ""));
+        for (int i = 0; i < EndpointHealth.OPEN_THRESHOLD; i++) {
+            now = Math.max(now, tested.getEndpointHealth("a").getBlockedUntil());
+            runTask("a");
+        }
+
+        final EndpointHealth health = tested.getEndpointHealth("a");
+        assertThat(health.getState()).isEqualTo(EndpointHealth.State.OPEN);
+        assertThat(health.getOpenCount()).isEqualTo(1);
+        assertThat(health.getBlockedUntil() - now)
+                .isAtLeast(EndpointHealth.MIN_OPEN_DURATION / 2);
+        verify(eventBus).post(argThat(event -> event instanceof SyncHealthChangedEvent
+                && ((SyncHealthChangedEvent) event).state == EndpointHealth.State.OPEN));
+
+        now = health.getBlockedUntil();
+        doReturn(createResponse(200, "hello")).when(call).execute();
+        assertThat(tested.submit(new TestTask("a"))).isTrue();
+        assertThat(health.getState()).isEqualTo(EndpointHealth.State.HALF_OPEN);
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+
+        assertThat(health.getState()).isEqualTo(EndpointHealth.State.HEALTHY);
+        assertThat(health.getConsecutiveFailures()).isEqualTo(0);
+    }
+
+    @Test
+    public void submit_failedTrialReopensForLonger() throws IOException {
+        when(call.execute()).thenReturn(createResponse(500, ""));
+        for (int i = 0; i < EndpointHealth.OPEN_THRESHOLD; i++) {
+            now = Math.max(now, tested.getEndpointHealth("a").getBlockedUntil());
+            runTask("a");
+        }
+
+        now = tested.getEndpointHealth("a").getBlockedUntil();
+        runTask("a");
+
+        final EndpointHealth health = tested.getEndpointHealth("a");
+        assertThat(health.getState()).isEqualTo(EndpointHealth.State.OPEN);
+        assertThat(health.getOpenCount()).isEqualTo(2);
+        assertThat(health.getBlockedUntil() - now)
+                .isAtLeast(EndpointHealth.MIN_OPEN_DURATION);
+    }
+
+    @Test
+    public void onConnectivityRegained_onlyForgetsOfflineFailures() throws IOException {
+        when(call.execute()).thenThrow(new IOException("offline"));
+        runTask("offline");
+        doReturn(createResponse(503, "")).when(call).execute();
+        runTask("overloaded");
+
+        tested.onConnectivityRegained();
+
+        assertThat(tested.submit(new TestTask("offline"))).isTrue();
+        assertThat(tested.submit(new TestTask("overloaded"))).isFalse();
+    }
+
+    private TestTask runTask(String key) {
+        final TestTask task = new TestTask(key);
+        assertThat(tested.submit(task)).isTrue();
+        runAll(backgroundTasks);
+        runAll(mainThreadTasks);
+        return task;
+    }
+
+    private void runAll(Queue<Runnable> tasks) {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static Response createResponse(int code, String body) {
+        return new Response.Builder()
+                .request(REQUEST)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("")
+                .body(ResponseBody.create(MediaType.parse("text/plain"), body))
+                .build();
+    }
+
+    private class TestTask extends SyncTask<String> {
+        final List<String> published = new ArrayList<>();
+        final List<Integer> rejectedCodes = new ArrayList<>();
+        int failures;
+
+        TestTask(String key) {
+            super(key);
+        }
+
+        @Override
+        protected Request createRequest() {
+            return REQUEST;
+        }
+
+        @Override
+        protected String decode(@NonNull Response response) throws IOException {
+            //noinspection ConstantConditions
+            return response.body().string();
+        }
+
+        @Override
+        protected void publish(@NonNull String result) {
+            published.add(result);
+        }
+
+        @Override
+        protected void onFailure() {
+            failures++;
+        }
+
+        @Override
+        protected void onRejected(int code) {
+            rejectedCodes.add(code);
+            super.onRejected(code);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SyncPolicyTest {
+
+    private SyncPolicy tested;
+
+    @Before
+    public void setUp() {
+        tested = new SyncPolicy(mock(App.class), mock(EventBus.class),
+                mock(SyncScheduler.class), mock(LocationUpdateManager.class),
+                mock(OwnLocationModel.class), mock(OtherUsersLocationModel.class));
+    }
+
+    @Test
+    public void decide_ridingInTheMassPollsFast() {
+        final SyncPolicy.Decision decision = tested.decide(5.0f, true, 200, 80, false);
+
+        assertThat(decision.pollInterval).isEqualTo(15_000L);
+        assertThat(decision.heartbeatInterval).isEqualTo(SyncPolicy.BASE_INTERVAL);
+    }
+
+    @Test
+    public void decide_stationaryAtHomeBacksOff() {
+        final SyncPolicy.Decision decision = tested.decide(0.0f, false, 0, 80, false);
+
+        assertThat(decision.pollInterval).isEqualTo(120_000L);
+        assertThat(decision.heartbeatInterval).isEqualTo(60_000L);
+    }
+
+    @Test
+    public void decide_unknownSpeedKeepsBaseInterval() {
+        final SyncPolicy.Decision decision = tested.decide(
+                LocationUpdateManager.UNKNOWN_SPEED, true, 5, SyncPolicy.UNKNOWN_BATTERY, false);
+
+        assertThat(decision.pollInterval).isEqualTo(SyncPolicy.BASE_INTERVAL);
+        assertThat(decision.heartbeatInterval).isEqualTo(SyncPolicy.BASE_INTERVAL);
+    }
+
+    @Test
+    public void decide_lowBatteryBacksOffUnlessCharging() {
+        assertThat(tested.decide(5.0f, true, 5, 10, false).heartbeatInterval)
+                .isEqualTo(2 * SyncPolicy.BASE_INTERVAL);
+        assertThat(tested.decide(5.0f, true, 5, 10, true).heartbeatInterval)
+                .isEqualTo(SyncPolicy.BASE_INTERVAL);
+    }
+
+    @Test
+    public void decide_respectsConfiguredBounds() {
+        tested.setPollIntervalBounds(20_000L, 40_000L);
+        tested.setHeartbeatIntervalBounds(25_000L, 45_000L);
+
+        assertThat(tested.decide(5.0f, true, 200, 80, false).pollInterval).isEqualTo(20_000L);
+        assertThat(tested.decide(0.0f, false, 0, 80, false).pollInterval).isEqualTo(40_000L);
+        assertThat(tested.decide(0.0f, false, 0, 80, false).heartbeatInterval)
+                .isEqualTo(45_000L);
+    }
+}
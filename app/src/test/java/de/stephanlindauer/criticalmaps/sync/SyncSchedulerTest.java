@@ -0,0 +1,129 @@
+package de.stephanlindauer.criticalmaps.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SyncSchedulerTest {
+
+    private static final long PERIOD = SyncScheduler.DEFAULT_PERIOD;
+
+    private final List<String> runs = new ArrayList<>();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> windowFuture;
+    private long now = 1_000_000L;
+    private SyncScheduler tested;
+
+    @Before
+    public void setUp() {
+        executor = mock(ScheduledExecutorService.class);
+        windowFuture = mock(ScheduledFuture.class);
+        //noinspection unchecked
+        when(executor.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any()))
+                .thenReturn((ScheduledFuture) windowFuture);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        tested = new SyncScheduler(() -> now, executor);
+    }
+
+    @Test
+    public void schedule_runsNewJobRightAwayAndStartsWindows() {
+        tested.schedule("a", SyncScheduler.Cadence.POLL, () -> runs.add("a"));
+
+        assertThat(runs).containsExactly("a");
+        verify(executor).scheduleAtFixedRate(
+                any(Runnable.class), eq(PERIOD), eq(PERIOD), eq(TimeUnit.MILLISECONDS));
+        assertThat(tested.getNextRunTime()).isEqualTo(now + PERIOD);
+        assertThat(tested.getPhase()).isEqualTo(now % PERIOD);
+    }
+
+    @Test
+    public void runWindow_runsAllJobsTogether() {
+        tested.schedule("a", SyncScheduler.Cadence.POLL, () -> runs.add("a"));
+        now += 10_000L;
+        tested.schedule("b", SyncScheduler.Cadence.POLL, () -> runs.add("b"));
+        runs.clear();
+
+        now += 20_000L;
+        tested.runWindow();
+
+        assertThat(runs).containsExactly("a", "b").inOrder();
+        assertThat(tested.getNextRunTime()).isEqualTo(now + PERIOD);
+    }
+
+    @Test
+    public void schedule_closeToWindowWaitsForIt() {
+        tested.schedule("a", SyncScheduler.Cadence.POLL, () -> runs.add("a"));
+        now += PERIOD - 2_000L;
+
+        tested.schedule("b", SyncScheduler.Cadence.POLL, () -> runs.add("b"));
+
+        assertThat(runs).containsExactly("a");
+    }
+
+    @Test
+    public void unschedule_lastJobStopsWindowsButKeepsPhase() {
+        final long phase = now % PERIOD;
+        tested.schedule("a", SyncScheduler.Cadence.POLL, () -> runs.add("a"));
+
+        tested.unschedule("a");
+
+        verify(windowFuture).cancel(false);
+        assertThat(tested.getNextRunTime()).isEqualTo(SyncScheduler.NOT_SCHEDULED);
+
+        now += 45_000L;
+        tested.schedule("b", SyncScheduler.Cadence.POLL, () -> runs.add("b"));
+
+        assertThat(tested.getPhase()).isEqualTo(phase);
+        assertThat(tested.getNextRunTime()).isEqualTo(now + 15_000L);
+    }
+
+    @Test
+    public void setIntervals_runsLongerCadenceInEveryNthWindow() {
+        tested.schedule("poll", SyncScheduler.Cadence.POLL, () -> runs.add("poll"));
+        tested.schedule("heartbeat", SyncScheduler.Cadence.HEARTBEAT, () -> runs.add("heartbeat"));
+        runs.clear();
+
+        tested.setIntervals(15_000L, 50_000L);
+
+        assertThat(tested.getPeriod()).isEqualTo(15_000L);
+        assertThat(tested.getInterval(SyncScheduler.Cadence.HEARTBEAT)).isEqualTo(45_000L);
+        for (int i = 0; i < 6; i++) {
+            now += 15_000L;
+            tested.runWindow();
+        }
+        assertThat(runs).containsExactly(
+                "poll", "poll", "poll", "heartbeat", "poll", "poll", "poll", "heartbeat").inOrder();
+    }
+
+    @Test
+    public void getWakeUpsPerHour_countsWindowsAndImmediateRuns() {
+        tested.schedule("a", SyncScheduler.Cadence.POLL, () -> runs.add("a"));
+        for (int i = 0; i < 4; i++) {
+            now += PERIOD;
+            tested.runWindow();
+        }
+
+        assertThat(tested.getWakeUpsPerHour()).isEqualTo(5);
+
+        now += 60 * 60 * 1000L;
+
+        assertThat(tested.getWakeUpsPerHour()).isEqualTo(0);
+    }
+}
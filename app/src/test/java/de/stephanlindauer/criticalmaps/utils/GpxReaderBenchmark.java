@@ -0,0 +1,109 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the former DOM based GPX reading with the streaming {@link GpxReader} on synthetic
+ * single track files. The DOM reader is skipped for the largest file, it needs far more heap
+ * than a unit test gets.
+ * Only runs with {@code ./gradlew testDebugUnitTest -Dcriticalmaps.benchmark=true}.
+ */
+public class GpxReaderBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 3;
+    private static final int MAX_DOM_POINTS = 100_000;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("criticalmaps.benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int points : new int[]{10_000, 100_000, 1_000_000}) {
+            final byte[] gpx = createGpx(points);
+            final boolean runDom = points <= MAX_DOM_POINTS;
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                if (runDom) {
+                    GpxReaderTest.readWithDom(new ByteArrayInputStream(gpx));
+                }
+                runStreaming(gpx);
+            }
+
+            long domNanos = 0;
+            long domBytes = 0;
+            long streamingNanos = 0;
+            long streamingBytes = 0;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                long bytes;
+                long start;
+                if (runDom) {
+                    bytes = allocatedBytes();
+                    start = System.nanoTime();
+                    GpxReaderTest.readWithDom(new ByteArrayInputStream(gpx));
+                    domNanos += System.nanoTime() - start;
+                    domBytes += allocatedBytes() - bytes;
+                }
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                runStreaming(gpx);
+                streamingNanos += System.nanoTime() - start;
+                streamingBytes += allocatedBytes() - bytes;
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "%8d points (%9d bytes): DOM %s | streaming %8.1f ms %6.1f MB/op",
+                    points, gpx.length,
+                    runDom ? String.format(Locale.US, "%8.1f ms %6.1f MB/op",
+                            domNanos / 1e6 / MEASURED_ROUNDS,
+                            domBytes / 1e6 / MEASURED_ROUNDS) : "skipped",
+                    streamingNanos / 1e6 / MEASURED_ROUNDS,
+                    streamingBytes / 1e6 / MEASURED_ROUNDS));
+        }
+    }
+
+    private static void runStreaming(byte[] gpx) throws Exception {
+        new GpxReader(new GpxModel()).readDataFromStream(new ByteArrayInputStream(gpx), "bench");
+    }
+
+    static byte[] createGpx(int points) {
+        final Random random = new Random(points);
+        final StringBuilder builder = new StringBuilder(points * 110)
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<gpx version=\"1.1\" creator=\"benchmark\" ")
+                .append("xmlns=\"http://www.topografix.com/GPX/1/1\">\n")
+                .append("<trk><name>Benchmark</name><trkseg>\n");
+        double latitude = 52.5D;
+        double longitude = 13.4D;
+        for (int i = 0; i < points; i++) {
+            latitude += (random.nextDouble() - 0.5D) * 1e-4D;
+            longitude += (random.nextDouble() - 0.5D) * 1e-4D;
+            builder.append(String.format(Locale.US,
+                    "<trkpt lat=\"%.6f\" lon=\"%.6f\"><ele>%.1f</ele>"
+                            + "<time>2023-05-26T18:%02d:%02dZ</time></trkpt>\n",
+                    latitude, longitude, 30 + random.nextDouble() * 10,
+                    (i / 60) % 60, i % 60));
+        }
+        builder.append("</trkseg></trk>\n</gpx>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
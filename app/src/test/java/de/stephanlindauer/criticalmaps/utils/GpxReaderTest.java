@@ -0,0 +1,241 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class GpxReaderTest {
+
+    private static final String[] CORPUS = {
+            "simple_track.gpx",
+            "multiple_tracks.gpx",
+            "waypoints.gpx",
+            "extensions.gpx",
+            "unnamed_track_with_named_points.gpx"};
+
+    @Test
+    public void readDataFromStream_matchesDomReaderOnCorpus() throws Exception {
+        for (String file : CORPUS) {
+            final GpxModel expected = readWithDom(open(file));
+            final GpxModel actual = read(file);
+
+            assertThat(actual.getTracks()).hasSize(expected.getTracks().size());
+            for (int i = 0; i < expected.getTracks().size(); i++) {
+                final GpxTrack expectedTrack = expected.getTracks().get(i);
+                final GpxTrack actualTrack = actual.getTracks().get(i);
+                assertThat(actualTrack.getName()).isEqualTo(expectedTrack.getName());
+                assertThat(actualTrack.size()).isEqualTo(expectedTrack.size());
+                for (int j = 0; j < expectedTrack.size(); j++) {
+                    assertThat(actualTrack.getLatitudeE6(j))
+                            .isEqualTo(expectedTrack.getLatitudeE6(j));
+                    assertThat(actualTrack.getLongitudeE6(j))
+                            .isEqualTo(expectedTrack.getLongitudeE6(j));
+                    assertThat(actualTrack.hasAltitude(j)).isEqualTo(expectedTrack.hasAltitude(j));
+                    assertThat(actualTrack.getAltitude(j)).isEqualTo(expectedTrack.getAltitude(j));
+                }
+            }
+            assertThat(actual.getPoiList()).hasSize(expected.getPoiList().size());
+            for (int i = 0; i < expected.getPoiList().size(); i++) {
+                final GpxPoi expectedPoi = expected.getPoiList().get(i);
+                final GpxPoi actualPoi = actual.getPoiList().get(i);
+                assertThat(actualPoi.getName()).isEqualTo(expectedPoi.getName());
+                assertThat(actualPoi.getPosition()).isEqualTo(expectedPoi.getPosition());
+            }
+        }
+    }
+
+    @Test
+    public void readDataFromStream_readsTrackWithAltitude() throws Exception {
+        final GpxModel tested = read("simple_track.gpx");
+
+        assertThat(tested.getTracks()).hasSize(1);
+        final GpxTrack track = tested.getTracks().get(0);
+        assertThat(track.getName()).isEqualTo("Mariannenplatz loop");
+        assertThat(track.size()).isEqualTo(6);
+        assertThat(track.getPoint(0)).isEqualTo(new GeoPoint(52.502133D, 13.424735D, 38.2f));
+        assertThat(tested.getPoiList()).isEmpty();
+        assertThat(tested.getUri()).isEqualTo("simple_track.gpx");
+    }
+
+    @Test
+    public void readDataFromStream_readsEscapedNames() throws Exception {
+        final GpxModel tested = read("extensions.gpx");
+
+        assertThat(tested.getTracks().get(0).getName()).isEqualTo("Tour & <friends>");
+        assertThat(tested.getTracks().get(0).getAltitude(0)).isEqualTo(112.4f);
+        assertThat(tested.getPoiList().get(0).getName()).isEqualTo("Frauenkirche & Neumarkt");
+    }
+
+    @Test
+    public void readDataFromStream_replacesPreviousFile() throws Exception {
+        final GpxModel gpxModel = new GpxModel();
+        final GpxReader tested = new GpxReader(gpxModel);
+
+        tested.readDataFromStream(open("multiple_tracks.gpx"), "first");
+        tested.readDataFromStream(open("waypoints.gpx"), "second");
+
+        assertThat(gpxModel.getTracks()).hasSize(1);
+        assertThat(gpxModel.getPoiList()).hasSize(3);
+        assertThat(gpxModel.getUri()).isEqualTo("second");
+    }
+
+    @Test
+    public void readDataFromStream_throwsOnPointWithoutCoordinates() {
+        final GpxReader tested = new GpxReader(new GpxModel());
+
+        assertThrows(SAXException.class, () -> tested.readDataFromStream(
+                stream("<gpx><wpt lat=\"52.5\"><name>No lon</name></wpt></gpx>"), "broken"));
+        assertThrows(SAXException.class, () -> tested.readDataFromStream(
+                stream("<gpx><trk><trkseg><trkpt lat=\"x\" lon=\"13.4\"/></trkseg></trk></gpx>"),
+                "broken"));
+    }
+
+    @Test
+    public void readDataFromStream_throwsOnBrokenXml() {
+        final GpxReader tested = new GpxReader(new GpxModel());
+
+        assertThrows(SAXException.class, () -> tested.readDataFromStream(
+                stream("<gpx><trk><trkseg><trkpt lat=\"52.5\" lon=\"13.4\">"), "broken"));
+    }
+
+    @Test
+    public void read_publishesChunksThatJoinIntoTheTrack() throws Exception {
+        final GpxModel gpxModel = new GpxModel();
+        final RecordingListener listener = new RecordingListener();
+
+        final GpxModel result = new GpxReader(gpxModel).read(
+                new ByteArrayInputStream(GpxReaderBenchmark.createGpx(5000)), "chunked", listener);
+
+        final GpxTrack track = result.getTracks().get(0);
+        assertThat(listener.chunks).hasSize(3);
+        assertThat(listener.chunks.get(0).size()).isEqualTo(GpxReader.FIRST_CHUNK_SIZE);
+        assertThat(listener.chunks.get(1).size()).isEqualTo(2 * GpxReader.FIRST_CHUNK_SIZE);
+        int index = 0;
+        for (GpxTrack chunk : listener.chunks) {
+            assertThat(chunk.getName()).isEqualTo("Benchmark");
+            // each chunk starts where the previous one ended
+            index = index == 0 ? 0 : index - 1;
+            for (int i = 0; i < chunk.size(); i++, index++) {
+                assertThat(chunk.getLatitudeE6(i)).isEqualTo(track.getLatitudeE6(index));
+                assertThat(chunk.getLongitudeE6(i)).isEqualTo(track.getLongitudeE6(index));
+                assertThat(chunk.getAltitude(i)).isEqualTo(track.getAltitude(index));
+            }
+        }
+        assertThat(index).isEqualTo(5000);
+        assertThat(result.getUri()).isEqualTo("chunked");
+        assertThat(gpxModel.getTracks()).isEmpty();
+    }
+
+    @Test
+    public void read_stopsOnceCancelled() {
+        final RecordingListener listener = new RecordingListener();
+        listener.cancelAfterChunks = 1;
+
+        assertThrows(CancellationException.class, () -> new GpxReader(new GpxModel()).read(
+                new ByteArrayInputStream(GpxReaderBenchmark.createGpx(5000)), "cancelled",
+                listener));
+        assertThat(listener.chunks).hasSize(1);
+    }
+
+    private static class RecordingListener implements GpxReader.Listener {
+        final List<GpxTrack> chunks = new ArrayList<>();
+        int cancelAfterChunks = Integer.MAX_VALUE;
+
+        @Override
+        public void onTrackChunk(GpxTrack chunk) {
+            chunks.add(chunk);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return chunks.size() >= cancelAfterChunks;
+        }
+    }
+
+    private GpxModel read(String file) throws Exception {
+        final GpxModel gpxModel = new GpxModel();
+        new GpxReader(gpxModel).readDataFromStream(open(file), file);
+        return gpxModel;
+    }
+
+    private InputStream open(String file) {
+        return getClass().getClassLoader().getResourceAsStream("gpx/" + file);
+    }
+
+    private static InputStream stream(String gpx) {
+        return new ByteArrayInputStream(gpx.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the former DOM based reader, as reference for the streaming one
+    static GpxModel readWithDom(InputStream gpxInputStream) throws Exception {
+        final GpxModel gpxModel = new GpxModel();
+        final Element gpxElement = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(gpxInputStream).getDocumentElement();
+
+        final NodeList trkList = gpxElement.getElementsByTagName("trk");
+        for (int i = 0; i < trkList.getLength(); i++) {
+            final Element track = (Element) trkList.item(i);
+            final GpxTrack.Builder trackBuilder = new GpxTrack.Builder();
+            final NodeList trksegList = track.getElementsByTagName("trkseg");
+            for (int j = 0; j < trksegList.getLength(); j++) {
+                final NodeList trkptList =
+                        ((Element) trksegList.item(j)).getElementsByTagName("trkpt");
+                for (int k = 0; k < trkptList.getLength(); k++) {
+                    addPointWithDom((Element) trkptList.item(k), trackBuilder);
+                }
+            }
+            gpxModel.getTracks().add(trackBuilder.build(parseNameWithDom(track)));
+        }
+
+        final NodeList wptList = gpxElement.getElementsByTagName("wpt");
+        for (int i = 0; i < wptList.getLength(); i++) {
+            final Element wpt = (Element) wptList.item(i);
+            gpxModel.getPoiList().add(new GpxPoi(parseNameWithDom(wpt), parsePointWithDom(wpt)));
+        }
+        return gpxModel;
+    }
+
+    private static String parseNameWithDom(Element element) {
+        final NodeList nameList = element.getElementsByTagName("name");
+        return nameList.getLength() > 0 ? nameList.item(0).getTextContent() : null;
+    }
+
+    private static void addPointWithDom(Element point, GpxTrack.Builder trackBuilder) {
+        final double lat = Double.parseDouble(point.getAttribute("lat"));
+        final double lon = Double.parseDouble(point.getAttribute("lon"));
+        final NodeList eleList = point.getElementsByTagName("ele");
+        if (eleList.getLength() > 0) {
+            trackBuilder.addPoint(lat, lon, Double.parseDouble(eleList.item(0).getTextContent()));
+        } else {
+            trackBuilder.addPoint(lat, lon);
+        }
+    }
+
+    private static GeoPoint parsePointWithDom(Element point) {
+        final double lat = Double.parseDouble(point.getAttribute("lat"));
+        final double lon = Double.parseDouble(point.getAttribute("lon"));
+        final NodeList eleList = point.getElementsByTagName("ele");
+        if (eleList.getLength() > 0) {
+            return new GeoPoint(lat, lon, Double.parseDouble(eleList.item(0).getTextContent()));
+        }
+        return new GeoPoint(lat, lon);
+    }
+}
@@ -0,0 +1,24 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class WebMercatorTest {
+
+    @Test
+    public void coordinates_roundTrip() {
+        assertThat(WebMercator.xToLongitude(WebMercator.longitudeToX(13.404954D)))
+                .isWithin(1e-9).of(13.404954D);
+        assertThat(WebMercator.yToLatitude(WebMercator.latitudeToY(52.520008D)))
+                .isWithin(1e-9).of(52.520008D);
+    }
+
+    @Test
+    public void corners_mapToUnitSquare() {
+        assertThat(WebMercator.longitudeToX(-180.0D)).isWithin(1e-12).of(0.0D);
+        assertThat(WebMercator.longitudeToX(180.0D)).isWithin(1e-12).of(1.0D);
+        assertThat(WebMercator.latitudeToY(WebMercator.MAX_LATITUDE)).isWithin(1e-9).of(0.0D);
+        assertThat(WebMercator.latitudeToY(-90.0D)).isWithin(1e-9).of(1.0D);
+    }
+}